@@ -4,7 +4,9 @@ import jcav.filelayer.btree.*;
 import jcav.filelayer.exception.DBRuntimeError;
 
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 public class BTreeTable extends BPlusTree {
     private String table_name = "";
@@ -71,4 +73,80 @@ public class BTreeTable extends BPlusTree {
         BTreeTable table = new BTreeTable(page_id, db, table_name);
         return table;
     }
+
+    /**
+     * create a table from rows sorted by key, much faster than inserting them one by one.
+     * the tree is built bottom-up and registered in the schema once, see {@link BulkLoader}.
+     *
+     * @param db
+     * @param table_name
+     * @param key_types
+     * @param val_types
+     * @param rows key-value pairs in strictly ascending key order
+     * @param fill_factor in (0, 1], the part of each node to fill
+     * @return
+     */
+    public static BTreeTable bulk_load(
+            DBFile db,
+            String table_name,
+            List<Integer> key_types,
+            List<Integer> val_types,
+            Iterator<? extends Map.Entry<Payload, Payload>> rows,
+            double fill_factor
+    ) {
+        BPlusTree tree = BPlusTree.bulk_load(db, key_types, val_types, rows, fill_factor);
+        SchemaTable schema = db.get_schema();
+        schema.insert(table_name, tree.root_page());
+
+        return new BTreeTable(tree.root_page(), db, table_name);
+    }
+
+    public static BTreeTable bulk_load(
+            DBFile db,
+            String table_name,
+            List<Integer> key_types,
+            List<Integer> val_types,
+            Iterator<? extends Map.Entry<Payload, Payload>> rows
+    ) {
+        return bulk_load(db, table_name, key_types, val_types, rows, BulkLoader.DEFAULT_FILL_FACTOR);
+    }
+
+    /**
+     * create a table from rows in any order. rows are sorted by the sorter, spilled to temp files
+     * if they exceed its memory budget, and merged straight into the bulk loader.
+     * the sorter is closed afterwards, its metrics are still available.
+     *
+     * @param db
+     * @param table_name
+     * @param rows key-value pairs with distinct keys
+     * @param sorter an empty sorter with the key and value types of the table
+     * @param fill_factor in (0, 1], the part of each node to fill
+     * @return
+     */
+    public static BTreeTable bulk_load_unsorted(
+            DBFile db,
+            String table_name,
+            Iterator<? extends Map.Entry<Payload, Payload>> rows,
+            ExternalSorter sorter,
+            double fill_factor
+    ) {
+        try (ExternalSorter s = sorter) {
+            s.add_all(rows);
+            return bulk_load(db, table_name, s.get_key_types(), s.get_value_types(), s.sorted(), fill_factor);
+        }
+    }
+
+    public static BTreeTable bulk_load_unsorted(
+            DBFile db,
+            String table_name,
+            List<Integer> key_types,
+            List<Integer> val_types,
+            Iterator<? extends Map.Entry<Payload, Payload>> rows
+    ) {
+        return bulk_load_unsorted(
+                db, table_name, rows,
+                new ExternalSorter(key_types, val_types),
+                BulkLoader.DEFAULT_FILL_FACTOR
+        );
+    }
 }
@@ -17,6 +17,30 @@ public interface Cache {
      */
     byte[] read(int page_id, int pos, int length);
 
+    /**
+     * read some data into dst. caches may override it to copy without allocating an array.
+     *
+     * @param page_id
+     * @param pos
+     * @param dst
+     * @param offset
+     * @param length
+     */
+    default void read(int page_id, int pos, byte[] dst, int offset, int length) {
+        System.arraycopy(read(page_id, pos, length), 0, dst, offset, length);
+    }
+
+    /**
+     * read a big-endian int. caches may override it to read without allocating an array.
+     *
+     * @param page_id
+     * @param pos
+     * @return
+     */
+    default int read_int(int page_id, int pos) {
+        return Bytes.to_int(read(page_id, pos, 4));
+    }
+
     /**
      * write some data to the cache, the cache will determine whether to write back to file or not.
      *
@@ -38,6 +62,27 @@ public interface Cache {
         write(page_id, pos, data, 0, data.length);
     }
 
+    /**
+     * pin a page in the cache and access it without copying. the page will not be
+     * evicted until the handle is unpinned. caches that can't expose their storage
+     * may return a handle on a copy, see {@link PageHandle#copy_of(Cache, int, byte[])}.
+     *
+     * @param page_id
+     * @return
+     */
+    PageHandle pin(int page_id);
+
+    /**
+     * hint that the following accesses are part of a scan and each page is used only once,
+     * so they should not evict frequently used pages. caches may ignore it.
+     *
+     * @param use_once
+     * @return the previous state
+     */
+    default boolean set_use_once(boolean use_once) {
+        return false;
+    }
+
     /**
      * write back all pages to file.
      *
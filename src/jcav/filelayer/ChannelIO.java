@@ -0,0 +1,64 @@
+package jcav.filelayer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * helpful functions for positional IO on {@link FileChannel}, used by caches.
+ */
+public final class ChannelIO {
+    /**
+     * open the database file for read and write, create it if not exists.
+     * writes are not synchronous, call {@link FileChannel#force(boolean)} to make them durable.
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static FileChannel open(String path) throws IOException {
+        return FileChannel.open(
+                Paths.get(path),
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE
+        );
+    }
+
+    /**
+     * positional read until buf is full or the end of file.
+     * @return bytes read
+     */
+    public static int read_fully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * positional write of all remaining bytes of buf.
+     */
+    public static void write_fully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    /**
+     * gathering write of all remaining bytes of bufs, starting at position.
+     * the channel position is changed.
+     */
+    public static void write_fully(FileChannel channel, ByteBuffer[] bufs, long position) throws IOException {
+        channel.position(position);
+        int first = 0;
+        while (first < bufs.length) {
+            channel.write(bufs, first, bufs.length - first);
+            while (first < bufs.length && !bufs[first].hasRemaining()) first++;
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package jcav.filelayer;
+
+import jcav.filelayer.exception.DBRuntimeError;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Thread-safe cache for DBFile, using the CLOCK policy.
+ *
+ * Pages are kept in a fixed array of frames, found by a {@link ConcurrentHashMap}. A hit only sets the
+ * reference bit of the frame, so there is no shared list to lock. On a miss, the clock hand sweeps the
+ * frames, clears reference bits and takes the first frame that is neither referenced nor pinned.
+ *
+ * Each frame has a pin count. A frame is claimed for eviction and loading by setting it from 0 to -1,
+ * other threads wait until the page is loaded. Page data is copied under an optimistic read of the
+ * frame's {@link StampedLock}, so concurrent readers of a hot page don't block each other.
+ *
+ * Readers on different threads are safe, so {@code BPlusTree.search} and {@code get_value} can run
+ * concurrently. Writes are atomic per call, but the b-tree has no latches, so modifying a tree still
+ * must not run concurrently with other accesses to it.
+ *
+ * @see Cache
+ */
+public class ClockCache implements Cache {
+    private static final int LOADING = -1;
+
+    private DBFile db;
+    private FileChannel channel;
+    private Frame[] frames;
+    private ConcurrentHashMap<Integer, Frame> table = new ConcurrentHashMap<>();
+    private AtomicInteger hand = new AtomicInteger(0);
+    private volatile int page_size = 0;
+
+    /**
+     * @param db
+     * @param max_cache_size number of frames, must not be less than 2
+     */
+    public ClockCache(DBFile db, int max_cache_size) {
+        if (db == null) throw new IllegalArgumentException("db must not be null");
+        if (max_cache_size <= 1)
+            throw new IllegalArgumentException("max_cache_size must not be less than 2");
+
+        this.db = db;
+        this.frames = new Frame[max_cache_size];
+        for (int i = 0; i < max_cache_size; i++) {
+            frames[i] = new Frame();
+        }
+        try {
+            this.channel = ChannelIO.open(db.path);
+        } catch (IOException e) {
+            throw new DBRuntimeError("create cache error", e);
+        }
+    }
+
+    /**
+     * page size is read from the database header once and remembered, it must be called before
+     * a frame is claimed, since reading the header may need a frame itself.
+     */
+    private int get_page_size(int page_id) {
+        if (page_id == 0) return DBFile.HEADER_SIZE;
+        if (page_size == 0) {
+            int size = db.get_page_size(page_id);
+            // the header is not written yet when the database is being created
+            if (size >= DBFile.HEADER_SIZE) page_size = size;
+            return size;
+        }
+        return page_size;
+    }
+
+    private long get_page_offset(int page_id, int size) {
+        if (page_id == 0) return 0;
+        return DBFile.HEADER_SIZE + (page_id - 1L) * size;
+    }
+
+    /**
+     * find the page in the cache or read it into a frame.
+     *
+     * @param page_id
+     * @param create if true, a page beyond the end of file is read as zeros.
+     * @return the frame pinned once, call {@link Frame#unpin()} after use.
+     */
+    private Frame get_frame(int page_id, boolean create) {
+        if (page_id < 0) throw new IllegalArgumentException("page_id must be positive, page_id=" + page_id);
+        int size = get_page_size(page_id);
+
+        while (true) {
+            Frame frame = table.get(page_id);
+            if (frame != null) {
+                // the frame may be recycled for another page before it is pinned
+                if (frame.pin(page_id)) {
+                    if (!frame.referenced) frame.referenced = true;
+                    return frame;
+                }
+                continue;
+            }
+
+            Frame victim = claim_victim();
+            if (table.putIfAbsent(page_id, victim) != null) {
+                // another thread is reading the same page
+                victim.release();
+                continue;
+            }
+            try {
+                victim.data = read_from_file(page_id, size, create);
+            } catch (RuntimeException e) {
+                table.remove(page_id, victim);
+                victim.release();
+                throw e;
+            }
+            victim.page_id = page_id;
+            victim.referenced = true;
+            victim.pin_count.set(1);
+            return victim;
+        }
+    }
+
+    /**
+     * sweep the clock for a frame that is neither referenced nor pinned, write it back if dirty
+     * and remove it from the table.
+     *
+     * @return a frame in LOADING state.
+     * @throws DBRuntimeError if all frames are pinned.
+     */
+    private Frame claim_victim() {
+        for (int i = 0; i < frames.length * 3; i++) {
+            Frame frame = frames[Math.floorMod(hand.getAndIncrement(), frames.length)];
+            if (frame.pin_count.get() != 0) continue;
+            if (frame.referenced) {
+                frame.referenced = false;
+                continue;
+            }
+            if (!frame.pin_count.compareAndSet(0, LOADING)) continue;
+
+            if (frame.page_id >= 0) {
+                // readers of the old page wait until it is written back
+                try {
+                    if (frame.dirty) write_back(frame);
+                } catch (RuntimeException e) {
+                    frame.pin_count.set(0);
+                    throw e;
+                }
+                table.remove(frame.page_id, frame);
+                frame.page_id = -1;
+            }
+            return frame;
+        }
+        throw new DBRuntimeError("no frame to evict, all " + frames.length + " frames are pinned");
+    }
+
+    private byte[] read_from_file(int page_id, int size, boolean create) {
+        byte[] data = new byte[size];
+        try {
+            int sz = ChannelIO.read_fully(channel, ByteBuffer.wrap(data), get_page_offset(page_id, size));
+            if (sz != size && !create)
+                throw new DBRuntimeError("incomplete page read, page_id = " + page_id
+                        + ", page_size = " + size + ", read_size = " + sz);
+            return data;
+        } catch (IOException e) {
+            throw new DBRuntimeError("IO read error", e);
+        }
+    }
+
+    /**
+     * the caller must have the frame pinned or claimed.
+     */
+    private void write_back(Frame frame) {
+        // cleared before copying, so a write during the copy marks it dirty again
+        frame.dirty = false;
+        byte[] copy = frame.copy(0, frame.data.length);
+        try {
+            ChannelIO.write_fully(channel, ByteBuffer.wrap(copy), get_page_offset(frame.page_id, copy.length));
+        } catch (IOException e) {
+            frame.dirty = true;
+            throw new DBRuntimeError("IO write error", e);
+        }
+    }
+
+    @Override
+    public byte[] read(int page_id, int pos, int length) {
+        Frame frame = get_frame(page_id, false);
+        try {
+            return frame.copy(pos, length);
+        } finally {
+            frame.unpin();
+        }
+    }
+
+    @Override
+    public void read(int page_id, int pos, byte[] dst, int offset, int length) {
+        Frame frame = get_frame(page_id, false);
+        try {
+            frame.copy(pos, dst, offset, length);
+        } finally {
+            frame.unpin();
+        }
+    }
+
+    @Override
+    public int read_int(int page_id, int pos) {
+        Frame frame = get_frame(page_id, false);
+        try {
+            return frame.read_int(pos);
+        } finally {
+            frame.unpin();
+        }
+    }
+
+    @Override
+    public void write(int page_id, int pos, byte[] data, int offset, int length) {
+        Frame frame = get_frame(page_id, true);
+        try {
+            if (frame.data.length < pos + length)
+                throw new IllegalArgumentException("write out of block bound");
+            long stamp = frame.lock.writeLock();
+            try {
+                System.arraycopy(data, offset, frame.data, pos, length);
+                frame.dirty = true;
+            } finally {
+                frame.lock.unlockWrite(stamp);
+            }
+        } finally {
+            frame.unpin();
+        }
+    }
+
+    @Override
+    public PageHandle pin(int page_id) {
+        Frame frame = get_frame(page_id, false);
+        return new PageHandle(page_id, ByteBuffer.wrap(frame.data)) {
+            @Override
+            protected void on_dirty() {
+                frame.dirty = true;
+            }
+
+            @Override
+            protected void on_unpin() {
+                frame.unpin();
+            }
+        };
+    }
+
+    /**
+     * write back dirty frames in page order, then force the file.
+     * @throws IOException
+     */
+    @Override
+    public void sync() throws IOException {
+        List<Frame> dirty = new ArrayList<>();
+        for (Frame frame : frames) {
+            int page_id = frame.page_id;
+            if (frame.dirty && page_id >= 0 && frame.pin(page_id)) {
+                dirty.add(frame);
+            }
+        }
+        dirty.sort(Comparator.comparingInt(f -> f.page_id));
+        try {
+            for (Frame frame : dirty) {
+                if (frame.dirty) write_back(frame);
+            }
+        } finally {
+            for (Frame frame : dirty) {
+                frame.unpin();
+            }
+        }
+        channel.force(true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        channel.close();
+    }
+
+    private static final class Frame {
+        volatile int page_id = -1;
+        volatile byte[] data;
+        volatile boolean referenced = false;
+        volatile boolean dirty = false;
+        final AtomicInteger pin_count = new AtomicInteger(0);
+        final StampedLock lock = new StampedLock();
+
+        /**
+         * pin the frame if it holds page_id, wait while it is being loaded.
+         * @return false if the frame holds another page.
+         */
+        boolean pin(int page_id) {
+            while (true) {
+                int n = pin_count.get();
+                if (n == LOADING) {
+                    Thread.yield();
+                    continue;
+                }
+                if (pin_count.compareAndSet(n, n + 1)) break;
+            }
+            if (this.page_id != page_id) {
+                unpin();
+                return false;
+            }
+            return true;
+        }
+
+        void unpin() {
+            pin_count.decrementAndGet();
+        }
+
+        /**
+         * give up a claimed frame, it is left empty.
+         */
+        void release() {
+            page_id = -1;
+            data = null;
+            dirty = false;
+            pin_count.set(0);
+        }
+
+        int read_int(int pos) {
+            long stamp = lock.tryOptimisticRead();
+            int val = Bytes.to_int(data, pos);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    val = Bytes.to_int(data, pos);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return val;
+        }
+
+        byte[] copy(int pos, int length) {
+            byte[] out = new byte[length];
+            copy(pos, out, 0, length);
+            return out;
+        }
+
+        void copy(int pos, byte[] dst, int offset, int length) {
+            long stamp = lock.tryOptimisticRead();
+            System.arraycopy(data, pos, dst, offset, length);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    System.arraycopy(data, pos, dst, offset, length);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package jcav.filelayer;
 
 import jcav.filelayer.btree.BPlusTree;
+import jcav.filelayer.btree.NodeCache;
 import jcav.filelayer.btree.ObjType;
 import jcav.filelayer.exception.DBRuntimeError;
 
@@ -14,9 +15,11 @@ import java.util.List;
 public class DBFile implements Closeable {
     public static final int HEADER_SIZE = 128;
     public static final int TABLE_NAME_LEN = 64;
+    // format of b-tree keys and cells, files of other versions are not readable
+    public static final short VERSION = 6;
     public static final List<FieldDef> HEADER_DEFS = Arrays.asList(
             new FieldDef(32, "file_id", "SQLite-like-db"),
-            new FieldDef(2, "ver", (short) 1),
+            new FieldDef(2, "ver", VERSION), // 6: interior cells keep the key count of their child
             new FieldDef(1, "page_size", (byte) 12), // 512 byte page size, for debugging
             new FieldDef(4, "page_count", 1),
             new FieldDef(4, "freelist_head", 0),
@@ -24,13 +27,50 @@ public class DBFile implements Closeable {
             new FieldDef(4, "cache_count", 128),
             new FieldDef(4,"schema_page", 0)
     );
+    public static final HeaderLayout HEADER_LAYOUT = HeaderLayout.compile(HEADER_DEFS);
+    private static final HeaderLayout.Field PAGE_SIZE = HEADER_LAYOUT.field("page_size");
+    private static final HeaderLayout.Field VER = HEADER_LAYOUT.field("ver");
 
+    /**
+     * open a database file.
+     * @param path
+     * @throws IOException
+     * @throws DBRuntimeError if the file is of another version
+     */
     public DBFile(String path) throws IOException {
+        this(path, true);
+    }
+
+    private DBFile(String path, boolean check_version) throws IOException {
         this.path = path;
         cache = new NoCache(this);
-        headers = new Headers(HEADER_DEFS, 0, this);
+        headers = new Headers(HEADER_LAYOUT, 0, this);
+        overflow_index = new OverflowIndex(this, OverflowIndex.DEFAULT_MAX_CHAINS);
+        node_cache = new NodeCache(NodeCache.DEFAULT_MAX_NODES);
 
         recover();
+        if (check_version) {
+            try {
+                check_version();
+            } catch (DBRuntimeError e) {
+                cache.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * keys and cells of b-tree nodes are decoded by the current format only, a file written in another
+     * version would be read as garbage.
+     * @throws DBRuntimeError
+     */
+    private void check_version() throws IOException {
+        if (!Files.exists(Paths.get(path)) || Files.size(Paths.get(path)) < HEADER_SIZE) return;
+        short ver = Bytes.to_short(read(0, VER.offset, 2));
+        if (ver != VERSION) {
+            throw new DBRuntimeError("database version " + ver + " is not supported, expect " + VERSION +
+                    ", the file was written in another format");
+        }
     }
 
     private void recover() {
@@ -94,6 +134,7 @@ public class DBFile implements Closeable {
      * @param page_id
      */
     public void release_page(int page_id) {
+        overflow_index.invalidate(page_id);
         FreePage free = new FreePage(page_id, this);
         free.headers.set("type", PageType.FREE);
         free.headers.set("next_free", headers.get("freelist_head"));
@@ -108,6 +149,8 @@ public class DBFile implements Closeable {
     protected Cache cache;
     protected boolean _readonly = false;
     protected Transaction transaction = null;
+    protected OverflowIndex overflow_index;
+    protected NodeCache node_cache;
 
     /**
      * set the cache, close the old cache.
@@ -127,6 +170,46 @@ public class DBFile implements Closeable {
         set_cache(new LRUCache(this, headers.get("cache_count").to_int()));
     }
 
+    /**
+     * use a LRUCache whose blocks are in an off-heap {@link PagePool}.
+     * @param budget_bytes memory budget of the cache
+     */
+    public void use_off_heap_cache(long budget_bytes) {
+        set_cache(new LRUCache(this, new PagePool(get_page_size(1), budget_bytes)));
+    }
+
+    public void use_mmap_cache() {
+        set_cache(new MmapCache(this));
+    }
+
+    public void use_2q_cache() {
+        set_cache(new TwoQCache(this, headers.get("cache_count").to_int()));
+    }
+
+    /**
+     * use the thread-safe {@link ClockCache}, so the database can be read from many threads.
+     */
+    public void use_clock_cache() {
+        set_cache(new ClockCache(this, headers.get("cache_count").to_int()));
+    }
+
+    /**
+     * @see Cache#set_use_once(boolean)
+     * @param use_once
+     * @return the previous state
+     */
+    public boolean set_use_once(boolean use_once) {
+        return cache.set_use_once(use_once);
+    }
+
+    public OverflowIndex get_overflow_index() {
+        return overflow_index;
+    }
+
+    public NodeCache get_node_cache() {
+        return node_cache;
+    }
+
     public Transaction transaction() {
         if (transaction != null) {
             throw new DBRuntimeError("Transaction already exists");
@@ -154,6 +237,56 @@ public class DBFile implements Closeable {
             return transaction.read(page_id, pos, length);
     }
 
+    /**
+     * read some data into dst, without allocation if the cache supports it.
+     * @see Cache#read(int, int, byte[], int, int)
+     * @param page_id
+     * @param pos
+     * @param dst
+     * @param offset
+     * @param length
+     */
+    public void read(int page_id, int pos, byte[] dst, int offset, int length) {
+        if (transaction == null)
+            this.cache.read(page_id, pos, dst, offset, length);
+        else
+            System.arraycopy(transaction.read(page_id, pos, length), 0, dst, offset, length);
+    }
+
+    /**
+     * read a big-endian int, without allocation if the cache supports it.
+     * @see Cache#read_int(int, int)
+     * @param page_id
+     * @param pos
+     * @return
+     */
+    public int read_int(int page_id, int pos) {
+        if (transaction == null)
+            return this.cache.read_int(page_id, pos);
+        else
+            return Bytes.to_int(transaction.read(page_id, pos, 4));
+    }
+
+    /**
+     * pin a page and read it without copying, see {@link PageHandle}.
+     *
+     * The handle is read-only, modifications must go through {@link #write(int, int, byte[])}
+     * so that transactions can see them.
+     *
+     * the underlying function is {@link Cache#pin(int)}
+     *
+     * @param page_id
+     * @return
+     */
+    public PageHandle pin(int page_id) {
+        PageHandle handle;
+        if (transaction == null)
+            handle = this.cache.pin(page_id);
+        else
+            handle = transaction.pin(page_id);
+        return PageHandle.read_only(handle, page_id);
+    }
+
     /**
      * @see #write(int, int, byte[], int, int)
      *
@@ -165,6 +298,7 @@ public class DBFile implements Closeable {
      */
     public void write(int page_id, int pos, byte[] data, int offset, int length) {
         if (_readonly) throw new DBRuntimeError("DBFile is readonly");
+        node_cache.on_write(page_id, pos, length);
         if (transaction == null)
             this.cache.write(page_id, pos, data, offset, length);
         else
@@ -180,6 +314,7 @@ public class DBFile implements Closeable {
      */
     public void write(int page_id, int pos, byte[] data) {
         if (_readonly) throw new DBRuntimeError("DBFile is readonly");
+        node_cache.on_write(page_id, pos, data.length);
         if (transaction == null) {
             this.cache.write(page_id, pos, data, 0, data.length);
         } else {
@@ -218,7 +353,7 @@ public class DBFile implements Closeable {
     public int get_page_size(int page_id) {
         if (page_id < 0) throw new IllegalArgumentException("page_id must be positive");
         if(page_id == 0) return HEADER_SIZE;
-        int m = headers.get("page_size").as_byte();
+        int m = PAGE_SIZE.read_byte(this, 0);
         return 1<<m;
     }
 
@@ -234,7 +369,7 @@ public class DBFile implements Closeable {
     // db create
     ////////////////////////////
     public static DBFile create(String path) throws IOException, DBRuntimeError {
-        DBFile db = new DBFile(path);
+        DBFile db = new DBFile(path, false);
         db.headers.set_to_default();
         int pos = db.headers.get_total_length();
         db.write(0, pos, new byte[DBFile.HEADER_SIZE - pos]);
@@ -0,0 +1,146 @@
+package jcav.filelayer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled, immutable list of {@link FieldDef}: the offset of every field is computed once, and fields
+ * are looked up by name with a hash map instead of scanning the list.
+ *
+ * Get a {@link Field} once, e.g. as a static constant, and use its typed accessors to read and write the
+ * field without any name lookup. A whole header can be read in one read with {@link #read(DBFile, int)}
+ * and decoded from the returned array.
+ *
+ * @see Headers
+ */
+public final class HeaderLayout {
+    private final List<FieldDef> field_defs;
+    private final Map<String, Field> fields = new HashMap<>();
+    private final int total_length;
+
+    private HeaderLayout(List<FieldDef> defs) {
+        this.field_defs = Collections.unmodifiableList(new ArrayList<>(defs));
+        int offset = 0;
+        for (FieldDef def : defs) {
+            if (!fields.containsKey(def.name)) {
+                fields.put(def.name, new Field(def, offset));
+            }
+            offset += def.len;
+        }
+        this.total_length = offset;
+    }
+
+    public static HeaderLayout compile(List<FieldDef> defs) {
+        if (defs == null) throw new IllegalArgumentException("defs must not be null");
+        return new HeaderLayout(defs);
+    }
+
+    /**
+     * @param name
+     * @return
+     * @throws IllegalArgumentException if there is no such field.
+     */
+    public Field field(String name) {
+        Field f = fields.get(name);
+        if (f == null) throw new IllegalArgumentException("No such field: " + name);
+        return f;
+    }
+
+    public boolean has_field(String name) {
+        return fields.containsKey(name);
+    }
+
+    public List<FieldDef> get_field_defs() {
+        return field_defs;
+    }
+
+    public int get_total_length() {
+        return total_length;
+    }
+
+    /**
+     * read the whole header of a page in one read.
+     * @param db
+     * @param page_id
+     * @return
+     */
+    public byte[] read(DBFile db, int page_id) {
+        return db.read(page_id, 0, total_length);
+    }
+
+    /**
+     * A field with its offset in the header.
+     *
+     * get_xxx and set_xxx access a header decoded by {@link #read(DBFile, int)}, read_xxx and write_xxx
+     * access the page directly.
+     */
+    public static final class Field {
+        public final String name;
+        public final int offset;
+        public final int len;
+        public final Class<?> type;
+        private final byte[] default_value;
+
+        private Field(FieldDef def, int offset) {
+            this.name = def.name;
+            this.offset = offset;
+            this.len = def.len;
+            this.type = def.type;
+            this.default_value = def.default_value;
+        }
+
+        public byte get_byte(byte[] hdr) {
+            return hdr[offset];
+        }
+
+        public int get_int(byte[] hdr) {
+            return Bytes.to_int(hdr, offset);
+        }
+
+        public void set_int(byte[] hdr, int val) {
+            hdr[offset] = (byte) (val >> 24);
+            hdr[offset + 1] = (byte) (val >> 16);
+            hdr[offset + 2] = (byte) (val >> 8);
+            hdr[offset + 3] = (byte) val;
+        }
+
+        public byte read_byte(DBFile db, int page_id) {
+            return db.read(page_id, offset, 1)[0];
+        }
+
+        public int read_int(DBFile db, int page_id) {
+            return db.read_int(page_id, offset);
+        }
+
+        public void write_int(DBFile db, int page_id, int val) {
+            db.write(page_id, offset, Bytes.from_int(val));
+        }
+
+        public Headers.FieldValue read(DBFile db, int page_id) {
+            return new Headers.FieldValue(db.read(page_id, offset, len), type);
+        }
+
+        /**
+         * @param db
+         * @param page_id
+         * @param value padded with 0 to the field length
+         * @throws IllegalArgumentException if value is longer than the field
+         */
+        public void write(DBFile db, int page_id, byte[] value) {
+            if (value.length > len) throw new IllegalArgumentException("value too long");
+            if (value.length < len) {
+                byte[] new_value = new byte[len];
+                System.arraycopy(value, 0, new_value, 0, value.length);
+                value = new_value;
+            }
+            db.write(page_id, offset, value, 0, len);
+        }
+
+        public Headers.FieldValue get_default() {
+            return new Headers.FieldValue(default_value, type);
+        }
+    }
+}
@@ -7,44 +7,45 @@ import java.util.Objects;
 /**
  * A quick and dirty wrapper to read and write fields in a page.
  *
+ * Fields are looked up in a compiled {@link HeaderLayout}. Prefer to compile the layout once and
+ * use {@link #Headers(HeaderLayout, int, DBFile)}, the list constructor compiles it every time.
+ *
  * @see FieldDef
  */
 public class Headers {
+    /**
+     * read-only, build a new Headers to change the fields.
+     */
     public List<FieldDef> field_defs;
     public int page_id;
     public DBFile db;
+    private HeaderLayout layout;
 
     //////////////////////////////////
     // meaningful functions
     //////////////////////////////////
 
     public Headers(List<FieldDef> field_defs, int page_id, DBFile db) {
-        this.field_defs = field_defs;
+        this(HeaderLayout.compile(field_defs), page_id, db);
+    }
+
+    public Headers(HeaderLayout layout, int page_id, DBFile db) {
+        this.layout = layout;
+        this.field_defs = layout.get_field_defs();
         this.page_id = page_id;
         this.db = db;
     }
 
+    public HeaderLayout get_layout() {
+        return layout;
+    }
+
     public FieldValue get(String name) {
-        int offset = get_offset(this.field_defs, name);
-        FieldDef def = get_field_def(this.field_defs, name);
-        int len = def.len;
-        byte[] data = this.db.read(this.page_id, offset, len);
-        return new FieldValue(data, def.type);
+        return layout.field(name).read(db, page_id);
     }
 
     public void set(String name, byte[] value) {
-        int offset = get_offset(this.field_defs, name);
-        int len = get_length(this.field_defs, name);
-
-        if (value.length <= len) {
-            byte[] new_value = new byte[len];
-            System.arraycopy(value, 0, new_value, 0, value.length);
-            value = new_value;
-        } else {
-            throw new IllegalArgumentException("value too long");
-        }
-
-        this.db.write(this.page_id, offset, value, 0, len);
+        layout.field(name).write(db, page_id, value);
     }
 
     public static FieldDef get_field_def(List<FieldDef> defs, String name) {
@@ -103,26 +104,34 @@ public class Headers {
         set(name, Bytes.from_string(val));
     }
 
+    /**
+     * write the default values of all fields in one write.
+     */
     public void set_to_default() {
+        byte[] data = new byte[layout.get_total_length()];
+        int offset = 0;
         for (FieldDef def : this.field_defs) {
-            this.set(def.name, def.default_value);
+            if (def.default_value.length > def.len) throw new IllegalArgumentException("value too long");
+            System.arraycopy(def.default_value, 0, data, offset, def.default_value.length);
+            offset += def.len;
         }
+        db.write(page_id, 0, data);
     }
 
     public int get_offset(String name) {
-        return get_offset(this.field_defs, name);
+        return layout.field(name).offset;
     }
 
     public int get_length(String name) {
-        return get_length(this.field_defs, name);
+        return layout.field(name).len;
     }
 
     public int get_total_length() {
-        return get_total_length(this.field_defs);
+        return layout.get_total_length();
     }
 
     public FieldValue get_default(String name) {
-        return get_default(this.field_defs, name);
+        return layout.field(name).get_default();
     }
 
     public static int get_length(List<FieldDef> defs, String name) {
@@ -2,24 +2,65 @@ package jcav.filelayer;
 
 import jcav.filelayer.exception.DBRuntimeError;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Least Recently Used Cache for DBFile
  *
+ * The file is accessed with positional reads and writes on a {@link FileChannel}. Writing back a block
+ * is not durable by itself, durability comes from the force in {@link #sync()}.
+ *
+ * {@link #sync()} writes dirty blocks in file offset order, each run of adjacent pages goes out in one
+ * gathering write, see {@link #flush_dirty()}.
+ *
+ * An optional background flusher, see {@link #start_flusher(double, double)}, writes back the least
+ * recently used dirty blocks when the dirty ratio exceeds a high watermark, until it drops to a low
+ * watermark. So evictions usually find a clean victim and don't write on the caller's thread.
+ * All public methods are synchronized for the flusher.
+ *
+ * The eviction policy is defined by {@link #on_access(Block)}, {@link #on_load(Block)}, {@link #find_victim()}
+ * and {@link #eviction_order()}, subclasses may override them to use other policies, see {@link TwoQCache}.
+ *
+ * Block data are heap buffers by default. With a {@link PagePool}, they are frames of an off-heap arena
+ * which are recycled on eviction, and the cache size is the number of frames in the pool.
+ *
+ * Pinned blocks are never evicted. If all blocks are pinned, the cache grows
+ * beyond max_cache_size until some of them are unpinned.
+ *
  * @see Cache
  */
 public class LRUCache implements Cache {
     private DBFile db;
-    private RandomAccessFile ram;
-    private int max_cache_size = 100;
+    private FileChannel channel;
+    protected int max_cache_size = 100;
     private Map<Integer, Block> blocks = new HashMap<>();
     private BlockChain used_blocks = new BlockChain();
     private BlockChain free_blocks = new BlockChain();
+    private PagePool pool = null;
+    private int dirty_count = 0;
+
+    // background flusher
+    private final Object flush_lock = new Object();
+    private Thread flusher = null;
+    private boolean flusher_running = false;
+    private int high_mark;
+    private int low_mark;
+    private IOException flusher_error = null;
+
+    // statistics
+    private long flushed_pages = 0;
+    private long stall_count = 0;
+    private long stall_nanos = 0;
+    private long hit_count = 0;
+    private long miss_count = 0;
 
     /**
      *
@@ -34,15 +75,54 @@ public class LRUCache implements Cache {
         this.db = db;
         this.max_cache_size = max_cache_size;
         try {
-            this.ram = new RandomAccessFile(db.path, "rwd");
+            this.channel = ChannelIO.open(db.path);
         } catch (Exception e) {
             throw new DBRuntimeError("create cache error", e);
         }
     }
 
+    /**
+     * cache in an off-heap arena, the cache size is the number of frames in the pool.
+     *
+     * @param db
+     * @param pool frames must not be smaller than the page size
+     */
+    public LRUCache(DBFile db, PagePool pool) {
+        this(db, pool.get_frame_count());
+        if (pool.get_frame_size() < db.get_page_size(1))
+            throw new IllegalArgumentException("frame size of the pool is less than page size");
+        this.pool = pool;
+    }
+
+    private void set_dirty(Block block) {
+        if (block.updated) return;
+        block.updated = true;
+        dirty_count++;
+        if (flusher_running && dirty_count > high_mark) notifyAll();
+    }
+
+    private void set_clean(Block block) {
+        if (!block.updated) return;
+        block.updated = false;
+        dirty_count--;
+    }
+
+    private static long get_page_offset(Block block) {
+        if (block.page_id == 0) return 0;
+        return DBFile.HEADER_SIZE + (block.page_id - 1L) * block.data.capacity();
+    }
+
     private void release_block(Block block) {
         blocks.remove(block.page_id);
-        if (block.updated) write_back(block);
+        if (block.updated) {
+            // the victim is dirty, the caller has to wait for the write back
+            long st = System.nanoTime();
+            write_back(block);
+            stall_nanos += System.nanoTime() - st;
+            stall_count++;
+        }
+        if (block.frame != null) pool.give_back(block.frame);
+        block.frame = null;
         block.data = null;
         block.page_id = -1;
         free_blocks.add_back(block);
@@ -51,50 +131,105 @@ public class LRUCache implements Cache {
     private void write_back(Block block) {
 //        System.out.println("[LRUCache] write back page " + block.page_id);
 
-        long file_offset = db.get_page_offset(block.page_id);
         try {
-            ram.seek(file_offset);
-            ram.write(block.data);
-            block.updated = false;
+            ChannelIO.write_fully(channel, block.data.duplicate(), get_page_offset(block));
+            set_clean(block);
         } catch (IOException e) {
             throw new RuntimeException("LRU write back error", e);
         }
     }
 
-    private Block cache_data(int page_id, byte[] data) {
-        if (free_blocks.size == 0 && blocks.size() == max_cache_size)
-            release_block(used_blocks.back());
+    ////////////////////////////////////////
+    // eviction policy
+    ////////////////////////////////////////
+
+    /**
+     * called on a cache hit.
+     * @param block
+     */
+    protected void on_access(Block block) {
+        used_blocks.remove(block);
+        used_blocks.add_front(block);
+    }
+
+    /**
+     * called when a page is read into a new block, the block must be added to one of the chains
+     * returned by {@link #eviction_order()}.
+     * @param block
+     */
+    protected void on_load(Block block) {
+        used_blocks.add_front(block);
+    }
+
+    /**
+     * called when a block is chosen as victim, before it is removed from its chain.
+     * @param block
+     */
+    protected void on_evict(Block block) {}
+
+    /**
+     * @return chains of cached blocks, the coldest chain first. blocks in a chain are ordered
+     *         from the hottest (front) to the coldest (back).
+     */
+    protected List<BlockChain> eviction_order() {
+        return Collections.singletonList(used_blocks);
+    }
+
+    /**
+     * @return the coldest block that is not pinned, or null if all blocks are pinned.
+     */
+    protected Block find_victim() {
+        for (BlockChain chain : eviction_order()) {
+            Block block = chain.find_unpinned_back();
+            if (block != null) return block;
+        }
+        return null;
+    }
+
+    /**
+     * @param page_id
+     * @param page_size
+     * @return a new block for the page, its data is not read yet.
+     */
+    private Block cache_data(int page_id, int page_size) {
+        if (free_blocks.size == 0 && blocks.size() >= max_cache_size) {
+            Block victim = find_victim();
+            if (victim != null) {
+                on_evict(victim);
+                victim.chain.remove(victim);
+                release_block(victim);
+            }
+        }
 
-        if(free_blocks.size > 0){
-            Block block = free_blocks.back();
+        Block block;
+        if (free_blocks.size > 0) {
+            block = free_blocks.back();
             free_blocks.remove(block);
-            block.page_id = page_id;
-            block.data = data;
-            blocks.put(page_id, block);
-            used_blocks.add_front(block);
-            return block;
         } else {
-            Block block = new Block();
-            block.page_id = page_id;
-            block.data = data;
-            blocks.put(page_id, block);
-            used_blocks.add_front(block);
-            return block;
+            block = new Block();
+        }
+        block.page_id = page_id;
+        block.frame = pool == null ? null : pool.take();
+        if (block.frame != null) {
+            ByteBuffer frame = block.frame.duplicate();
+            frame.limit(page_size);
+            block.data = frame.slice();
+        } else {
+            // no pool, or all frames are pinned
+            block.data = ByteBuffer.allocate(page_size);
         }
+        blocks.put(page_id, block);
+        on_load(block);
+        return block;
     }
 
-    private byte[] read_from_file(int page_id) {
-        long file_offset = db.get_page_offset(page_id);
-        int page_size = db.get_page_size(page_id);
-        byte[] data = new byte[page_size];
-
+    private void read_from_file(int page_id, long file_offset, ByteBuffer data) {
+        int page_size = data.capacity();
         try {
-            ram.seek(file_offset);
-            int sz = ram.read(data);
+            int sz = ChannelIO.read_fully(channel, data.duplicate(), file_offset);
             if (sz != page_size)
                 throw new RuntimeException("incomplete page read, page_id = " + page_id
                         + ", page_size = " + page_size + ", read_size = " + sz);
-            return data;
         } catch (IOException e) {
             throw new DBRuntimeError("IO read error", e);
         }
@@ -106,71 +241,376 @@ public class LRUCache implements Cache {
 //            System.out.println("[LRUCache] hit cache page " + page_id);
 
             Block block = blocks.get(page_id);
-            used_blocks.remove(block);
-            used_blocks.add_front(block);
+            hit_count++;
+            on_access(block);
             return block;
         } else {
-            byte[] data = read_from_file(page_id);
-            Block block = cache_data(page_id, data);
+            miss_count++;
+            // both may read the database header, so they are called before a block is taken
+            long file_offset = db.get_page_offset(page_id);
+            int page_size = db.get_page_size(page_id);
+
+            Block block = cache_data(page_id, page_size);
+            try {
+                read_from_file(page_id, file_offset, block.data);
+            } catch (RuntimeException e) {
+                block.chain.remove(block);
+                release_block(block);
+                throw e;
+            }
             return block;
         }
     }
 
     @Override
-    public byte[] read(int page_id, int pos, int length) {
+    public synchronized byte[] read(int page_id, int pos, int length) {
 //        System.out.println("[LRUCache] read page " + page_id + ", pos = " + pos + ", length = " + length);
 
         Block block = get_block(page_id);
         byte[] data = new byte[length];
-        System.arraycopy(block.data, pos, data, 0, length);
+        ByteBuffer buf = block.data.duplicate();
+        buf.position(pos);
+        buf.get(data);
         return data;
     }
 
     @Override
-    public void write(int page_id, int pos, byte[] data, int offset, int length) {
+    public synchronized void read(int page_id, int pos, byte[] dst, int offset, int length) {
+        ByteBuffer data = get_block(page_id).data;
+        if (data.hasArray()) {
+            if (pos < 0 || pos + length > data.capacity())
+                throw new IndexOutOfBoundsException("read out of block bound");
+            System.arraycopy(data.array(), data.arrayOffset() + pos, dst, offset, length);
+        } else {
+            ByteBuffer buf = data.duplicate();
+            buf.position(pos);
+            buf.get(dst, offset, length);
+        }
+    }
+
+    @Override
+    public synchronized int read_int(int page_id, int pos) {
+        return get_block(page_id).data.getInt(pos);
+    }
+
+    @Override
+    public synchronized void write(int page_id, int pos, byte[] data, int offset, int length) {
 //        System.out.println("[LRUCache] write page " + page_id + ", pos = " + pos + ", length = " + length);
         // Special test for page_id out of file range
         try {
             long page_pos = db.get_page_offset(page_id);
             int page_size = db.get_page_size(page_id);
 
-            if (page_pos + page_size > ram.length()) {
-                ram.seek(ram.length());
-                ram.write(new byte[(int) (page_pos + page_size - ram.length())]);
-                ram.getFD().sync();
+            long file_size = channel.size();
+            if (page_pos + page_size > file_size) {
+                ChannelIO.write_fully(channel, ByteBuffer.allocate((int) (page_pos + page_size - file_size)), file_size);
             }
         } catch (IOException e) {
             throw new RuntimeException("Unable to expand file", e);
         }
 
         Block block = get_block(page_id);
-        if (block.data.length < pos + length)
+        if (block.data.capacity() < pos + length)
             throw new IllegalArgumentException("write out of block bound");
-        System.arraycopy(data, offset, block.data, pos, length);
-        block.updated = true;
+        ByteBuffer buf = block.data.duplicate();
+        buf.position(pos);
+        buf.put(data, offset, length);
+        set_dirty(block);
     }
 
     @Override
-    public void sync() throws IOException {
+    public synchronized PageHandle pin(int page_id) {
+        Block block = get_block(page_id);
+        block.pin_count++;
+        return new BlockHandle(block);
+    }
+
+    /**
+     * write blocks to file. blocks are sorted by page id, which is also the file offset order,
+     * and runs of adjacent pages are written with one gathering write each.
+     * @param list
+     * @return number of writes issued
+     * @throws IOException
+     */
+    private int write_sorted(List<Block> list) throws IOException {
+        list.sort(Comparator.comparingInt(b -> b.page_id));
+
+        int writes = 0;
+        int i = 0;
+        while (i < list.size()) {
+            long start = get_page_offset(list.get(i));
+            long end = start + list.get(i).data.capacity();
+            int j = i + 1;
+            while (j < list.size() && get_page_offset(list.get(j)) == end) {
+                end += list.get(j).data.capacity();
+                j++;
+            }
+
+            ByteBuffer[] run = new ByteBuffer[j - i];
+            for (int k = i; k < j; k++) {
+                run[k - i] = list.get(k).data.duplicate();
+            }
+            ChannelIO.write_fully(channel, run, start);
+            writes++;
+            i = j;
+        }
+        return writes;
+    }
+
+    /**
+     * write back all dirty blocks, see {@link #write_sorted(List)}.
+     * @return number of writes issued
+     * @throws IOException
+     */
+    private int flush_dirty() throws IOException {
+        List<Block> dirty = new ArrayList<>();
         for (Block block : blocks.values()) {
-            if (block.updated) write_back(block);
+            if (block.updated) dirty.add(block);
+        }
+        int writes = write_sorted(dirty);
+        for (Block block : dirty) {
+            set_clean(block);
+        }
+        return writes;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        synchronized (flush_lock) {
+            synchronized (this) {
+                if (flusher_error != null) {
+                    IOException e = flusher_error;
+                    flusher_error = null;
+                    throw new IOException("background flush failed", e);
+                }
+                flush_dirty();
+                channel.force(true);
+            }
         }
-        ram.getFD().sync();
     }
 
     @Override
     public void close() throws IOException {
+        stop_flusher();
         sync();
-        ram.close();
+        channel.close();
+    }
+
+    ////////////////////////////////////////
+    // background flusher
+    ////////////////////////////////////////
+
+    /**
+     * start the background flusher. when more than high * max_cache_size blocks are dirty, it writes
+     * back the least recently used dirty blocks until at most low * max_cache_size blocks are dirty.
+     *
+     * @param high high watermark of dirty ratio, in (0, 1]
+     * @param low low watermark of dirty ratio, in [0, high)
+     */
+    public synchronized void start_flusher(double high, double low) {
+        if (!(high > 0 && high <= 1 && low >= 0 && low < high))
+            throw new IllegalArgumentException("require 0 <= low < high <= 1, got high = " + high + ", low = " + low);
+        if (flusher != null) throw new DBRuntimeError("flusher is already started");
+
+        this.high_mark = (int) (high * max_cache_size);
+        this.low_mark = (int) (low * max_cache_size);
+        this.flusher_running = true;
+        this.flusher = new Thread(this::flusher_loop, "LRUCache-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * stop the background flusher and wait for it to exit. dirty blocks are kept.
+     */
+    public void stop_flusher() {
+        Thread t;
+        synchronized (this) {
+            if (flusher == null) return;
+            t = flusher;
+            flusher_running = false;
+            flusher = null;
+            notifyAll();
+        }
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flusher_loop() {
+        while (true) {
+            synchronized (this) {
+                while (flusher_running && dirty_count <= high_mark) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!flusher_running) return;
+            }
+
+            try {
+                if (!flush_cold()) {
+                    // everything dirty is pinned, check again later
+                    synchronized (this) {
+                        wait(10);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                synchronized (this) {
+                    flusher_error = e;
+                    flusher_running = false;
+                    flusher = null;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * write back dirty blocks from the LRU end down to the low watermark.
+     *
+     * the blocks are copied and pinned under the cache lock, and written without it, so foreground calls
+     * are not blocked by the IO. pinning keeps them from being evicted and written by the caller
+     * meanwhile, and flush_lock keeps {@link #sync()} from racing with the stale copies.
+     *
+     * @return false if no block can be written back.
+     */
+    private boolean flush_cold() throws IOException {
+        synchronized (flush_lock) {
+            List<Block> victims = new ArrayList<>();
+            List<Block> copies = new ArrayList<>();
+            synchronized (this) {
+                for (BlockChain chain : eviction_order()) {
+                    Block block = chain.back();
+                    while (block != chain.head && dirty_count > low_mark) {
+                        if (block.updated && block.pin_count == 0) {
+                            Block copy = new Block();
+                            copy.page_id = block.page_id;
+                            copy.data = ByteBuffer.allocate(block.data.capacity());
+                            copy.data.put(block.data.duplicate());
+                            copy.data.clear();
+                            copies.add(copy);
+                            victims.add(block);
+                            block.pin_count++;
+                            set_clean(block);
+                        }
+                        block = block.prev;
+                    }
+                }
+            }
+            if (victims.isEmpty()) return false;
+
+            IOException error = null;
+            try {
+                write_sorted(copies);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                for (Block block : victims) {
+                    block.pin_count--;
+                    if (error != null) set_dirty(block);
+                }
+                if (error == null) flushed_pages += victims.size();
+            }
+            if (error != null) throw error;
+            return true;
+        }
+    }
+
+    /**
+     * @param page_id
+     * @return whether the page is in the cache, the block is not touched.
+     */
+    public synchronized boolean is_cached(int page_id) {
+        return blocks.containsKey(page_id);
+    }
+
+    public synchronized long get_hit_count() {
+        return hit_count;
+    }
+
+    /**
+     * @return number of pages read from file.
+     */
+    public synchronized long get_miss_count() {
+        return miss_count;
+    }
+
+    public synchronized void reset_stats() {
+        hit_count = miss_count = 0;
+        flushed_pages = stall_count = stall_nanos = 0;
+    }
+
+    public synchronized int get_dirty_count() {
+        return dirty_count;
+    }
+
+    /**
+     * @return number of pages written back by the background flusher.
+     */
+    public synchronized long get_flushed_pages() {
+        return flushed_pages;
+    }
+
+    /**
+     * @return number of evictions that had to write back a dirty victim on the caller's thread.
+     */
+    public synchronized long get_stall_count() {
+        return stall_count;
+    }
+
+    /**
+     * @return total time spent in the stalls of {@link #get_stall_count()}, in nanoseconds.
+     */
+    public synchronized long get_stall_nanos() {
+        return stall_nanos;
     }
 
     public static final class Block {
         Block next;
         Block prev;
+        BlockChain chain;
 
         int page_id;
-        byte[] data;
+        ByteBuffer data;
+        // the pool frame holding data, null if data is on heap
+        ByteBuffer frame;
         boolean updated = false;
+        int pin_count = 0;
+    }
+
+    /**
+     * zero-copy handle on the data of a pinned block.
+     */
+    private final class BlockHandle extends PageHandle {
+        private Block block;
+
+        BlockHandle(Block block) {
+            super(block.page_id, block.data.duplicate());
+            this.block = block;
+        }
+
+        @Override
+        protected void on_dirty() {
+            synchronized (LRUCache.this) {
+                set_dirty(block);
+            }
+        }
+
+        @Override
+        protected void on_unpin() {
+            synchronized (LRUCache.this) {
+                block.pin_count--;
+            }
+        }
     }
 
     public static final class BlockChain {
@@ -194,7 +634,19 @@ public class LRUCache implements Cache {
         }
 
 
+        /**
+         * @return the block nearest to the back that is not pinned, or null if all blocks are pinned.
+         */
+        public Block find_unpinned_back() {
+            Block block = tail.prev;
+            while (block != head && block.pin_count > 0) {
+                block = block.prev;
+            }
+            return block == head ? null : block;
+        }
+
         public void add_back(Block block) {
+            block.chain = this;
             block.next = tail;
             block.prev = tail.prev;
             tail.prev.next = block;
@@ -203,6 +655,7 @@ public class LRUCache implements Cache {
         }
 
         public void add_front(Block block) {
+            block.chain = this;
             block.next = head.next;
             block.prev = head;
             head.next.prev = block;
@@ -215,6 +668,7 @@ public class LRUCache implements Cache {
                 throw new IllegalArgumentException("cannot remove head or tail");
             block.prev.next = block.next;
             block.next.prev = block.prev;
+            block.chain = null;
             size--;
         }
 
@@ -0,0 +1,217 @@
+package jcav.filelayer;
+
+import jcav.filelayer.exception.DBRuntimeError;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Memory-mapped cache for DBFile.
+ *
+ * The database header (page 0) has its own small mapping, other pages are mapped with
+ * {@link FileChannel#map} in segments of SEGMENT_PAGES pages. Reads and writes go directly to the
+ * mapped memory, the OS page cache plays the role of cache blocks, so there is no eviction and no
+ * seek + read syscall on a miss.
+ *
+ * A segment is only mapped up to the pages in use. When a page beyond it is written, e.g. by
+ * {@link DBFile#alloc_page()}, the segment is remapped with at least doubled size, which also extends
+ * the file. So the file may be longer than page_count pages, the tail is filled with 0.
+ *
+ * Dirty segments are flushed with {@link MappedByteBuffer#force()} on {@link #sync()}.
+ *
+ * @see Cache
+ */
+public class MmapCache implements Cache {
+    public static final int SEGMENT_PAGES = 1 << 14;
+    private static final int MIN_MAPPED_PAGES = 64;
+    private static final int PAGE_SIZE_OFFSET = Headers.get_offset(DBFile.HEADER_DEFS, "page_size");
+
+    private DBFile db;
+    private FileChannel channel;
+    private Segment header;
+    private List<Segment> segments = new ArrayList<>();
+    private int page_size = 0;
+    private boolean file_grown = false;
+
+    public MmapCache(DBFile db) {
+        if (db == null) throw new IllegalArgumentException("db must not be null");
+
+        this.db = db;
+        try {
+            this.channel = ChannelIO.open(db.path);
+            this.header = new Segment(0);
+            map(header, DBFile.HEADER_SIZE);
+        } catch (IOException e) {
+            throw new DBRuntimeError("create cache error", e);
+        }
+    }
+
+    /**
+     * page size is read from the mapped database header directly, it is known once the header is written.
+     */
+    private int get_page_size() {
+        if (page_size == 0) {
+            byte m = header.buffer.get(PAGE_SIZE_OFFSET);
+            if (m == 0) throw new DBRuntimeError("database header is not initialized");
+            page_size = 1 << m;
+        }
+        return page_size;
+    }
+
+    private void map(Segment seg, long length) throws IOException {
+        if (seg.file_offset + length > channel.size()) file_grown = true;
+        seg.buffer = channel.map(FileChannel.MapMode.READ_WRITE, seg.file_offset, length);
+    }
+
+    /**
+     * @param page_id
+     * @param grow if true, extend the mapping and the file to hold the page.
+     * @return the segment containing page_id
+     */
+    private Segment get_segment(int page_id, boolean grow) {
+        if (page_id < 0) throw new IllegalArgumentException("page_id must be positive, page_id=" + page_id);
+        if (page_id == 0) return header;
+
+        int page_size = get_page_size();
+        int idx = (page_id - 1) / SEGMENT_PAGES;
+        while (segments.size() <= idx) {
+            long offset = DBFile.HEADER_SIZE + (long) segments.size() * SEGMENT_PAGES * page_size;
+            segments.add(new Segment(offset));
+        }
+
+        Segment seg = segments.get(idx);
+        long need = (long) ((page_id - 1) % SEGMENT_PAGES + 1) * page_size;
+        if (seg.buffer != null && seg.buffer.capacity() >= need) return seg;
+
+        try {
+            long length = Math.max(need, seg.buffer == null
+                    ? (long) MIN_MAPPED_PAGES * page_size
+                    : 2L * seg.buffer.capacity());
+            length = Math.min(length, (long) SEGMENT_PAGES * page_size);
+            if (!grow) {
+                long in_file = (channel.size() - seg.file_offset) / page_size * page_size;
+                if (in_file < need) {
+                    throw new DBRuntimeError("incomplete page read, page_id = " + page_id
+                            + ", page is beyond the end of file");
+                }
+                length = Math.min(length, in_file);
+            }
+            map(seg, length);
+        } catch (IOException e) {
+            throw new DBRuntimeError("IO map error", e);
+        }
+        return seg;
+    }
+
+    private int get_page_pos(int page_id) {
+        if (page_id == 0) return 0;
+        return ((page_id - 1) % SEGMENT_PAGES) * get_page_size();
+    }
+
+    private void check_range(int page_id, int pos, int length) {
+        int size = page_id == 0 ? DBFile.HEADER_SIZE : get_page_size();
+        if (pos < 0 || length < 0 || pos + length > size) {
+            throw new IllegalArgumentException("out of page bound, page_id = " + page_id
+                    + ", pos = " + pos + ", length = " + length);
+        }
+    }
+
+    @Override
+    public byte[] read(int page_id, int pos, int length) {
+        check_range(page_id, pos, length);
+        Segment seg = get_segment(page_id, false);
+        ByteBuffer buf = seg.buffer.duplicate();
+        buf.position(get_page_pos(page_id) + pos);
+        byte[] data = new byte[length];
+        buf.get(data);
+        return data;
+    }
+
+    @Override
+    public void read(int page_id, int pos, byte[] dst, int offset, int length) {
+        check_range(page_id, pos, length);
+        Segment seg = get_segment(page_id, false);
+        ByteBuffer buf = seg.buffer.duplicate();
+        buf.position(get_page_pos(page_id) + pos);
+        buf.get(dst, offset, length);
+    }
+
+    @Override
+    public int read_int(int page_id, int pos) {
+        check_range(page_id, pos, 4);
+        Segment seg = get_segment(page_id, false);
+        return seg.buffer.getInt(get_page_pos(page_id) + pos);
+    }
+
+    @Override
+    public void write(int page_id, int pos, byte[] data, int offset, int length) {
+        check_range(page_id, pos, length);
+        Segment seg = get_segment(page_id, true);
+        ByteBuffer buf = seg.buffer.duplicate();
+        buf.position(get_page_pos(page_id) + pos);
+        buf.put(data, offset, length);
+        seg.dirty = true;
+    }
+
+    @Override
+    public PageHandle pin(int page_id) {
+        Segment seg = get_segment(page_id, false);
+        int size = page_id == 0 ? DBFile.HEADER_SIZE : get_page_size();
+        ByteBuffer buf = seg.buffer.duplicate();
+        int start = get_page_pos(page_id);
+        buf.position(start);
+        buf.limit(start + size);
+        return new PageHandle(page_id, buf.slice()) {
+            @Override
+            protected void on_dirty() {
+                seg.dirty = true;
+            }
+
+            @Override
+            protected void on_unpin() {}
+        };
+    }
+
+    @Override
+    public void sync() throws IOException {
+        if (header.dirty) {
+            header.buffer.force();
+            header.dirty = false;
+        }
+        for (Segment seg : segments) {
+            if (seg.dirty) {
+                seg.buffer.force();
+                seg.dirty = false;
+            }
+        }
+        if (file_grown) {
+            // make the new file length durable
+            channel.force(true);
+            file_grown = false;
+        }
+    }
+
+    /**
+     * the mapped memory is released when the buffers are garbage collected.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        sync();
+        channel.close();
+    }
+
+    private static final class Segment {
+        long file_offset;
+        MappedByteBuffer buffer;
+        boolean dirty = false;
+
+        Segment(long file_offset) {
+            this.file_offset = file_offset;
+        }
+    }
+}
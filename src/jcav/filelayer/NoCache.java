@@ -2,25 +2,24 @@ package jcav.filelayer;
 
 import jcav.filelayer.exception.DBRuntimeError;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * no-cache cache policy, directly read and write on file.
- *
- * RandomAccessFile has some wierd behavior, preferring LRUCache.
+ * writes are not synchronous, they are made durable by {@link #sync()}.
  * @see LRUCache
  */
 public class NoCache implements Cache {
     private DBFile db;
-    private RandomAccessFile ram;
+    private FileChannel channel;
 
     public NoCache(DBFile db) {
         this.db = db;
         try {
-            ram = new RandomAccessFile(db.path, "rwd");
-        } catch (FileNotFoundException e) {
+            channel = ChannelIO.open(db.path);
+        } catch (IOException e) {
             throw new DBRuntimeError("create cache error", e);
         }
     }
@@ -30,8 +29,7 @@ public class NoCache implements Cache {
         try {
             long offset = db.get_page_offset(page_id) + pos;
             byte[] data = new byte[length];
-            ram.seek(offset);
-            int sz = ram.read(data);
+            int sz = ChannelIO.read_fully(channel, ByteBuffer.wrap(data), offset);
             if (sz != length) {
                 throw new IOException("incomplete read, expected " + length + " bytes, but got " + sz + " bytes");
             }
@@ -45,19 +43,26 @@ public class NoCache implements Cache {
     public void write(int page_id, int pos, byte[] data, int offset, int length) {
         try {
             long file_offset = db.get_page_offset(page_id) + pos;
-            ram.seek(file_offset);
-            ram.write(data, offset, length);
+            ChannelIO.write_fully(channel, ByteBuffer.wrap(data, offset, length), file_offset);
         } catch (IOException e) {
             throw new DBRuntimeError("IO write error", e);
         }
     }
 
+    /**
+     * there is nothing to pin, the handle is on a copy of the page.
+     */
+    @Override
+    public PageHandle pin(int page_id) {
+        return PageHandle.copy_of(this, page_id, read(page_id, 0, db.get_page_size(page_id)));
+    }
+
     @Override
     public void sync() throws IOException {
-        ram.getFD().sync();
+        channel.force(true);
     }
 
     public void close() throws IOException {
-        ram.close();
+        channel.close();
     }
 }
@@ -0,0 +1,86 @@
+package jcav.filelayer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory index of overflow chains, maps (head page, n) to the page id of the n-th page in the chain,
+ * so positioning in an overflow chain doesn't need to walk it from the head.
+ *
+ * An overflow chain only grows at its tail, so the indexed page list is always a prefix of the real chain
+ * and is extended lazily. It becomes stale only when the chain is released or a transaction rolls back,
+ * see {@link #invalidate(int)} and {@link #clear()}.
+ *
+ * At most max_chains chains are indexed, the least recently used one is dropped first.
+ * Methods are synchronized, so concurrent readers can share the index.
+ *
+ * @see OverflowPage
+ */
+public class OverflowIndex {
+    public static final int DEFAULT_MAX_CHAINS = 1024;
+
+    private DBFile db;
+    private Map<Integer, List<Integer>> chains;
+
+    public OverflowIndex(DBFile db, int max_chains) {
+        if (db == null) throw new IllegalArgumentException("db must not be null");
+        if (max_chains <= 0) throw new IllegalArgumentException("max_chains must be positive");
+
+        this.db = db;
+        this.chains = new LinkedHashMap<Integer, List<Integer>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, List<Integer>> eldest) {
+                return size() > max_chains;
+            }
+        };
+    }
+
+    /**
+     * get the page id of the n-th page (0-based) of the chain starting at head.
+     *
+     * @param head
+     * @param n
+     * @param extend if true, allocate new overflow pages when the chain is shorter than n + 1 pages.
+     * @return 0 if the chain is shorter than n + 1 pages and extend is false.
+     */
+    public synchronized int get_page(int head, int n, boolean extend) {
+        if (n < 0) throw new IllegalArgumentException("n must be >= 0, got " + n);
+
+        List<Integer> pages = chains.get(head);
+        if (pages == null) {
+            pages = new ArrayList<>();
+            pages.add(head);
+            chains.put(head, pages);
+        }
+
+        while (pages.size() <= n) {
+            OverflowPage tail = new OverflowPage(pages.get(pages.size() - 1), db);
+            int next = tail.get_next();
+            if (next == 0) {
+                if (!extend) return 0;
+                next = db.alloc_page();
+                OverflowPage.create(next, db);
+                tail.set_next(next);
+            }
+            pages.add(next);
+        }
+        return pages.get(n);
+    }
+
+    /**
+     * forget the chain starting at head.
+     * @param head
+     */
+    public synchronized void invalidate(int head) {
+        chains.remove(head);
+    }
+
+    /**
+     * forget all chains.
+     */
+    public synchronized void clear() {
+        chains.clear();
+    }
+}
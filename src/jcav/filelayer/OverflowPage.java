@@ -18,25 +18,27 @@ public class OverflowPage extends Page {
             new FieldDef(1, "type", PageType.OVERFLOW),
             new FieldDef(4, "next", 0)
     );
+    public static final HeaderLayout HEADER_LAYOUT = HeaderLayout.compile(HEADER_DEFS);
+    private static final HeaderLayout.Field NEXT = HEADER_LAYOUT.field("next");
 
     public OverflowPage(int page_id, DBFile owner) {
         super(page_id, owner);
-        headers = new Headers(HEADER_DEFS, page_id, owner);
+        headers = new Headers(HEADER_LAYOUT, page_id, owner);
     }
 
     public static OverflowPage create(int page_id, DBFile owner) {
-        Headers headers = new Headers(HEADER_DEFS, page_id, owner);
+        Headers headers = new Headers(HEADER_LAYOUT, page_id, owner);
         headers.set_to_default();
         OverflowPage page = new OverflowPage(page_id, owner);
         return page;
     }
 
     public void set_next(int next) {
-        headers.set("next", next);
+        NEXT.write_int(owner, page_id, next);
     }
 
     public int get_next() {
-        return headers.get("next").to_int();
+        return NEXT.read_int(owner, page_id);
     }
 
 
@@ -48,6 +50,7 @@ public class OverflowPage extends Page {
      * Get an input stream from the specified position. If the position is
      * beyond the overflow chain, return null.
      * This stream will automatically skip page header.
+     * The starting page is looked up in {@link OverflowIndex}, no chain walk is needed.
      * @param pos
      * @return
      */
@@ -57,15 +60,12 @@ public class OverflowPage extends Page {
         }
 
         int available_size = get_available_size();
-        OverflowPage page = this;
-        while (pos >= available_size) {
-            pos -= available_size;
-            int next_page_id = page.get_next();
-            if (next_page_id == 0) {
-                return null;
-            }
-            page = new OverflowPage(next_page_id, page.owner);
+        int page_id = owner.overflow_index.get_page(this.page_id, (int) (pos / available_size), false);
+        if (page_id == 0) {
+            return null;
         }
+        OverflowPage page = page_id == this.page_id ? this : new OverflowPage(page_id, owner);
+        pos %= available_size;
 
         InputStream in = new InputStream(page);
         in.pos = (int) pos;
@@ -76,6 +76,7 @@ public class OverflowPage extends Page {
      * Get an output stream from the specified position. If the position is
      * beyond the overflow chain, allocate new pages.
      * This stream will automatically skip page header.
+     * The starting page is looked up in {@link OverflowIndex}, no chain walk is needed.
      * @param pos
      * @return
      */
@@ -85,16 +86,9 @@ public class OverflowPage extends Page {
         }
 
         int available_size = get_available_size();
-        OverflowPage page = this;
-        while (pos >= available_size) {
-            pos -= available_size;
-            int next_page_id = page.get_next();
-            if (next_page_id == 0) {
-                next_page_id = owner.alloc_page();
-                OverflowPage.create(next_page_id, owner);
-            }
-            page = new OverflowPage(next_page_id, page.owner);
-        }
+        int page_id = owner.overflow_index.get_page(this.page_id, (int) (pos / available_size), true);
+        OverflowPage page = page_id == this.page_id ? this : new OverflowPage(page_id, owner);
+        pos %= available_size;
 
         OutputStream out = new OutputStream(page);
         out.pos = (int) pos;
@@ -123,37 +117,50 @@ public class OverflowPage extends Page {
             header_size = root_page.headers.get_total_length();
         }
 
+        /**
+         * move to the next page of the chain if the current page is full,
+         * allocate a new overflow page if there is no next page.
+         */
+        private void next_page_if_full() {
+            if (pos < available_size) return;
+            if(current_page.get_next() == 0) {
+                int new_page_id = root_page.owner.alloc_page();
+                current_page.set_next(new_page_id);
+                OverflowPage.create(new_page_id, root_page.owner);
+            }
+            int next_page_id = current_page.get_next();
+            current_page = new OverflowPage(next_page_id, root_page.owner);
+            pos = 0;
+        }
+
         @Override
         public void write(int b)  {
-            if (pos == available_size) {
-                if(current_page.get_next() == 0) {
-                    int new_page_id = root_page.owner.alloc_page();
-                    current_page.set_next(new_page_id);
-                    OverflowPage.create(new_page_id, root_page.owner);
-                }
-                int next_page_id = current_page.get_next();
-                current_page = new OverflowPage(next_page_id, root_page.owner);
-                pos = 0;
-            }
+            next_page_if_full();
             current_page.write(header_size + pos, new byte[] {(byte) b});
             pos++;
         }
 
         @Override
         public void write(byte[] b) {
-            try {
-                super.write(b);
-            } catch (IOException e) {
-                throw new RuntimeException("no sense to happen", e);
-            }
+            write(b, 0, b.length);
         }
 
+        /**
+         * write the in-page span of each touched page in one call, instead of
+         * one {@link Page#write(int, byte[])} per byte.
+         */
         @Override
         public void write(byte[] b, int off, int len) {
-            try {
-                super.write(b, off, len);
-            } catch (IOException e) {
-                throw new RuntimeException("no sense to happen", e);
+            if (off < 0 || len < 0 || off + len > b.length) {
+                throw new IndexOutOfBoundsException("off = " + off + ", len = " + len + ", b.length = " + b.length);
+            }
+            while (len > 0) {
+                next_page_if_full();
+                int n = Math.min(len, available_size - pos);
+                current_page.write(header_size + pos, b, off, n);
+                pos += n;
+                off += n;
+                len -= n;
             }
         }
 
@@ -179,15 +186,25 @@ public class OverflowPage extends Page {
             header_size = root_page.headers.get_total_length();
         }
 
+        /**
+         * move to the next page of the chain if the current page is exhausted.
+         * @return false if there is no more page.
+         */
+        private boolean next_page_if_exhausted() {
+            if (pos < available_size) return true;
+            int next_page_id = current_page.get_next();
+            if (next_page_id == 0) {
+                return false;
+            }
+            current_page = new OverflowPage(next_page_id, root_page.owner);
+            pos = 0;
+            return true;
+        }
+
         @Override
         public int read() {
-            if (pos == available_size) {
-                int next_page_id = current_page.get_next();
-                if (next_page_id == 0) {
-                    return -1;
-                }
-                current_page = new OverflowPage(next_page_id, root_page.owner);
-                pos = 0;
+            if (!next_page_if_exhausted()) {
+                return -1;
             }
             byte b = current_page.read(header_size + pos, 1)[0];
             int v = b & 0xff; // 大坑，不能直接 (int)b，否则会返回负数，导致 EOF 判断失效
@@ -203,20 +220,31 @@ public class OverflowPage extends Page {
 
         @Override
         public int read(byte[] b) {
-            try {
-                return super.read(b);
-            } catch (IOException e) {
-                throw new RuntimeException("no sense to happen", e);
-            }
+            return read(b, 0, b.length);
         }
 
+        /**
+         * read the in-page span of each touched page in one call, instead of
+         * one {@link Page#read(int, int)} per byte.
+         */
         @Override
         public int read(byte[] b, int off, int len) {
-            try {
-                return super.read(b, off, len);
-            } catch (IOException e) {
-                throw new RuntimeException("no sense to happen", e);
+            if (off < 0 || len < 0 || off + len > b.length) {
+                throw new IndexOutOfBoundsException("off = " + off + ", len = " + len + ", b.length = " + b.length);
+            }
+            if (len == 0) return 0;
+
+            int total = 0;
+            while (len > 0 && next_page_if_exhausted()) {
+                int n = Math.min(len, available_size - pos);
+                byte[] data = current_page.read(header_size + pos, n);
+                System.arraycopy(data, 0, b, off, n);
+                pos += n;
+                off += n;
+                len -= n;
+                total += n;
             }
+            return total == 0 ? -1 : total;
         }
 
         @Override
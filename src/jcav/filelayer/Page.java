@@ -12,6 +12,8 @@ public class Page {
     public static final List<FieldDef> HEADER_DEFS = Arrays.asList(
             new FieldDef(1, "type", PageType.NULL)
     );
+    public static final HeaderLayout HEADER_LAYOUT = HeaderLayout.compile(HEADER_DEFS);
+    protected static final HeaderLayout.Field TYPE = HEADER_LAYOUT.field("type");
 
     protected int page_id;
     protected DBFile owner;
@@ -20,7 +22,7 @@ public class Page {
     public Page(int page_id, DBFile owner) {
         this.page_id = page_id;
         this.owner = owner;
-        this.headers = new Headers(HEADER_DEFS, page_id, owner);
+        this.headers = new Headers(HEADER_LAYOUT, page_id, owner);
     }
 
     public int get_page_header_size() {
@@ -29,7 +31,7 @@ public class Page {
 
     public int get_page_id() { return page_id; }
 
-    public byte get_page_type() { return headers.get("type").as_byte(); }
+    public byte get_page_type() { return TYPE.read_byte(owner, page_id); }
 
     public Headers get_headers() { return headers; }
 
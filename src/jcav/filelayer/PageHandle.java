@@ -0,0 +1,153 @@
+package jcav.filelayer;
+
+import jcav.filelayer.exception.DBRuntimeError;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * A pinned page in the cache. The page data is accessed through a {@link ByteBuffer} without copying, and the
+ * page won't be evicted from the cache until {@link #unpin()} is called.
+ *
+ * ATTENTION: buffers returned by this class share their position and limit, always use the absolute get/put
+ * methods, such as {@link ByteBuffer#getInt(int)}.
+ *
+ * Use it with try-with-resources to make sure the page is unpinned:
+ * <pre>
+ *     try (PageHandle h = db.pin(page_id)) {
+ *         byte type = h.get_buffer().get(0);
+ *     }
+ * </pre>
+ *
+ * @see Cache#pin(int)
+ * @see DBFile#pin(int)
+ */
+public abstract class PageHandle implements Closeable {
+    protected int page_id;
+    protected ByteBuffer data;
+    private ByteBuffer view;
+    private boolean pinned = true;
+
+    /**
+     * @param page_id
+     * @param data the whole page
+     */
+    protected PageHandle(int page_id, ByteBuffer data) {
+        this.page_id = page_id;
+        this.data = data;
+        this.view = data.asReadOnlyBuffer();
+    }
+
+    public int get_page_id() {
+        return page_id;
+    }
+
+    public boolean is_pinned() {
+        return pinned;
+    }
+
+    /**
+     * @return a read-only view of the whole page.
+     */
+    public ByteBuffer get_buffer() {
+        check_pinned();
+        return view;
+    }
+
+    /**
+     * remember to call {@link #mark_dirty()} after modification.
+     * @return a writable view of the whole page.
+     * @throws DBRuntimeError if the handle is read-only.
+     */
+    public ByteBuffer get_writable_buffer() {
+        check_pinned();
+        return data;
+    }
+
+    /**
+     * tell the cache that the page is modified through {@link #get_writable_buffer()}.
+     */
+    public void mark_dirty() {
+        check_pinned();
+        on_dirty();
+    }
+
+    /**
+     * release the page, the handle and its buffers must not be used after this.
+     * calling it more than once has no effect.
+     */
+    public void unpin() {
+        if (!pinned) return;
+        pinned = false;
+        on_unpin();
+    }
+
+    @Override
+    public void close() {
+        unpin();
+    }
+
+    protected abstract void on_dirty();
+
+    protected abstract void on_unpin();
+
+    private void check_pinned() {
+        if (!pinned) throw new DBRuntimeError("page " + page_id + " is already unpinned");
+    }
+
+    ////////////////////////////////////////
+    // handle wrappers
+    ////////////////////////////////////////
+
+    /**
+     * wrap a handle so that it can only be read.
+     *
+     * @param handle
+     * @param page_id the page id reported by the wrapper, which may differ from the wrapped one,
+     *                e.g. when the page is redirected to WAL in a transaction.
+     * @return
+     */
+    public static PageHandle read_only(PageHandle handle, int page_id) {
+        return new PageHandle(page_id, handle.data) {
+            @Override
+            public ByteBuffer get_writable_buffer() {
+                throw new DBRuntimeError("page handle of " + this.page_id + " is read-only");
+            }
+
+            @Override
+            protected void on_dirty() {
+                throw new DBRuntimeError("page handle of " + this.page_id + " is read-only");
+            }
+
+            @Override
+            protected void on_unpin() {
+                handle.unpin();
+            }
+        };
+    }
+
+    /**
+     * a handle on a private copy of the page, for caches that can't expose their storage.
+     * if marked dirty, the whole page is written back to the cache on unpin.
+     *
+     * @param cache
+     * @param page_id
+     * @param copy a copy of the whole page
+     * @return
+     */
+    public static PageHandle copy_of(Cache cache, int page_id, byte[] copy) {
+        return new PageHandle(page_id, ByteBuffer.wrap(copy)) {
+            private boolean dirty = false;
+
+            @Override
+            protected void on_dirty() {
+                dirty = true;
+            }
+
+            @Override
+            protected void on_unpin() {
+                if (dirty) cache.write(this.page_id, 0, copy);
+            }
+        };
+    }
+}
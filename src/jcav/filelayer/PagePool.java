@@ -0,0 +1,73 @@
+package jcav.filelayer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A fixed arena of page frames in off-heap memory, allocated once as direct {@link ByteBuffer} slabs.
+ * Frames are recycled with {@link #take()} and {@link #give_back(ByteBuffer)}, so caching pages
+ * doesn't put long-lived arrays on the heap.
+ *
+ * @see LRUCache#LRUCache(DBFile, PagePool)
+ */
+public class PagePool {
+    public static final int MAX_SLAB_SIZE = 1 << 26;
+
+    private int frame_size;
+    private int frame_count;
+    private Deque<ByteBuffer> free_frames = new ArrayDeque<>();
+
+    /**
+     * @param frame_size size of a frame, usually the page size
+     * @param budget_bytes memory budget of the arena, rounded down to frames
+     */
+    public PagePool(int frame_size, long budget_bytes) {
+        if (frame_size <= 0) throw new IllegalArgumentException("frame_size must be positive");
+        if (budget_bytes < frame_size)
+            throw new IllegalArgumentException("budget_bytes must hold at least one frame");
+
+        this.frame_size = frame_size;
+        this.frame_count = (int) Math.min(Integer.MAX_VALUE, budget_bytes / frame_size);
+
+        int frames_per_slab = Math.max(1, MAX_SLAB_SIZE / frame_size);
+        int left = frame_count;
+        while (left > 0) {
+            int n = Math.min(left, frames_per_slab);
+            ByteBuffer slab = ByteBuffer.allocateDirect(n * frame_size);
+            for (int i = 0; i < n; i++) {
+                slab.limit((i + 1) * frame_size);
+                slab.position(i * frame_size);
+                free_frames.add(slab.slice());
+            }
+            left -= n;
+        }
+    }
+
+    public int get_frame_size() {
+        return frame_size;
+    }
+
+    public int get_frame_count() {
+        return frame_count;
+    }
+
+    public int get_free_count() {
+        return free_frames.size();
+    }
+
+    /**
+     * @return a free frame, or null if all frames are in use. the content is not cleared.
+     */
+    public ByteBuffer take() {
+        return free_frames.poll();
+    }
+
+    /**
+     * @param frame a frame returned by {@link #take()}
+     */
+    public void give_back(ByteBuffer frame) {
+        frame.clear();
+        free_frames.push(frame);
+    }
+}
@@ -11,6 +11,7 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class Transaction implements Closeable {
     public static final int W_ROLLBACK = 0;
@@ -34,8 +35,9 @@ public class Transaction implements Closeable {
         } catch (IOException e) {
             throw new DBRuntimeError("create WAL error", e);
         }
-        wal_db.headers.field_defs = new ArrayList<>(db.headers.field_defs);
-        wal_db.headers.field_defs.add(STATE_DEF);
+        List<FieldDef> defs = new ArrayList<>(db.headers.field_defs);
+        defs.add(STATE_DEF);
+        wal_db.headers = new Headers(defs, 0, wal_db);
         wal_db.set_cache(new LRUCache(
                 wal_db,
                 wal_db.get_headers().get("cache_count").to_int()
@@ -145,22 +147,43 @@ public class Transaction implements Closeable {
         return data;
     }
 
+    /**
+     * pin the page that holds the newest data of page_id, which is either in WAL or in the database.
+     * @param page_id
+     * @return
+     */
+    public PageHandle pin(int page_id) {
+        _check();
+        int ndp = get_ndp(page_id);
+        if (ndp == 0) {
+            return db.cache.pin(page_id);
+        } else {
+            return wal_db.cache.pin(ndp);
+        }
+    }
+
     public void write_back() {
         if(wal_db.headers.get("w_state").to_int() != W_COMMITTING) {
             throw new DBRuntimeError("write back is not allowed before committing");
         }
-        records.foreach_leaf(leaf -> {
-            int count = leaf.get_slot_count();
-            for (int i = 0;i < count;i++) {
-                Payload key = leaf.get_key(i);
-                Payload value = leaf.get_value(i);
-                int page_id = key.get_obj(0).as_int();
-//                int odp = value.get_obj(0).as_int();
-                int ndp = value.get_obj(1).as_int();
-                byte[] new_data = wal_db.read(ndp, 0, db.get_page_size(page_id));
-                db.cache.write(page_id, 0, new_data);
-            }
-        });
+        // each page is written once, don't let it evict the hot pages of db
+        boolean old = db.cache.set_use_once(true);
+        try {
+            records.foreach_leaf(leaf -> {
+                int count = leaf.get_slot_count();
+                for (int i = 0;i < count;i++) {
+                    Payload key = leaf.get_key(i);
+                    Payload value = leaf.get_value(i);
+                    int page_id = key.get_obj(0).as_int();
+//                    int odp = value.get_obj(0).as_int();
+                    int ndp = value.get_obj(1).as_int();
+                    byte[] new_data = wal_db.read(ndp, 0, db.get_page_size(page_id));
+                    db.cache.write(page_id, 0, new_data);
+                }
+            });
+        } finally {
+            db.cache.set_use_once(old);
+        }
     }
 
     protected void recover() {
@@ -180,6 +203,10 @@ public class Transaction implements Closeable {
             throw new DBRuntimeError("unable to commit a committed transaction");
         }
         try {
+            // the new pages and records in the WAL must be durable before the state says committing,
+            // a sync doesn't order its writes, so a committing state could reach the disk first
+            // and recovery would replay pages that never did
+            wal_db.sync();
             wal_db.headers.set("w_state", W_COMMITTING);
             wal_db._readonly = true;
             wal_db.sync();
@@ -187,6 +214,12 @@ public class Transaction implements Closeable {
             throw new DBRuntimeError("commit error", e);
         }
         write_back();
+        try {
+            // the WAL is the only durable copy of the new data until now
+            db.cache.sync();
+        } catch (IOException e) {
+            throw new DBRuntimeError("commit error", e);
+        }
         is_committed = true;
         del_wal();
     }
@@ -196,6 +229,9 @@ public class Transaction implements Closeable {
         if (is_committed) {
             throw new DBRuntimeError("unable to rollback a committed transaction");
         }
+        // overflow chains and nodes may have changed in the discarded pages
+        db.overflow_index.clear();
+        db.node_cache.clear();
         del_wal();
     }
 
@@ -0,0 +1,109 @@
+package jcav.filelayer;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Scan resistant cache for DBFile, using the 2Q policy.
+ *
+ * A page read for the first time goes into the FIFO queue a1in. Evicted from a1in, its page id is
+ * remembered in the ghost queue a1out. A page read again while in a1out is considered hot and goes into
+ * the LRU queue am. So a page referenced only once, e.g. a leaf in a full scan, never reaches am, and
+ * the interior nodes and schema pages in am survive the scan.
+ *
+ * Blocks are evicted from a1in when it is larger than kin, otherwise from am.
+ *
+ * In use-once mode, see {@link #set_use_once(boolean)}, new pages go into their own FIFO queue once, hits
+ * don't move blocks between queues, and once is recycled as soon as it holds kin blocks. So a scan takes
+ * at most kin blocks from the other queues. Blocks in once are the first victims after the scan, they are
+ * not remembered in a1out, and a hit on them out of use-once mode moves them to a1in.
+ *
+ * @see LRUCache
+ */
+public class TwoQCache extends LRUCache {
+    private BlockChain once = new BlockChain();
+    private BlockChain a1in = new BlockChain();
+    private BlockChain am = new BlockChain();
+    private Set<Integer> a1out = new LinkedHashSet<>();
+    private int kin;
+    private int kout;
+    private boolean use_once = false;
+
+    /**
+     * kin = max_cache_size / 4, kout = max_cache_size / 2.
+     *
+     * @param db
+     * @param max_cache_size must not be less than 8
+     */
+    public TwoQCache(DBFile db, int max_cache_size) {
+        super(db, max_cache_size);
+        if (max_cache_size < 8)
+            throw new IllegalArgumentException("max_cache_size must not be less than 8");
+
+        this.kin = max_cache_size / 4;
+        this.kout = max_cache_size / 2;
+    }
+
+    @Override
+    public synchronized boolean set_use_once(boolean use_once) {
+        boolean old = this.use_once;
+        this.use_once = use_once;
+        return old;
+    }
+
+    @Override
+    protected void on_access(Block block) {
+        if (use_once) return;
+        if (block.chain == am) {
+            am.remove(block);
+            am.add_front(block);
+        } else if (block.chain == once) {
+            once.remove(block);
+            a1in.add_front(block);
+        }
+        // a hit in a1in is a correlated reference, the page stays where it is
+    }
+
+    @Override
+    protected void on_load(Block block) {
+        if (use_once) {
+            once.add_front(block);
+        } else if (a1out.remove(block.page_id)) {
+            am.add_front(block);
+        } else {
+            a1in.add_front(block);
+        }
+    }
+
+    @Override
+    protected void on_evict(Block block) {
+        if (block.chain != a1in) return;
+
+        a1out.add(block.page_id);
+        if (a1out.size() > kout) {
+            a1out.remove(a1out.iterator().next());
+        }
+    }
+
+    @Override
+    protected List<BlockChain> eviction_order() {
+        return Arrays.asList(once, a1in, am);
+    }
+
+    @Override
+    protected Block find_victim() {
+        Block victim = null;
+        if (!use_once || once.size >= kin) {
+            victim = once.find_unpinned_back();
+        }
+        if (victim == null && a1in.size > kin) {
+            victim = a1in.find_unpinned_back();
+        }
+        if (victim == null) victim = am.find_unpinned_back();
+        if (victim == null) victim = a1in.find_unpinned_back();
+        if (victim == null) victim = once.find_unpinned_back();
+        return victim;
+    }
+}
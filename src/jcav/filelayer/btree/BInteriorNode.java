@@ -1,7 +1,9 @@
 package jcav.filelayer.btree;
 
+import jcav.filelayer.Bytes;
 import jcav.filelayer.DBFile;
 import jcav.filelayer.FieldDef;
+import jcav.filelayer.HeaderLayout;
 import jcav.filelayer.PageType;
 import jcav.filelayer.exception.DBRuntimeError;
 
@@ -11,27 +13,30 @@ public class BInteriorNode extends BTreeNode {
     public static List<FieldDef> BASIC_HDR_DEFS = new ArrayList(){{
         add(new FieldDef(1, "type", PageType.BTREE_INTERIOR));
         add(new FieldDef(4, "hdr_size", 0));
-        add(new FieldDef(4, "father", 0));
+        add(new FieldDef(4, "prefix_size", 0));
         add(new FieldDef(4, "cell_size", 0));
-        add(new FieldDef(4, "cell_count", 0));
-        add(new FieldDef(4, "free_cell", -1));
+        add(new FieldDef(4, "cell_top", 0));
+        add(new FieldDef(4, "frag_size", 0));
         add(new FieldDef(4, "key_count", 0));
         add(new FieldDef(4, "value_count", 0));
         //                                                                  Interior       Leaf
-        add(new FieldDef(4, "total", 0));      //     total          overflow_page
+        add(new FieldDef(4, "tail_total", 0)); //     tail_total     overflow_page
         add(new FieldDef(4, "tail_child", 0)); //     tail_child     left_sibling
         add(new FieldDef(4, "reserved3", 0));  //     not used       right_sibling
         // key_types, int[]
         // value_types, int[]
 
-        // slot_capacity, int
-        // slot_count, int, meaningful slot value count in slots
-        // slots, int[], fixed length specified by slot_capacity
+        // slot_count, int
+        // slots, u16[], cell offsets in key order, grow up from hdr_size
     }};
 
+    private static final HeaderLayout.Field TAIL_CHILD = HeaderLayout.compile(BASIC_HDR_DEFS).field("tail_child");
+    private static final HeaderLayout.Field TAIL_TOTAL = HeaderLayout.compile(BASIC_HDR_DEFS).field("tail_total");
+    // offset of child_total in a cell, the same on page and in memory
+    private static final int CHILD_TOTAL = 5;
+
     public BInteriorNode(int page_id, DBFile owner) {
-        super(page_id, owner);
-        construct_headers(BASIC_HDR_DEFS);
+        super(page_id, owner, BASIC_HDR_DEFS);
         if (get_page_type() != PageType.BTREE_INTERIOR) {
             throw new DBRuntimeError("page type mismatch, " +
                     "expect " + PageType.to_string(PageType.BTREE_LEAF)
@@ -62,21 +67,13 @@ public class BInteriorNode extends BTreeNode {
 
     /**
      * this method will not corrupt the consistence between slot_count and slots.
-     * the data of cell are wrote to database.
+     * the cell is allocated and written to database, its cell_id is set.
      *
      * @param slot_id
      * @param cell
      */
     protected void add_slot_cell(int slot_id, InteriorCell cell) {
-        if (get_slot_count() + 1 > get_slot_capacity()) {
-            throw new DBRuntimeError("no more slot available");
-        }
-
-        List<Integer> slots = get_slots();
-        slots.add(slot_id, cell.cell_id);
-        set_slots(slots);
-
-        write_cell_data(cell.cell_id, cell.data);
+        cell.cell_id = add_cell(slot_id, cell.data);
     }
 
     /**
@@ -104,11 +101,11 @@ public class BInteriorNode extends BTreeNode {
     /////////////////////////////////////////////////////
 
     public int get_tail_child() {
-        return headers.get("tail_child").to_int();
+        return TAIL_CHILD.read_int(owner, page_id);
     }
 
     protected void set_tail_child(int page_id) {
-        headers.set("tail_child", page_id);
+        TAIL_CHILD.write_int(owner, this.page_id, page_id);
     }
 
     /**
@@ -123,10 +120,9 @@ public class BInteriorNode extends BTreeNode {
         }
 
         if (slot_id < slot_count) {
-            int cell_id = get_slot(slot_id);
             InteriorCell cell = get_slot_cell(slot_id);
             cell.set_child(page_id);
-            write_cell_data(cell_id, cell.data);
+            replace_cell(slot_id, cell.data);
         } else {
             set_tail_child(page_id);
         }
@@ -157,6 +153,56 @@ public class BInteriorNode extends BTreeNode {
         return children;
     }
 
+    /**
+     * @param slot_id if slot_id = slot_count, the total of the tail child
+     * @return number of keys under the child
+     */
+    public int get_child_total(int slot_id) {
+        int slot_count = get_slot_count();
+
+        if (slot_id < 0 || slot_id > slot_count) {
+            throw new RuntimeException("slot_id out of range");
+        }
+
+        if (slot_id < slot_count) {
+            return owner.read_int(page_id, get_slot(slot_id) + CHILD_TOTAL);
+        } else {
+            return TAIL_TOTAL.read_int(owner, page_id);
+        }
+    }
+
+    /**
+     * the total is written in place, the cell is not moved.
+     * @param slot_id if slot_id = slot_count, set the total of the tail child
+     * @param total
+     */
+    protected void set_child_total(int slot_id, int total) {
+        int slot_count = get_slot_count();
+
+        if (slot_id < 0 || slot_id > slot_count) {
+            throw new RuntimeException("slot_id out of range");
+        }
+
+        if (slot_id < slot_count) {
+            write(get_slot(slot_id) + CHILD_TOTAL, Bytes.from_int(total));
+        } else {
+            TAIL_TOTAL.write_int(owner, page_id, total);
+        }
+    }
+
+    protected void add_child_total(int slot_id, int delta) {
+        set_child_total(slot_id, get_child_total(slot_id) + delta);
+    }
+
+    public int[] get_child_totals() {
+        int slot_count = get_slot_count();
+        int[] totals = new int[slot_count + 1];
+        for (int i = 0; i <= slot_count; i++) {
+            totals[i] = get_child_total(i);
+        }
+        return totals;
+    }
+
     /**
      * if slot_id == slot_count, append a new slot
      * @param slot_id
@@ -170,17 +216,15 @@ public class BInteriorNode extends BTreeNode {
         }
 
         if (slot_id == slot_count) {
-            int cell_id = allocate_cell();
-            InteriorCell cell = InteriorCell.create(cell_id, get_key_types());
+            InteriorCell cell = InteriorCell.create(-1, get_key_types());
             cell.set_key(key);
             add_slot_cell(slot_id, cell);
             return;
         }
 
-        int cell_id = get_slot(slot_id);
         InteriorCell cell = get_slot_cell(slot_id);
         cell.set_key(key);
-        write_cell_data(cell_id, cell.data);
+        replace_cell(slot_id, cell.data);
     }
 
     public Payload get_key(int slot_id) {
@@ -212,8 +256,8 @@ public class BInteriorNode extends BTreeNode {
     //////////////////////////////////////////////////
 
     protected void insert(BPseudoInterior pseudo) {
-        if (get_slot_count() + 1 > get_slot_capacity()) {
-            throw new DBRuntimeError("no more slot available");
+        if (!has_room(pseudo.key)) {
+            throw new DBRuntimeError("no room for the key");
         }
 
         Payload key = pseudo.key;
@@ -225,85 +269,115 @@ public class BInteriorNode extends BTreeNode {
 
         idx = -(idx+1);
 
-        int cell_id = allocate_cell();
-        InteriorCell cell = InteriorCell.create(cell_id, get_key_types());
+        // the split child at idx becomes left, the new cell before it, and right takes its place
+        InteriorCell cell = InteriorCell.create(-1, get_key_types());
         cell.set_key(key);
+        cell.set_child(pseudo.left.get_page_id());
+        cell.set_child_total(pseudo.left_total);
         add_slot_cell(idx, cell);
 
-        set_child(idx, pseudo.left.get_page_id());
         set_child(idx+1, pseudo.right.get_page_id());
-        pseudo.left.set_father(this.page_id);
-        pseudo.right.set_father(this.page_id);
-
-        update_total();
+        set_child_total(idx+1, pseudo.right_total);
+        // the keys under this node are not changed by the split of a child, nor is the total
     }
 
-    private void update_total() {
-        int total = 0;
-        for (int i = 0; i <= get_slot_count(); i++) {
-            int child_id = get_child(i);
-            BTreeNode child = new BTreeNode(child_id, owner);
-            total += child.get_total();
+    /**
+     * fill an empty interior node in one write, see {@link BulkLoader}.
+     *
+     * @param keys keys[i] is the largest key under children[i]
+     * @param children one more than keys, the last one is the tail child
+     * @param totals totals[i] is the number of keys under children[i]
+     */
+    protected void fill(List<Payload> keys, List<Integer> children, List<Integer> totals) {
+        int count = keys.size();
+        if (children.size() != count + 1 || totals.size() != count + 1) {
+            throw new IllegalArgumentException("expect " + (count + 1) + " children and totals, " +
+                    "got " + children.size() + " and " + totals.size());
         }
-        set_total(total);
+
+        int[] key_types = get_key_types();
+        List<byte[]> cells = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            InteriorCell cell = InteriorCell.create(-1, key_types);
+            cell.set_key(keys.get(i));
+            cell.set_child(children.get(i));
+            cell.set_child_total(totals.get(i));
+            cells.add(cell.data);
+        }
+        fill_cells(cells);
+        set_tail_child(children.get(count));
+        set_child_total(count, totals.get(count));
     }
 
-    protected SplitResult split() {
+    /**
+     * split this full node in two halves of about the same bytes and insert the middle key into the father, which is split first
+     * if it is full. only this node, the new right node and the fathers are written, children are
+     * not touched, their totals move with the cells. the halves are moved off balance if the half taking the key to insert would
+     * have no room for it.
+     *
+     * @param ancestors nodes from the root to the father of this node, empty if this node is the root
+     * @param insert_key the key to insert after the split
+     * @param append split for an append, see {@link BLeafNode#split(List, Payload, boolean)}. the last key
+     *               goes up and the right node keeps only the tail child
+     * @return
+     */
+    protected SplitResult split(List<BTreeNode> ancestors, Payload insert_key, boolean append) {
+        int old_count = get_slot_count();
+        List<Payload> keys = get_keys();
+        int mid = old_count - 1;
+        if (!append) {
+            mid = split_point(get_cell_spaces(keys), 1, old_count - 2);
+            mid = fit_split_point(keys, mid, insert_key, false, 0, old_count - 1);
+        }
+        Payload key = keys.get(mid);
+
+        // make room in the father first, this node goes to the half of the father covering its keys
         int root_page = 0;
-        int father_page = get_father();
-        if (father_page != 0) {
-            BInteriorNode father = new BInteriorNode(father_page, owner);
-            if (father.get_slot_count() + 1 > father.get_slot_capacity()) {
-                root_page = father.split().root_page_id;
+        BInteriorNode father = null;
+        if (!ancestors.isEmpty()) {
+            father = new BInteriorNode(ancestors.get(ancestors.size() - 1).get_page_id(), owner);
+            if (!father.has_room(key)) {
+                SplitResult result = father.split(ancestors.subList(0, ancestors.size() - 1), key, append);
+                root_page = result.root_page_id;
+                father = (BInteriorNode) (key.compareTo(result.key) <= 0 ? result.left : result.right);
             }
         }
 
+        // make right node
+        List<Integer> children = new ArrayList<>();
+        List<Integer> totals = new ArrayList<>();
+        int left_total = 0;
+        int right_total = 0;
+        for (int i = 0; i <= old_count; i++) {
+            int child_total = get_child_total(i);
+            if (i <= mid) {
+                left_total += child_total;
+            } else {
+                children.add(get_child(i));
+                totals.add(child_total);
+                right_total += child_total;
+            }
+        }
         int right_page_id = owner.alloc_page();
         BInteriorNode right = BInteriorNode.create(
             right_page_id, owner, get_key_types(), get_value_types()
         );
-
-        int mid = get_slot_count() / 2;
-        List<Payload> keys = get_keys();
-        Payload key = get_key(mid);
-
-        // make right node
-        for (int i = mid+1; i < get_slot_count(); i++) {
-            InteriorCell src_cell = get_slot_cell(i);
-
-            int cell_id = right.allocate_cell();
-            InteriorCell dst_cell = InteriorCell.create(cell_id, get_key_types());
-            dst_cell.set_key(src_cell.get_key());
-            dst_cell.set_child(src_cell.get_child());
-
-            right.add_slot_cell(i-mid-1, dst_cell);
-
-            int child_id = src_cell.get_child();
-            BTreeNode child = new BTreeNode(child_id, owner);
-            child.set_father(right_page_id);
-        }
-        right.set_tail_child(get_tail_child());
-        BTreeNode tail_child = new BTreeNode(get_tail_child(), owner);
-        tail_child.set_father(right_page_id);
-        right.update_total();
+        right.fill(keys.subList(mid + 1, old_count), children, totals);
 
         // make left node
-        int old_count = get_slot_count();
-        int mid_child_id = get_child(mid);
-        set_tail_child(mid_child_id);
+        set_tail_child(get_child(mid));
+        set_child_total(old_count, get_child_total(mid));
         for (int i = old_count - 1;i >= mid;i--){
             remove_slot_cell(i);
         }
-        update_total();
 
         BPseudoInterior pseudo = new BPseudoInterior(
-            key, this, right
+            key, this, left_total, right, right_total
         );
 
-        if (get_father() == 0) {
+        if (father == null) {
             root_page = pseudo.to_interior().page_id;
         } else {
-            BInteriorNode father = new BInteriorNode(get_father(), owner);
             father.insert(pseudo);
         }
 
@@ -315,190 +389,99 @@ public class BInteriorNode extends BTreeNode {
         return r;
     }
 
-    protected int get_heir_idx(int page_id) {
-        int slot_count = get_slot_count();
-        for (int i = 0; i <= slot_count; i++) {
-            int child_id = get_child(i);
-            if (child_id == page_id) {
-                return i;
-            }
-        }
-        throw new DBRuntimeError("page_id not found");
-    }
-
-    protected DeleteResult delete_self() {
-        if (get_slot_count() > 0) {
-            throw new DBRuntimeError("can't delete non-empty node");
-        }
+    /**
+     * rebalance this node after a child was merged away. if it is underfull, keys and children are
+     * moved from a sibling under the same father to even out their bytes, or the two nodes are merged
+     * when the sibling has none to spare and the keys fit in one node. the separator key in the
+     * father moves down between them. a root left without keys is replaced by its only child.
+     *
+     * @param ancestors nodes from the root to the father of this node, empty if this node is the root
+     * @param idxs idxs[i] is the child idx of ancestors[i] on the path to this node
+     * @param min_fill see {@link BTreeNode#is_underfull(double)}
+     * @return
+     */
+    protected DeleteResult rebalance(List<BTreeNode> ancestors, List<Integer> idxs, double min_fill) {
         DeleteResult dr = new DeleteResult();
 
-        int father_page_id = get_father();
-        if (father_page_id == 0) {
-            dr.root_page_id = get_tail_child();
-            BTreeNode root = new BTreeNode(dr.root_page_id, owner);
-            root.set_father(0);
+        if (ancestors.isEmpty()) {
+            if (get_slot_count() == 0) {
+                dr.root_page_id = get_tail_child();
+                owner.release_page(page_id);
+            }
             return dr;
         }
 
-        boolean solved_by_borrow = false;
-        BInteriorNode father = new BInteriorNode(father_page_id, owner);
-        int heir_idx = father.get_heir_idx(this.page_id);
-        if (heir_idx > 0) {
-            // try borrow from left sibling
-            int left_page_id = father.get_child(heir_idx-1);
-            BTreeNode left = new BTreeNode(left_page_id, owner);
-            if (left.get_slot_count() >= 2) {
-                borrow_from_left(heir_idx);
-                solved_by_borrow = true;
-            }
-        }
-        if (!solved_by_borrow && heir_idx < father.get_slot_count()) {
-            BInteriorNode right = new BInteriorNode(
-                father.get_child(heir_idx+1), owner
-            );
-            if (right.get_slot_count() >= 2) {
-                borrow_from_right(heir_idx);
-                solved_by_borrow = true;
-            }
-        }
-        if (solved_by_borrow) {
+        if (!is_underfull(min_fill)) {
             return dr;
         }
 
-        // merge
-        boolean solved_by_merge = false;
-        if (heir_idx > 0) {
-            // try merge with left sibling
-            //       (10,    80)                       (80)
-            //    5    empty    100    -->       (5,10)       100
-            //  A  B     C     X   X           A   B   C    X     X
-            BInteriorNode left = new BInteriorNode(
-                father.get_child(heir_idx-1), owner
-            );
-            Payload fth_key = father.get_key(heir_idx-1);
-            int B = left.get_tail_child();
-            int C = get_child(0);
-            BTreeNode page_C = new BTreeNode(C, owner);
-
-            // left
-            InteriorCell cell = InteriorCell.create(
-                left.allocate_cell(),
-                left.get_key_types()
-            );
-            cell.set_key(fth_key);
-            cell.set_child(B);
-            left.add_slot_cell(left.get_slot_count(), cell);
-            left.set_tail_child(C);
-            page_C.set_father(left.page_id);
-            left.update_total();
-
-            // father
-            father.set_child(heir_idx, left.page_id);
-            father.remove_slot_cell(heir_idx-1);
-
-            solved_by_merge = true;
+        int depth = ancestors.size() - 1;
+        BInteriorNode father = new BInteriorNode(ancestors.get(depth).get_page_id(), owner);
+        int heir_idx = idxs.get(depth);
+        if (father.get_slot_count() == 0) {
+            return dr; // no sibling
         }
 
-        if (!solved_by_merge && heir_idx < father.get_slot_count()) {
-            // try merge with right sibling
-            //       (10,    80)                      (10)
-            //    5    empty    100    -->         5       (80,100)
-            //  X  X     A     B   C             X   X    A   B    C
-            BInteriorNode right = new BInteriorNode(
-                father.get_child(heir_idx+1), owner
-            );
-            Payload fth_key = father.get_key(heir_idx);
-            int A = get_tail_child();
-            BTreeNode page_A = new BTreeNode(A, owner);
-
-            // right
-            InteriorCell cell = InteriorCell.create(
-                right.allocate_cell(),
-                right.get_key_types()
-            );
-            cell.set_key(fth_key);
-            cell.set_child(A);
-            right.add_slot_cell(0, cell);
-            page_A.set_father(right.page_id);
-            right.update_total();
-
-            // father
-            father.remove_slot_cell(heir_idx);
-            solved_by_merge = true;
+        // siblings separated by key left_idx of the father
+        int left_idx = heir_idx > 0 ? heir_idx - 1 : heir_idx;
+        BInteriorNode left = heir_idx > 0 ? new BInteriorNode(father.get_child(left_idx), owner) : this;
+        BInteriorNode right = heir_idx > 0 ? this : new BInteriorNode(father.get_child(left_idx + 1), owner);
+        BInteriorNode sibling = left == this ? right : left;
+
+        //       (10,    80)
+        //    (5)    (20, 30)    100         keys:     5, 10, 20, 30
+        //  A   B   C   D   E   X   X        children: A, B, C, D, E
+        List<Payload> keys = left.get_keys();
+        keys.add(father.get_key(left_idx));
+        keys.addAll(right.get_keys());
+        List<Integer> children = new ArrayList<>(keys.size() + 1);
+        for (int child : left.get_children()) children.add(child);
+        for (int child : right.get_children()) children.add(child);
+        List<Integer> totals = new ArrayList<>(keys.size() + 1);
+        for (int total : left.get_child_totals()) totals.add(total);
+        for (int total : right.get_child_totals()) totals.add(total);
+
+        int body_size = get_body_size();
+        boolean fits = get_fill_size(keys) <= body_size;
+        int mid = keys.size() > 1 ? split_point(get_cell_spaces(keys), 1, keys.size() - 2) : 0;
+        if (keys.size() > 1 && (!fits || !sibling.is_underfull(min_fill))
+                && get_fill_size(keys.subList(0, mid)) <= body_size
+                && get_fill_size(keys.subList(mid + 1, keys.size())) <= body_size
+                && father.has_room_to_replace(left_idx, keys.get(mid))) {
+            // redistribute, the totals of the children move with them
+            left.refill(keys.subList(0, mid), children.subList(0, mid + 1), totals.subList(0, mid + 1));
+            right.refill(keys.subList(mid + 1, keys.size()), children.subList(mid + 1, children.size()),
+                    totals.subList(mid + 1, totals.size()));
+            father.set_key(left_idx, keys.get(mid));
+            father.set_child_total(left_idx, sum(totals.subList(0, mid + 1)));
+            father.set_child_total(left_idx + 1, sum(totals.subList(mid + 1, totals.size())));
+            return dr;
         }
-
-        if (!solved_by_merge) {
-            throw new DBRuntimeError("absurd structure");
+        if (!fits) {
+            return dr; // the separator doesn't fit in the father
         }
 
-        owner.release_page(page_id);
+        // merge right into left
+        left.refill(keys, children, totals);
+        father.set_child(left_idx + 1, left.page_id);
+        father.set_child_total(left_idx + 1, sum(totals));
+        father.remove_slot_cell(left_idx);
+        owner.release_page(right.page_id);
 
-        if (father.get_slot_count() > 0) {
-            return dr;
-        }
-        dr = father.delete_self();
-        return dr;
+        return father.rebalance(ancestors.subList(0, depth), idxs.subList(0, depth), min_fill);
     }
 
-    private void borrow_from_left(int heir_idx) {
-        BInteriorNode fth = new BInteriorNode(get_father(), owner);
-        int left_page_id = fth.get_child(heir_idx-1);
-        BInteriorNode left = new BInteriorNode(left_page_id, owner);
-
-        //           7                          5
-        //   (3, 5)     empty     -->        3       7
-        // A   B   C      D               A   B    C   D
-        int B = left.get_child(left.get_slot_count()-1);
-        int C = left.get_child(left.get_slot_count());
-        Payload left_key = left.get_key(left.get_slot_count()-1);
-        Payload fth_key = fth.get_key(heir_idx-1);
-
-        // left
-        left.set_tail_child(B);
-        left.remove_slot_cell(left.get_slot_count()-1);
-        BTreeNode page_C = new BTreeNode(C, owner);
-        left.set_total(left.get_total() - page_C.get_total());
-
-        // right
-        InteriorCell cell = InteriorCell.create(allocate_cell(), get_key_types());
-        cell.set_child(C);
-        cell.set_key(fth_key);
-        add_slot_cell(0, cell);
-        set_total(get_total() + page_C.get_total());
-        page_C.set_father(page_id);
-
-        // father
-        fth.set_key(heir_idx-1, left_key);
+    /**
+     * drop all cells, then fill the node again.
+     */
+    private void refill(List<Payload> keys, List<Integer> children, List<Integer> totals) {
+        clear_cells();
+        fill(keys, children, totals);
     }
 
-    private void borrow_from_right(int heir_idx) {
-        BInteriorNode fth = new BInteriorNode(get_father(), owner);
-        int right_page_id = fth.get_child(heir_idx+1);
-        BInteriorNode right = new BInteriorNode(right_page_id, owner);
-
-        //           7                            10
-        //   empty      (10, 15)     -->      7       15
-        //     A       B   C     D         A   B     C   D
-        int B = right.get_child(0);
-        int C = right.get_child(1);
-        Payload right_key = right.get_key(0);
-        Payload fth_key = fth.get_key(heir_idx);
-        BTreeNode page_B = new BTreeNode(B, owner);
-
-        // right
-        right.remove_slot_cell(0);
-        right.set_total(right.get_total() - page_B.get_total());
-
-        // left
-        InteriorCell cell = InteriorCell.create(allocate_cell(), get_key_types());
-        cell.set_child(get_tail_child());
-        cell.set_key(fth_key);
-        add_slot_cell(0, cell);
-        set_tail_child(B);
-        page_B.set_father(page_id);
-        set_total(get_total() + page_B.get_total());
-
-        // father
-        fth.set_key(heir_idx, right_key);
+    private static int sum(List<Integer> totals) {
+        int sum = 0;
+        for (int total : totals) sum += total;
+        return sum;
     }
 }
@@ -8,17 +8,16 @@ import jcav.filelayer.FieldDef;
 import jcav.filelayer.OverflowPage;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 public class BLeafNode extends BTreeNode {
     public static List<FieldDef> BASIC_HDR_DEFS = new ArrayList(){{
         add(new FieldDef(1, "type", PageType.BTREE_LEAF));
         add(new FieldDef(4, "hdr_size", 0));
-        add(new FieldDef(4, "father", 0));
+        add(new FieldDef(4, "prefix_size", 0));
         add(new FieldDef(4, "cell_size", 0));
-        add(new FieldDef(4, "cell_count", 0));
-        add(new FieldDef(4, "free_cell", -1));
+        add(new FieldDef(4, "cell_top", 0));
+        add(new FieldDef(4, "frag_size", 0));
         add(new FieldDef(4, "key_count", 0));
         add(new FieldDef(4, "value_count", 0));
         //                                                                      Interior       Leaf
@@ -28,16 +27,19 @@ public class BLeafNode extends BTreeNode {
         // key_types, int[]
         // value_types, int[]
 
-        // slot_capacity, int
-        // slot_count, int, meaningful slot value count in slots
-        // slots, int[], fixed length specified by slot_capacity
+        // slot_count, int
+        // slots, u16[], cell offsets in key order, grow up from hdr_size
     }};
 
+    private static final HeaderLayout LAYOUT = HeaderLayout.compile(BASIC_HDR_DEFS);
+    private static final HeaderLayout.Field OVERFLOW_PAGE = LAYOUT.field("overflow_page");
+    private static final HeaderLayout.Field LEFT_SIBLING = LAYOUT.field("left_sibling");
+    private static final HeaderLayout.Field RIGHT_SIBLING = LAYOUT.field("right_sibling");
+
     private CellStorage storage;
 
     public BLeafNode(int page_id, DBFile owner) {
-        super(page_id, owner);
-        construct_headers(BASIC_HDR_DEFS);
+        super(page_id, owner, BASIC_HDR_DEFS);
         if (get_page_type() != PageType.BTREE_LEAF) {
             throw new DBRuntimeError("page type mismatch, " +
                     "expect " + PageType.to_string(PageType.BTREE_LEAF)
@@ -65,16 +67,14 @@ public class BLeafNode extends BTreeNode {
         return cell;
     }
 
+    /**
+     * the cell is allocated and written, its cell_id is set.
+     *
+     * @param slot_id
+     * @param cell
+     */
     public void add_slot_cell(int slot_id, LeafCell cell) {
-        if (get_slot_count() + 1 > get_slot_capacity()) {
-            throw new DBRuntimeError("no more slot available");
-        }
-
-        List<Integer> slots = get_slots();
-        slots.add(slot_id, cell.cell_id);
-        set_slots(slots);
-
-        write_cell_data(cell.cell_id, cell.data);
+        cell.cell_id = add_cell(slot_id, cell.data);
     }
 
     private LeafCell remove_slot_cell(int slot_id) {
@@ -94,13 +94,18 @@ public class BLeafNode extends BTreeNode {
     // key & value & overflow operations
     ////////////////////////////////////////////////////
     public int get_overflow_page() {
-        return headers.get("overflow_page").to_int();
+        return OVERFLOW_PAGE.read_int(owner, page_id);
     }
     private void set_overflow_page(int page_id) {
-        headers.set("overflow_page", page_id);
+        OVERFLOW_PAGE.write_int(owner, this.page_id, page_id);
     }
 
     private void setup_overflow() {
+        if (entry != null && entry.storage != null) {
+            storage = entry.storage;
+            return;
+        }
+
         int overflow_page_id = get_overflow_page();
         if (overflow_page_id == 0) {
             overflow_page_id = owner.alloc_page();
@@ -117,6 +122,7 @@ public class BLeafNode extends BTreeNode {
                 throw new DBRuntimeError("incompatible value types, storage: " + storage_types + ", node: " + node_types);
             }
         }
+        if (entry != null && !entry.dropped) entry.storage = storage;
     }
 
 
@@ -126,10 +132,9 @@ public class BLeafNode extends BTreeNode {
         if (slot_id < 0 || slot_id >= slot_count) {
             throw new IndexOutOfBoundsException("slot_id out of range, got " + slot_id);
         }
-        int cell_id = get_slot(slot_id);
         LeafCell cell = get_slot_cell(slot_id);
         cell.set_key(key);
-        write_cell_data(cell_id, cell.data);
+        replace_cell(slot_id, cell.data);
     }
 
     public Payload get_key(int slot_id) {
@@ -165,6 +170,16 @@ public class BLeafNode extends BTreeNode {
         Payload value = storage.get_unit(unit_id);
         return value;
     }
+    /**
+     * read the value data of a unit into dst without creating objects.
+     * @see CellStorage#read_unit(int, byte[], int)
+     * @param unit_id
+     * @param dst
+     */
+    public void read_value(int unit_id, byte[] dst) {
+        storage.read_unit(unit_id, dst, 0);
+    }
+
     public void set_value(int slot_id, Payload value) {
         int slot_count = get_slot_count();
         if (slot_id < 0 || slot_id >= slot_count) {
@@ -188,55 +203,109 @@ public class BLeafNode extends BTreeNode {
     //////////////////////////////////////////////////////////
     // BTree operations
     //////////////////////////////////////////////////////////
-    protected void insert(Payload key, Payload val) {
-        List<Payload> keys = get_keys();
-        int idx = Collections.binarySearch(keys, key);
-        if (idx >= 0) {
-            throw new DBRuntimeError("key already exists");
-        } else {
-            if (keys.size() + 1 > get_slot_capacity()) {
-                throw new DBRuntimeError("no more slot available");
-            }
+    /**
+     * insert a key at a slot found by a search, the totals of ancestors are not updated.
+     * the cell and the unit are written once each.
+     *
+     * @param slot_id the insertion point of the key
+     * @param key
+     * @param val
+     */
+    protected void insert_at(int slot_id, Payload key, Payload val) {
+        if (!has_room(key)) {
+            throw new DBRuntimeError("no room for the key");
+        }
 
-            idx = -(idx+1);
-            int cell_id = allocate_cell();
-            LeafCell cell = LeafCell.create(cell_id, get_key_types());
-            cell.set_key(key);
-            int unit_id = storage.allocate_unit();
-            cell.set_unit_id(unit_id);
-            storage.set_unit(unit_id, val);
+        LeafCell cell = LeafCell.create(-1, get_key_types());
+        cell.set_key(key);
+        cell.set_unit_id(storage.add_unit(val));
 
-            add_slot_cell(idx, cell);
+        add_slot_cell(slot_id, cell);
+    }
 
-            set_total(get_total()+1);
+    /**
+     * fill an empty leaf with sorted keys and their values, see {@link BulkLoader}.
+     * cells and units are written in one write each.
+     *
+     * @param keys
+     * @param values
+     */
+    protected void fill(List<Payload> keys, List<Payload> values) {
+        int count = keys.size();
+        int first_unit = storage.append_units(values);
+
+        int[] key_types = get_key_types();
+        List<byte[]> cells = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            LeafCell cell = LeafCell.create(-1, key_types);
+            cell.set_key(keys.get(i));
+            cell.set_unit_id(first_unit + i);
+            cells.add(cell.data);
         }
+        fill_cells(cells);
+    }
 
-        int fth = get_father();
-        if (fth != 0) {
-            BInteriorNode fth_page = new BInteriorNode(fth, owner);
-            while(fth_page != null) {
-                fth_page.set_total(fth_page.get_total()+1);
-                fth = fth_page.get_father();
-                if (fth == 0) fth_page = null;
-                else fth_page = new BInteriorNode(fth, owner);
-            }
+    /**
+     * read all keys and values in slot order, the cells are read in one read.
+     */
+    private void read_rows(List<Payload> keys, List<Payload> values) {
+        List<Integer> key_types = get_key_type_list();
+        for (byte[] cell : read_cells()) {
+            keys.add(Payload.from_key_bytes(key_types, cell, 5));
+            values.add(storage.get_unit(Bytes.to_int(cell, 1)));
         }
     }
 
-    protected SplitResult split() {
+    /**
+     * drop all cells and units, then fill the leaf with the rows again.
+     */
+    private void refill(List<Payload> keys, List<Payload> values) {
+        clear_cells();
+        storage.clear();
+        fill(keys, values);
+    }
+
+    /**
+     * split this full leaf in two halves of about the same bytes and insert the separator into the father, which is split first
+     * if it is full. fathers are taken from the search path, no father pointer is used. the halves
+     * are moved off balance if the half taking the key to insert would have no room for it.
+     *
+     * when appending after the largest key of the tree, all rows stay in this leaf and the new right
+     * leaf starts empty, so leaves filled by ascending keys are left full instead of half full.
+     *
+     * @param ancestors nodes from the root to the father of this leaf, empty if this leaf is the root
+     * @param insert_key the key to insert after the split
+     * @param append the key to insert is after the last key of the rightmost leaf
+     * @return
+     */
+    protected SplitResult split(List<BTreeNode> ancestors, Payload insert_key, boolean append) {
+        // rows are moved in batches, each node is written by fill()
+        int count = get_slot_count();
+        int mid;
+        List<Payload> keys = new ArrayList<>(count);
+        List<Payload> values = new ArrayList<>(count);
+        if (append) {
+            mid = count - 1;
+            keys.add(get_key(mid));
+        } else {
+            read_rows(keys, values);
+            mid = split_point(get_cell_spaces(keys), 0, count - 2);
+            mid = fit_split_point(keys, mid, insert_key, true, 0, count - 2);
+        }
+        Payload key = keys.get(append ? 0 : mid);
+
+        // make room in the father first, this leaf goes to the half of the father covering its keys
         int root_page_id = 0;
-        int fth = get_father();
-        if(fth != 0) {
-            BInteriorNode fth_page = new BInteriorNode(fth, owner);
-            if (fth_page.get_slot_count() + 1 > fth_page.get_slot_capacity()) {
-                SplitResult result = fth_page.split();
+        BInteriorNode father = null;
+        if (!ancestors.isEmpty()) {
+            father = new BInteriorNode(ancestors.get(ancestors.size() - 1).get_page_id(), owner);
+            if (!father.has_room(key)) {
+                SplitResult result = father.split(ancestors.subList(0, ancestors.size() - 1), key, append);
                 root_page_id = result.root_page_id;
+                father = (BInteriorNode) (key.compareTo(result.key) <= 0 ? result.left : result.right);
             }
         }
 
-        int mid = get_slot_count() / 2;
-        Payload key = get_key(mid);
-
         int right_page_id = owner.alloc_page();
         BLeafNode right_page = BLeafNode.create(
                 right_page_id,
@@ -244,28 +313,10 @@ public class BLeafNode extends BTreeNode {
                 get_key_types(),
                 get_value_types()
         );
-
-        for (int i = mid + 1; i < get_slot_count(); i++) {
-            LeafCell src = get_slot_cell(i);
-
-            int dst_cell_id = right_page.allocate_cell();
-            LeafCell dst = LeafCell.create(dst_cell_id, get_key_types());
-            dst.set_key(src.get_key());
-            dst.set_unit_id(right_page.storage.allocate_unit());
-
-            right_page.add_slot_cell(i - mid - 1, dst);
-            right_page.storage.set_unit(
-                    dst.get_unit_id(),
-                    storage.get_unit(src.get_unit_id())
-            );
-        }
-        right_page.set_total(get_total() - mid - 1);
-
-        int old_slot_count = get_slot_count();
-        for(int i = old_slot_count-1;i > mid;i--) {
-            remove_slot_cell(i);
+        if (!append) {
+            right_page.fill(keys.subList(mid + 1, count), values.subList(mid + 1, count));
+            refill(keys.subList(0, mid + 1), values.subList(0, mid + 1));
         }
-        set_total(mid + 1);
 
         // connect linked list
         BLeafNode a = this;
@@ -279,19 +330,19 @@ public class BLeafNode extends BTreeNode {
         }
         b.set_left_sibling(a.get_page_id());
 
+        int left_total = append ? count : mid + 1;
         BPseudoInterior pseudo = new BPseudoInterior(
                 key,
                 this,
-                right_page
+                left_total,
+                right_page,
+                count - left_total
         );
 
-        // fth may change after its father split
-        fth = get_father();
-        if (fth == 0) {
+        if (father == null) {
             root_page_id = pseudo.to_interior().get_page_id();
         } else {
-            BInteriorNode fth_page = new BInteriorNode(fth, owner);
-            fth_page.insert(pseudo);
+            father.insert(pseudo);
         }
 
         SplitResult r = new SplitResult();
@@ -302,153 +353,161 @@ public class BLeafNode extends BTreeNode {
         return r;
     }
 
-    protected DeleteResult delete(SearchResult r) {
+    /**
+     * delete the key found by a search. if the leaf is left underfull, rows are moved from a sibling
+     * under the same father to even out their bytes, or the two leaves are merged when the sibling
+     * has none to spare and the rows fit in one leaf. the father is then rebalanced the same way,
+     * up along the search path.
+     *
+     * @param r
+     * @param min_fill see {@link BTreeNode#is_underfull(double)}
+     * @return
+     */
+    protected DeleteResult delete(SearchResult r, double min_fill) {
         int idx = r.idx;
         if (idx < 0) {
             throw new DBRuntimeError("del key not found");
         }
         remove_slot_cell(idx);
 
-        BTreeNode h = this;
-        while (h != null) {
-            h.set_total(h.get_total() - 1);
-            if (h.get_father() != 0) {
-                h = new BTreeNode(h.get_father(), owner);
-            } else {
-                h = null;
-            }
+        // totals of the children on the path, the leaf total is its slot count
+        List<BTreeNode> path = r.path;
+        for (int i = 0; i < path.size() - 1; i++) {
+            new BInteriorNode(path.get(i).get_page_id(), owner).add_child_total(r.idxs.get(i), -1);
         }
 
         DeleteResult dr = new DeleteResult();
         dr.root_page_id = 0;
 
-        int fth_id = get_father();
-        if (fth_id == 0 || get_slot_count() >= 1) {
+        if (path.size() < 2 || !is_underfull(min_fill)) {
             return dr; // no need to change root
         }
 
-        BInteriorNode fth = new BInteriorNode(fth_id, owner);
-        int heir_idx = fth.get_heir_idx(page_id);
-        boolean solve_by_borrow = false;
-        if (heir_idx <= fth.get_slot_count() - 1) {
-            // borrow from right
-            BLeafNode right_bro = new BLeafNode(fth.get_child(heir_idx+1), owner);
-            if (right_bro.get_slot_count() > 1) {
-                borrow_from_right(heir_idx);
-                solve_by_borrow = true;
-            }
-        }
-        if (!solve_by_borrow && heir_idx > 0) {
-            // borrow from left
-            BLeafNode left_bro = new BLeafNode(fth.get_child(heir_idx-1), owner);
-            if (left_bro.get_slot_count() > 1) {
-                borrow_from_left(heir_idx);
-                solve_by_borrow = true;
-            }
+        int depth = path.size() - 2;
+        BInteriorNode fth = new BInteriorNode(path.get(depth).get_page_id(), owner);
+        int heir_idx = r.idxs.get(depth);
+        if (fth.get_slot_count() == 0) {
+            // no sibling, e.g. the right node of an append split. an empty leaf is cut off instead
+            return get_slot_count() == 0 ? cut_off(path, r.idxs, min_fill) : dr;
         }
 
-        if (solve_by_borrow){
-            return dr; // no need to change root
+        // siblings separated by key left_idx of the father
+        //        1, 3, 8
+        //      A  B  C   D
+        int left_idx = heir_idx > 0 ? heir_idx - 1 : heir_idx;
+        BLeafNode left = heir_idx > 0 ? new BLeafNode(fth.get_child(left_idx), owner) : this;
+        BLeafNode right = heir_idx > 0 ? this : new BLeafNode(fth.get_child(left_idx + 1), owner);
+        BLeafNode sibling = left == this ? right : left;
+
+        int count = left.get_slot_count() + right.get_slot_count();
+        List<Payload> keys = new ArrayList<>(count);
+        List<Payload> values = new ArrayList<>(count);
+        left.read_rows(keys, values);
+        right.read_rows(keys, values);
+
+        int body_size = get_body_size();
+        boolean fits = get_fill_size(keys) <= body_size;
+        if (count > 1 && (!fits || !sibling.is_underfull(min_fill))) {
+            // redistribute, if both halves and the new separator in the father fit
+            int mid = split_point(get_cell_spaces(keys), 0, count - 2) + 1;
+            if (get_fill_size(keys.subList(0, mid)) <= body_size
+                    && get_fill_size(keys.subList(mid, count)) <= body_size
+                    && fth.has_room_to_replace(left_idx, keys.get(mid - 1))) {
+                left.refill(keys.subList(0, mid), values.subList(0, mid));
+                right.refill(keys.subList(mid, count), values.subList(mid, count));
+                left.storage.trim();
+                right.storage.trim();
+                fth.set_key(left_idx, keys.get(mid - 1));
+                fth.set_child_total(left_idx, mid);
+                fth.set_child_total(left_idx + 1, count - mid);
+                return dr; // no need to change root
+            }
+            if (!fits) {
+                return dr;
+            }
         }
 
-        // this node will be deleted
+        // merge right into left, the units of right are copied to the chain of left
+        left.refill(keys, values);
+        left.storage.trim();
 
-        // rearrange linked list
-        int a_id = this.get_left_sibling();
-        BLeafNode b = this;
-        int c_id = this.get_right_sibling();
-        if (a_id != 0) {
-            BLeafNode a = new BLeafNode(a_id, owner);
-            a.set_right_sibling(c_id);
-        }
+        int c_id = right.get_right_sibling();
+        left.set_right_sibling(c_id);
         if (c_id != 0) {
             BLeafNode c = new BLeafNode(c_id, owner);
-            c.set_left_sibling(a_id);
-        }
-
-        // update father
-        //        1, 3, 8
-        //      A  B  C   D
-        if (heir_idx == fth.get_slot_count()) {
-            InteriorCell C = fth.get_slot_cell(heir_idx - 1);
-            fth.remove_slot_cell(heir_idx - 1);
-            fth.set_tail_child(C.get_child());
-        } else {
-            fth.remove_slot_cell(heir_idx);
+            c.set_left_sibling(left.get_page_id());
         }
 
-        if (fth.get_slot_count() > 0) {
-            return dr; // no need to change root
-        }
-
-        release_self();
+        fth.set_child(left_idx + 1, left.get_page_id());
+        fth.set_child_total(left_idx + 1, count);
+        fth.remove_slot_cell(left_idx);
+        right.release_self();
 
-        dr = fth.delete_self();
-        return dr;
+        return fth.rebalance(path.subList(0, depth), r.idxs.subList(0, depth), min_fill);
     }
 
-    private void borrow_from_left(int heir_idx) {
-        BInteriorNode fth = new BInteriorNode(get_father(), owner);
-
-        BLeafNode left_bro = new BLeafNode(fth.get_child(heir_idx-1), owner);
-        LeafCell left_cell = left_bro.get_slot_cell(left_bro.get_slot_count()-1);
-        Payload value = left_bro.storage.get_unit(left_cell.get_unit_id());
-        left_bro.remove_slot_cell(left_bro.get_slot_count()-1);
-        left_bro.set_total(left_bro.get_total()-1);
-
-        LeafCell new_cell = LeafCell.create(allocate_cell(), get_key_types());
-        new_cell.set_key(left_cell.get_key());
-        int unit_id = storage.allocate_unit();
-        new_cell.set_unit_id(unit_id);
-        add_slot_cell(0, new_cell);
-        storage.set_unit(unit_id, value);
-        set_total(get_total()+1);
-
-        fth.set_key(
-                heir_idx-1,
-                left_bro.get_key(left_bro.get_slot_count()-1)
-        );
-    }
-
-    private void borrow_from_right(int heir_idx) {
-        BInteriorNode fth = new BInteriorNode(get_father(), owner);
+    /**
+     * release this empty leaf and the fathers above it which have no other child, then remove it
+     * from the first ancestor which has one and rebalance that ancestor. if there is no such
+     * ancestor, this leaf becomes the root.
+     *
+     * @param path nodes from the root to this leaf
+     * @param idxs idxs[i] is the child idx of path[i] on the path to this leaf
+     * @param min_fill see {@link BTreeNode#is_underfull(double)}
+     * @return
+     */
+    private DeleteResult cut_off(List<BTreeNode> path, List<Integer> idxs, double min_fill) {
+        int depth = path.size() - 2;
+        while (depth >= 0 && new BInteriorNode(path.get(depth).get_page_id(), owner).get_slot_count() == 0) {
+            depth--;
+        }
+        if (depth < 0) {
+            for (int i = 0; i < path.size() - 1; i++) {
+                owner.release_page(path.get(i).get_page_id());
+            }
+            DeleteResult dr = new DeleteResult();
+            dr.root_page_id = page_id;
+            return dr;
+        }
 
-        BLeafNode right_bro = new BLeafNode(fth.get_child(heir_idx+1), owner);
-        LeafCell right_cell = right_bro.get_slot_cell(0);
-        Payload value = right_bro.storage.get_unit(right_cell.get_unit_id());
-        right_bro.remove_slot_cell(0);
-        right_bro.set_total(right_bro.get_total()-1);
+        // the child at idx has no keys, drop its cell, or make the child before it the tail
+        BInteriorNode ancestor = new BInteriorNode(path.get(depth).get_page_id(), owner);
+        int idx = idxs.get(depth);
+        if (idx == ancestor.get_slot_count()) {
+            idx--;
+            ancestor.set_tail_child(ancestor.get_child(idx));
+            ancestor.set_child_total(idx + 1, ancestor.get_child_total(idx));
+        }
+        ancestor.remove_slot_cell(idx);
+        for (int i = depth + 1; i < path.size() - 1; i++) {
+            owner.release_page(path.get(i).get_page_id());
+        }
 
-        LeafCell new_cell = LeafCell.create(allocate_cell(), get_key_types());
-        new_cell.set_key(right_cell.get_key());
-        int unit_id = storage.allocate_unit();
-        new_cell.set_unit_id(unit_id);
-        add_slot_cell(get_slot_count(), new_cell);
-        storage.set_unit(unit_id, value);
-        set_total(get_total()+1);
+        int l_id = get_left_sibling();
+        int r_id = get_right_sibling();
+        if (l_id != 0) new BLeafNode(l_id, owner).set_right_sibling(r_id);
+        if (r_id != 0) new BLeafNode(r_id, owner).set_left_sibling(l_id);
+        release_self();
 
-        fth.set_key(
-                heir_idx,
-                right_cell.get_key()
-        );
+        return ancestor.rebalance(path.subList(0, depth), idxs.subList(0, depth), min_fill);
     }
 
     ////////////////////////////////////////////////
     // getters & setters
     ////////////////////////////////////////////////
     public int get_right_sibling() {
-        return headers.get("right_sibling").to_int();
+        return RIGHT_SIBLING.read_int(owner, page_id);
     }
 
     protected void set_right_sibling(int page_id) {
-        headers.set("right_sibling", page_id);
+        RIGHT_SIBLING.write_int(owner, this.page_id, page_id);
     }
 
     public int get_left_sibling() {
-        return headers.get("left_sibling").to_int();
+        return LEFT_SIBLING.read_int(owner, page_id);
     }
 
     protected void set_left_sibling(int page_id) {
-        headers.set("left_sibling", page_id);
+        LEFT_SIBLING.write_int(owner, this.page_id, page_id);
     }
 }
@@ -2,18 +2,31 @@ package jcav.filelayer.btree;
 
 import jcav.filelayer.DBFile;
 import jcav.filelayer.Page;
+import jcav.filelayer.PageHandle;
 import jcav.filelayer.PageType;
 import jcav.filelayer.exception.DBRuntimeError;
 
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 public class BPlusTree {
+    /**
+     * below half, so that a merged node has room left and a following insert doesn't split it again.
+     */
+    public static final double DEFAULT_MIN_FILL = 0.4;
+
     private BTreeNode root;
     private DBFile db;
+    private double min_fill = DEFAULT_MIN_FILL;
+    private boolean append_split = true;
+    // the last insert was after the largest key, try the append path first for the next one
+    private boolean appending = false;
 
     ////////////////////////////////////////////////////////////////////
     // life cycle
@@ -46,6 +59,26 @@ public class BPlusTree {
         return new BPlusTree(page_id, db);
     }
 
+    /**
+     * build a tree from rows sorted by key, see {@link BulkLoader}.
+     * @param db
+     * @param key_types
+     * @param val_types
+     * @param rows key-value pairs in strictly ascending key order
+     * @param fill_factor
+     * @return
+     */
+    public static BPlusTree bulk_load(
+            DBFile db,
+            List<Integer> key_types,
+            List<Integer> val_types,
+            Iterator<? extends Map.Entry<Payload, Payload>> rows,
+            double fill_factor
+    ) {
+        int root_page = new BulkLoader(db, key_types, val_types, fill_factor).load(rows);
+        return new BPlusTree(root_page, db);
+    }
+
     protected void release_self() {
         recursive_drop(root);
     }
@@ -92,6 +125,12 @@ public class BPlusTree {
         }
     }
 
+    /**
+     * each node on the path is read on its pinned page without copying, see {@link NodeView}.
+     * the key is binary searched on the page, only the probed keys are compared.
+     * @param key
+     * @return
+     */
     public SearchResult search(Payload key) {
         check_key_types(key);
 
@@ -100,28 +139,23 @@ public class BPlusTree {
 
         while(cur != null) {
             r.path.add(cur);
-            if (cur.get_page_type() == PageType.BTREE_INTERIOR) {
-                BInteriorNode interior = new BInteriorNode(cur.get_page_id(), db);
-                List<Payload> keys = interior.get_keys();
-                int idx = Collections.binarySearch(keys, key);
-                if (idx < 0) {
-                    idx = -(idx+1);
+            int child_page = 0;
+            try (PageHandle h = db.pin(cur.get_page_id())) {
+                NodeView view = new NodeView(h);
+                int idx = view.search(key);
+                if (view.get_page_type() == PageType.BTREE_INTERIOR) {
+                    if (idx < 0) {
+                        idx = -(idx+1);
+                    }
+                    child_page = view.get_child(idx);
+                    r.idxs.add(idx);
+                } else {
+                    r.idx = idx;
+                    r.idxs.add(idx);
                 }
-                int child_page = interior.get_child(idx);
-                cur = new BTreeNode(child_page, db);
-                r.idxs.add(idx);
-            } else if (cur.get_page_type() == PageType.BTREE_LEAF) {
-                BLeafNode leaf = new BLeafNode(cur.get_page_id(), db);
-                List<Payload> keys = leaf.get_keys();
-                int idx = Collections.binarySearch(keys, key);
-                r.idx = idx;
-                r.idxs.add(idx);
-                cur = null;
-            } else {
-                throw new DBRuntimeError("Invalid page type, " +
-                        "expect BTREE_INTERIOR or BTREE_LEAF, " +
-                        "got " + cur.get_page_type());
             }
+            // the child is read after unpinning, so the parent can be evicted for it
+            cur = child_page == 0 ? null : new BTreeNode(child_page, db);
         }
         return r;
     }
@@ -145,37 +179,88 @@ public class BPlusTree {
         leaf.set_value(sr.idx, val);
     }
 
+    /**
+     * one descent finds the leaf and the insertion point, the totals of ancestors are then updated
+     * along the search path. if the key doesn't fit in the leaf, it is split and the descent is done again.
+     *
+     * keys inserted in ascending order are appended: the descent follows the tail children without
+     * comparing keys, and a full rightmost leaf is split leaving it full, see {@link #set_append_split(boolean)}.
+     * @param key
+     * @param value
+     */
     public void insert(Payload key, Payload value) {
-        check_key_types(key);
         check_val_types(value);
 
-        SearchResult r = search(key);
-        BTreeNode node = r.path.get(r.path.size() - 1);
-        if (node.get_page_type() != PageType.BTREE_LEAF) {
-            throw new DBRuntimeError("find error");
-        }
-
-        BLeafNode leaf = new BLeafNode(node.get_page_id(), db);
-        if (r.found()) {
-            throw new IllegalArgumentException("key already exists");
-        }
+        SearchResult r = search_insert(key);
+        BLeafNode leaf = r.get_leaf();
 
-        if (leaf.get_slot_count() + 1 > leaf.get_slot_capacity()) {
-            SplitResult sr = leaf.split();
+        while (!leaf.has_room(key)) {
+            SplitResult sr = leaf.split(r.path.subList(0, r.path.size() - 1), key, append_split && appending);
             if (sr.root_page_id != 0) {
                 root = new BTreeNode(sr.root_page_id, db);
             }
-            int cmp = key.compareTo(sr.key);
-            if (cmp > 0) {
-                leaf = new BLeafNode(sr.right.get_page_id(), db);
-            } else if (cmp < 0) {
-                leaf = new BLeafNode(sr.left.get_page_id(), db);
-            } else {
-                throw new DBRuntimeError("split error");
+            r = search_insert(key);
+            leaf = r.get_leaf();
+        }
+
+        leaf.insert_at(-(r.idx + 1), key, value);
+        add_totals(r, 1);
+    }
+
+    /**
+     * find the insertion point of a key not in the tree, and note whether it is an append.
+     */
+    private SearchResult search_insert(Payload key) {
+        SearchResult r = appending ? search_append(key) : null;
+        if (r == null) {
+            r = search(key);
+            if (r.found()) {
+                throw new IllegalArgumentException("key already exists");
             }
+            BLeafNode leaf = r.get_leaf();
+            appending = leaf.get_right_sibling() == 0 && -(r.idx + 1) == leaf.get_slot_count();
         }
+        return r;
+    }
 
-        leaf.insert(key, value);
+    /**
+     * the search result of a key after the largest key of the tree. the descent follows the tail
+     * children, only the last key of the rightmost leaf is compared.
+     * @return null if the key is not after the largest key, or the rightmost leaf is empty
+     */
+    private SearchResult search_append(Payload key) {
+        check_key_types(key);
+
+        SearchResult r = new SearchResult();
+        BTreeNode cur = root;
+        while (true) {
+            r.path.add(cur);
+            int child_page;
+            try (PageHandle h = db.pin(cur.get_page_id())) {
+                NodeView view = new NodeView(h);
+                int count = view.get_slot_count();
+                if (view.get_page_type() != PageType.BTREE_INTERIOR) {
+                    if (count == 0 || view.compare(key, count - 1) <= 0) {
+                        return null;
+                    }
+                    r.idx = -(count + 1);
+                    r.idxs.add(r.idx);
+                    return r;
+                }
+                child_page = view.get_child(count);
+                r.idxs.add(count);
+            }
+            cur = new BTreeNode(child_page, db);
+        }
+    }
+
+    /**
+     * add delta to the totals of the children on a search path, kept in the interior nodes.
+     */
+    private void add_totals(SearchResult r, int delta) {
+        for (int i = 0; i < r.path.size() - 1; i++) {
+            new BInteriorNode(r.path.get(i).get_page_id(), db).add_child_total(r.idxs.get(i), delta);
+        }
     }
 
     public void delete(SearchResult sr) {
@@ -187,12 +272,113 @@ public class BPlusTree {
                 sr.path.get(sr.path.size() - 1).get_page_id(),
                 db
         );
-        DeleteResult dr = leaf.delete(sr);
+        DeleteResult dr = leaf.delete(sr, min_fill);
         if (dr.root_page_id != 0) {
             root = new BTreeNode(dr.root_page_id, db);
         }
     }
 
+    ////////////////////////////////////////////////////////////
+    // order statistics
+    //
+    // these methods descend once with the "total" of subtrees. an interior cell keeps the total of
+    // its child next to the child pointer, so only the nodes on the path are read, O(log n) nodes
+    ////////////////////////////////////////////////////////////
+
+    /**
+     * @return number of keys in the tree
+     */
+    public int size() {
+        return new BTreeNode(root.get_page_id(), db).get_total();
+    }
+
+    /**
+     * @param key
+     * @return number of keys less than key, the key itself is not necessarily in the tree
+     */
+    public int rank(Payload key) {
+        check_key_types(key);
+
+        int rank = 0;
+        int page_id = root.get_page_id();
+        while (true) {
+            try (PageHandle h = db.pin(page_id)) {
+                NodeView view = new NodeView(h);
+                int idx = view.search(key);
+                if (idx < 0) idx = -(idx + 1);
+                if (view.get_page_type() == PageType.BTREE_LEAF) {
+                    return rank + idx;
+                }
+                for (int i = 0; i < idx; i++) {
+                    rank += view.get_child_total(i);
+                }
+                page_id = view.get_child(idx);
+            }
+        }
+    }
+
+    /**
+     * @param k
+     * @return the k-th smallest key, 0 based, so that select(rank(key)) is key for keys in the tree
+     */
+    public Payload select(int k) {
+        if (k < 0 || k >= size()) {
+            throw new IndexOutOfBoundsException("k out of range, got " + k + ", size " + size());
+        }
+
+        int page_id = root.get_page_id();
+        while (true) {
+            try (PageHandle h = db.pin(page_id)) {
+                NodeView view = new NodeView(h);
+                if (view.get_page_type() == PageType.BTREE_LEAF) {
+                    return view.get_key(k);
+                }
+                int child = 0;
+                while (k >= view.get_child_total(child)) {
+                    k -= view.get_child_total(child);
+                    child++;
+                }
+                page_id = view.get_child(child);
+            }
+        }
+    }
+
+    /**
+     * @param lo inclusive, null for no lower bound
+     * @param hi exclusive, null for no upper bound
+     * @return number of keys in [lo, hi)
+     */
+    public int count(Payload lo, Payload hi) {
+        int from = lo == null ? 0 : rank(lo);
+        int to = hi == null ? size() : rank(hi);
+        return Math.max(0, to - from);
+    }
+
+    /**
+     * @param key
+     * @return the largest key less than key, null if there is none
+     */
+    public Payload predecessor(Payload key) {
+        check_key_types(key);
+        try (Cursor c = cursor()) {
+            boolean found = c.seek(key) ? c.prev() : c.seek_last();
+            return found ? c.get_key() : null;
+        }
+    }
+
+    /**
+     * @param key
+     * @return the smallest key greater than key, null if there is none
+     */
+    public Payload successor(Payload key) {
+        check_key_types(key);
+        try (Cursor c = cursor()) {
+            if (!c.seek(key)) return null;
+            if (c.get_key().compareTo(key) == 0 && !c.next()) return null;
+            return c.get_key();
+        }
+    }
+
     public BLeafNode leftmost_leaf() {
         BTreeNode cur = root;
         while (cur.get_page_type() == PageType.BTREE_INTERIOR) {
@@ -202,6 +388,37 @@ public class BPlusTree {
         return new BLeafNode(cur.get_page_id(), db);
     }
 
+    public BLeafNode rightmost_leaf() {
+        BTreeNode cur = root;
+        while (cur.get_page_type() == PageType.BTREE_INTERIOR) {
+            BInteriorNode interior = new BInteriorNode(cur.get_page_id(), db);
+            cur = new BTreeNode(interior.get_tail_child(), db);
+        }
+        return new BLeafNode(cur.get_page_id(), db);
+    }
+
+    /**
+     * an unbounded cursor, call one of its seek methods to position it.
+     * @return
+     */
+    public Cursor cursor() {
+        return new Cursor(this, null, null);
+    }
+
+    /**
+     * a cursor over keys in [lo, hi), positioned at the first of them.
+     * @param lo inclusive, null for no lower bound
+     * @param hi exclusive, null for no upper bound
+     * @return
+     */
+    public Cursor range(Payload lo, Payload hi) {
+        if (lo != null) check_key_types(lo);
+        if (hi != null) check_key_types(hi);
+        Cursor cursor = new Cursor(this, lo, hi);
+        cursor.seek_first();
+        return cursor;
+    }
+
     public int root_page() {
         return root.get_page_id();
     }
@@ -210,6 +427,36 @@ public class BPlusTree {
         return db;
     }
 
+    public boolean get_append_split() {
+        return append_split;
+    }
+
+    /**
+     * if true, a full rightmost leaf split for a key after the largest key keeps all its rows and
+     * starts a new empty leaf, and so do its fathers. tables filled in key order, e.g. by
+     * auto-increment or timestamp keys, then have full leaves instead of half full ones.
+     * @param append_split
+     */
+    public void set_append_split(boolean append_split) {
+        this.append_split = append_split;
+    }
+
+    public double get_min_fill() {
+        return min_fill;
+    }
+
+    /**
+     * nodes left with less than min_fill of their body in use are rebalanced on delete.
+     * 0 rebalances only empty nodes.
+     * @param min_fill in [0, 0.5], so that two underfull nodes always fit in one
+     */
+    public void set_min_fill(double min_fill) {
+        if (!(min_fill >= 0 && min_fill <= 0.5)) {
+            throw new IllegalArgumentException("min_fill must be in [0, 0.5], got " + min_fill);
+        }
+        this.min_fill = min_fill;
+    }
+
     public List<Integer> get_key_types() {
         return root.get_key_type_list();
     }
@@ -218,19 +465,56 @@ public class BPlusTree {
         return root.get_value_type_list();
     }
 
+    /**
+     * a full scan, pages are read in use-once mode, see {@link DBFile#set_use_once(boolean)}.
+     * @param consumer
+     */
     public void foreach_leaf(Consumer<BLeafNode> consumer) {
         BLeafNode leaf = leftmost_leaf();
-        while (leaf != null) {
-            consumer.accept(leaf);
-            int next = leaf.get_right_sibling();
-            if (next != 0) {
-                leaf = new BLeafNode(next, db);
-            } else {
-                leaf = null;
+        boolean old = db.set_use_once(true);
+        try {
+            while (leaf != null) {
+                consumer.accept(leaf);
+                int next = leaf.get_right_sibling();
+                if (next != 0) {
+                    leaf = new BLeafNode(next, db);
+                } else {
+                    leaf = null;
+                }
             }
+        } finally {
+            db.set_use_once(old);
         }
     }
 
+    /**
+     * visit all (key, value) in key order through flyweight views, no payload is created for a row.
+     * keys and values are copied into reused arrays, keys are padded to their full size.
+     *
+     * the views are reused, they are only valid during the call. don't modify the tree in the visitor.
+     *
+     * @param visitor
+     */
+    public void foreach_row(BiConsumer<PayloadView, PayloadView> visitor) {
+        List<Integer> val_types = root.get_value_type_list();
+        PayloadView key = PayloadView.of_key(root.get_key_type_list());
+        PayloadView value = PayloadView.of(val_types);
+        byte[] key_data = new byte[Payload.get_size(root.get_key_type_list())];
+        byte[] value_data = new byte[Payload.get_size(val_types)];
+
+        foreach_leaf(leaf -> {
+            try (PageHandle h = db.pin(leaf.get_page_id())) {
+                NodeView view = new NodeView(h);
+                for (int i = 0; i < view.get_slot_count(); i++) {
+                    leaf.read_value(view.get_unit_id(i), value_data);
+                    view.read_key(i, key_data);
+                    key.bind(key_data, 0);
+                    visitor.accept(key, value.bind(value_data, 0));
+                }
+            }
+        });
+    }
+
     ////////////////////////////////////////////////////////////
     // for debug
     ////////////////////////////////////////////////////////////
@@ -276,12 +560,6 @@ public class BPlusTree {
             }
             sbuf.append(")");
 
-            int fth = node.get_father();
-            if(fth != 0) {
-                BInteriorNode interior = new BInteriorNode(fth, db);
-                Payload key = interior.get_keys().get(0);
-                sbuf.append("^").append(key.get_obj(0));
-            }
             sbuf.append("    ");
             System.out.print(sbuf.toString());
         }
@@ -313,11 +591,12 @@ public class BPlusTree {
         BInteriorNode node = new BInteriorNode(h.get_page_id(), db);
         for(int i = 0;i < child_cnt;i++){
             BTreeNode child = new BTreeNode(node.get_child(i), db);
-            total += _check_total(child);
-        }
-        if (total != h.get_total()) {
-            throw new RuntimeException("total error, expect " + total
-                    + ", get " + h.get_total() + ", at (" + _print_keys(node) + ")");
+            int child_total = _check_total(child);
+            if (child_total != node.get_child_total(i)) {
+                throw new RuntimeException("total error, expect " + child_total
+                        + ", get " + node.get_child_total(i) + " for child " + i + ", at (" + _print_keys(node) + ")");
+            }
+            total += child_total;
         }
         return total;
     }
@@ -6,11 +6,16 @@ public class BPseudoInterior {
     public Payload key;
     public BTreeNode left;
     public BTreeNode right;
+    // number of keys under left and right
+    public int left_total;
+    public int right_total;
 
-    public BPseudoInterior(Payload key, BTreeNode left, BTreeNode right) {
+    public BPseudoInterior(Payload key, BTreeNode left, int left_total, BTreeNode right, int right_total) {
         this.key = key;
         this.left = left;
         this.right = right;
+        this.left_total = left_total;
+        this.right_total = right_total;
     }
 
     public BInteriorNode to_interior() {
@@ -22,10 +27,9 @@ public class BPseudoInterior {
         BInteriorNode node = BInteriorNode.create(page_id, owner, key_types, val_types);
         node.set_key(0, key);
         node.set_child(0, left.get_page_id());
+        node.set_child_total(0, left_total);
         node.set_tail_child(right.get_page_id());
-        left.set_father(node.get_page_id());
-        right.set_father(node.get_page_id());
-        node.set_total(left.get_total() + right.get_total());
+        node.set_child_total(1, right_total);
 
         return node;
     }
@@ -5,38 +5,78 @@ import jcav.filelayer.*;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 public class BTreeNode extends Page {
     public static List<FieldDef> BASIC_HDR_DEFS = new ArrayList<FieldDef>() {{
         add(new FieldDef(1, "type", PageType.BTREE_NULL));
         add(new FieldDef(4, "hdr_size", 0));
-        add(new FieldDef(4, "father", 0));
-        add(new FieldDef(4, "cell_size", 0));
-        add(new FieldDef(4, "cell_count", 0)); // = free cell + payload cell
-        add(new FieldDef(4, "free_cell", -1));
+        add(new FieldDef(4, "prefix_size", 0)); // bytes of the key prefix shared by all cells, kept at the page end
+        add(new FieldDef(4, "cell_size", 0)); // size of a cell in memory, the largest size on page is cell_size + 2
+        add(new FieldDef(4, "cell_top", 0));  // offset of the lowest cell, cells grow down from the prefix
+        add(new FieldDef(4, "frag_size", 0)); // bytes of released cells below cell_top
         add(new FieldDef(4, "key_count", 0));
         add(new FieldDef(4, "value_count", 0));
         //                                                                Interior       Leaf
-        add(new FieldDef(4, "reserved1", 0));//     total          overflow_page
+        add(new FieldDef(4, "reserved1", 0));//     tail_total     overflow_page
         add(new FieldDef(4, "reserved2", 0));//     tail_child     left_sibling
         add(new FieldDef(4, "reserved3", 0));//     not used       right_sibling
         // key_types, int[]
         // value_types, int[]
 
-        // slot_capacity, int
-        // slot_count, int, meaningful slot value count in slots
-        // slots, int[], fixed length specified by slot_capacity
+        // slot_count, int
+        // slots, u16[], cell offsets in key order, grow up from hdr_size
     }};
 
+    protected static final HeaderLayout BASIC_LAYOUT = HeaderLayout.compile(BASIC_HDR_DEFS);
+    protected static final HeaderLayout.Field HDR_SIZE = BASIC_LAYOUT.field("hdr_size");
+    protected static final HeaderLayout.Field PREFIX_SIZE = BASIC_LAYOUT.field("prefix_size");
+    protected static final HeaderLayout.Field CELL_SIZE = BASIC_LAYOUT.field("cell_size");
+    protected static final HeaderLayout.Field CELL_TOP = BASIC_LAYOUT.field("cell_top");
+    protected static final HeaderLayout.Field FRAG_SIZE = BASIC_LAYOUT.field("frag_size");
+    protected static final HeaderLayout.Field KEY_COUNT = BASIC_LAYOUT.field("key_count");
+    protected static final HeaderLayout.Field VALUE_COUNT = BASIC_LAYOUT.field("value_count");
+    protected static final HeaderLayout.Field RESERVED1 = BASIC_LAYOUT.field("reserved1");
+
+    // in memory, a cell is [type 1][unit_id or child 4][child_total 4, interior only][key], see
+    // get_key_offset. on page, the key length 2 goes before the key and only the key after the prefix
+    // is kept, see pack_cell
+    // slots are u16
+    private static final int MAX_PAGE_SIZE = 1 << 16;
+
+    private static final Map<List<FieldDef>, Map<Long, Layout>> LAYOUTS = new IdentityHashMap<>();
+
+    // fixed for the life of the node page, decoded once
+    protected Layout layout;
+    private byte page_type;
+    private int cell_size;
+    // offset of the key in a cell in memory, the cell header on page is 2 bytes longer
+    protected int key_offset;
+    private int[] key_types;
+    private int[] value_types;
+    // shared decoded node, null if the page is not a b-tree node
+    protected NodeCache.Node entry;
+
     ////////////////////////////////////////////////////////////
     // constructors
     ////////////////////////////////////////////////////////////
 
     protected BTreeNode(int page_id, DBFile owner) {
+        this(page_id, owner, BASIC_HDR_DEFS);
+    }
+
+    /**
+     * @param page_id
+     * @param owner
+     * @param basic_defs names of the basic fields, the BASIC_HDR_DEFS of the node class
+     */
+    protected BTreeNode(int page_id, DBFile owner, List<FieldDef> basic_defs) {
         super(page_id, owner);
-        construct_headers(BASIC_HDR_DEFS);
+        construct_headers(basic_defs);
     }
 
     public static BTreeNode create(int page_id, DBFile owner, List<FieldDef> basic_defs, int[] key_types, int[] val_types) {
@@ -46,13 +86,23 @@ public class BTreeNode extends Page {
                 .map((v) -> (FieldDef)v.clone())
                 .collect(Collectors.toCollection(ArrayList::new));
 
+        int page_size = owner.get_page_size(page_id);
+        if (page_size > MAX_PAGE_SIZE) {
+            throw new DBRuntimeError("page size " + page_size + " is too large for b-tree nodes, " +
+                    "at most " + MAX_PAGE_SIZE);
+        }
+
         FieldDef hdr_size_def = null;
-        int cell_size = Cell.get_cell_size(key_types);
+        byte page_type = Headers.get_field_def(defs, "type").default_value[0];
+        int cell_size = page_type == PageType.BTREE_INTERIOR
+                ? InteriorCell.get_cell_size(key_types) : Cell.get_cell_size(key_types);
         for (FieldDef def : defs) {
             if (def.name.equals("hdr_size")) {
                 hdr_size_def = def;
             } else if (def.name.equals("cell_size")) {
                 def.default_value = Bytes.from_int(cell_size);
+            } else if (def.name.equals("cell_top")) {
+                def.default_value = Bytes.from_int(page_size);
             } else if (def.name.equals("key_count")) {
                 def.default_value = Bytes.from_int(key_types.length);
             } else if (def.name.equals("value_count")) {
@@ -62,74 +112,155 @@ public class BTreeNode extends Page {
 
         defs.add(new FieldDef(key_types.length * 4, "key_types", key_types));
         defs.add(new FieldDef(val_types.length * 4, "value_types", val_types));
+        defs.add(new FieldDef(4, "slot_count", 0));
 
-        int partial_hdr_size = Headers.get_total_length(defs) + 8; // slot_capacity, slot_count
-        // partial_hdr_size + n * 4 + n * cell_size <= page_size
-        // n * 4 is size for slots
-        int slot_capacity = (owner.get_page_size(page_id) - partial_hdr_size) / (4 + cell_size);
-
-        if (slot_capacity < 3) {
+        // a split must leave room for one more cell in either half, even if all cells are the largest
+        int hdr_size = Headers.get_total_length(defs);
+        int max_cell_space = cell_size + 2 + 2;
+        if (page_size - hdr_size < 4 * max_cell_space) {
             throw new DBRuntimeError("keys are too large to fit in a page, " +
                     "please decrease key size or increase page size");
         }
-
-        int hdr_size = partial_hdr_size + slot_capacity * 4;
         hdr_size_def.default_value = Bytes.from_int(hdr_size);
 
-        defs.add(new FieldDef(4, "slot_capacity", slot_capacity));
-        defs.add(new FieldDef(4, "slot_count", 0));
-        defs.add(new FieldDef(slot_capacity * 4, "slots", new int[slot_capacity]));
-
         Headers hdr = new Headers(defs, page_id, owner);
         hdr.set_to_default();
-        BTreeNode node = new BTreeNode(page_id, owner);
-        node.headers = hdr;
-        return node;
+        return new BTreeNode(page_id, owner);
     }
 
+    /**
+     * take the decoded node from the {@link NodeCache}, or decode it and cache it.
+     *
+     * @param basic_defs
+     */
     protected void construct_headers(List<FieldDef> basic_defs) {
-        Headers basic_hdr = new Headers(basic_defs, page_id, owner);
+        NodeCache nodes = owner.get_node_cache();
+        NodeCache.Node entry = nodes.get(page_id);
+        if (entry == null) {
+            decode_headers(basic_defs);
+            if (page_type == PageType.BTREE_LEAF || page_type == PageType.BTREE_INTERIOR) {
+                entry = new NodeCache.Node(page_type, cell_size, layout, get_key_types(), get_value_types());
+                nodes.put(page_id, entry);
+            }
+        } else {
+            this.page_type = entry.page_type;
+            this.cell_size = entry.cell_size;
+            this.key_types = entry.key_types;
+            this.value_types = entry.value_types;
+            this.layout = entry.layout.basic_defs == basic_defs ? entry.layout
+                    : Layout.of(basic_defs, entry.layout.key_count, entry.layout.value_count);
+        }
+        this.key_offset = get_key_offset(page_type);
+        this.entry = entry;
+        this.headers = new Headers(layout.header, page_id, owner);
+    }
 
-        List<FieldDef> defs = new ArrayList<>(basic_defs);
-        int key_count = basic_hdr.get("key_count").to_int();
-        int value_count = basic_hdr.get("value_count").to_int();
+    /**
+     * decode the basic header in one read and get the compiled layout of the whole header.
+     *
+     * @param basic_defs
+     */
+    private void decode_headers(List<FieldDef> basic_defs) {
+        byte[] hdr = read(0, BASIC_LAYOUT.get_total_length());
+        int key_count = KEY_COUNT.get_int(hdr);
+        int value_count = VALUE_COUNT.get_int(hdr);
 
-        defs.add(new FieldDef(key_count * 4, "key_types", new int[key_count]));
-        defs.add(new FieldDef(value_count * 4, "value_types", new int[value_count]));
-        defs.add(new FieldDef(4, "slot_capacity", 0));
-        defs.add(new FieldDef(4, "slot_count", 0));
+        this.page_type = TYPE.get_byte(hdr);
+        this.cell_size = CELL_SIZE.get_int(hdr);
+        this.layout = Layout.of(basic_defs, key_count, value_count);
+    }
 
-        Headers partial_hdr = new Headers(defs, page_id, owner);
-        int slot_capacity = partial_hdr.get("slot_capacity").to_int();
+    /**
+     * @param page_type
+     * @return offset of the key in a cell of the node in memory
+     */
+    protected static int get_key_offset(byte page_type) {
+        return page_type == PageType.BTREE_INTERIOR ? InteriorCell.KEY_OFFSET : LeafCell.KEY_OFFSET;
+    }
 
-        defs.add(new FieldDef(slot_capacity * 4, "slots", new int[slot_capacity]));
+    /**
+     * compiled layout of the whole node header. it only depends on the basic defs, key_count and
+     * value_count, so it is shared by all nodes of a table.
+     */
+    protected static final class Layout {
+        final List<FieldDef> basic_defs;
+        final HeaderLayout header;
+        final int key_count;
+        final int value_count;
+        // offsets
+        final int key_types;
+        final int value_types;
+        final int slot_count;
+        final int slots;
+
+        private Layout(List<FieldDef> basic_defs, int key_count, int value_count) {
+            List<FieldDef> defs = new ArrayList<>(basic_defs);
+            defs.add(new FieldDef(key_count * 4, "key_types", new int[key_count]));
+            defs.add(new FieldDef(value_count * 4, "value_types", new int[value_count]));
+            defs.add(new FieldDef(4, "slot_count", 0));
+
+            this.basic_defs = basic_defs;
+            this.header = HeaderLayout.compile(defs);
+            this.key_count = key_count;
+            this.value_count = value_count;
+            this.key_types = header.field("key_types").offset;
+            this.value_types = header.field("value_types").offset;
+            this.slot_count = header.field("slot_count").offset;
+            this.slots = header.get_total_length();
+        }
 
-        this.headers = new Headers(defs, page_id, owner);
+        static Layout of(List<FieldDef> basic_defs, int key_count, int value_count) {
+            long key = ((long) key_count << 21) | value_count;
+            synchronized (LAYOUTS) {
+                Map<Long, Layout> layouts = LAYOUTS.computeIfAbsent(basic_defs, k -> new HashMap<>());
+                Layout layout = layouts.get(key);
+                if (layout == null) {
+                    layout = new Layout(basic_defs, key_count, value_count);
+                    layouts.put(key, layout);
+                }
+                return layout;
+            }
+        }
     }
 
     ////////////////////////////////////////////////////////////
     // slot operations
     ////////////////////////////////////////////////////////////
-    public int get_slot_capacity() {
-        return headers.get("slot_capacity").to_int();
-    }
 
     public int get_slot_count() {
-        return headers.get("slot_count").to_int();
+        int[] slots = entry == null ? null : entry.slots;
+        if (slots != null) return slots.length;
+        return owner.read_int(page_id, layout.slot_count);
     }
 
     public List<Integer> get_slots() {
-        int slot_count = get_slot_count();
-        int[] slots = headers.get("slots").to_ints();
-        return Arrays.stream(slots).boxed().collect(Collectors.toList()).subList(0, slot_count);
+        int[] slots = get_slot_array();
+        return Arrays.stream(slots).boxed().collect(Collectors.toList());
     }
 
     public int get_slot(int idx) {
-        int slot_count = get_slot_count();
-        if (idx < 0 || idx >= slot_count) {
+        int[] slots = get_slot_array();
+        if (idx < 0 || idx >= slots.length) {
             throw new IllegalArgumentException("slot index out of range");
         }
-        return headers.get("slots").to_ints()[idx];
+        return slots[idx];
+    }
+
+    /**
+     * @return the decoded slots, shared with the node cache, don't modify it.
+     */
+    private int[] get_slot_array() {
+        int[] slots = entry == null ? null : entry.slots;
+        if (slots == null) {
+            int slot_count = owner.read_int(page_id, layout.slot_count);
+            byte[] data = read(layout.slots, slot_count * 2);
+            slots = new int[slot_count];
+            for (int i = 0; i < slot_count; i++) {
+                slots[i] = Bytes.to_short(data, i * 2) & 0xffff;
+            }
+            if (entry != null && !entry.dropped) entry.slots = slots;
+        }
+        return slots;
     }
 
     /**
@@ -137,16 +268,23 @@ public class BTreeNode extends Page {
      * @param slots
      */
     public void set_slots(List<Integer> slots) {
-        int slot_capacity = get_slot_capacity();
-        if (slots.size() > slot_capacity) {
-            throw new IllegalArgumentException("slots size exceeds capacity");
+        if (layout.slots + slots.size() * 2 > get_cell_top()) {
+            throw new IllegalArgumentException("slots overlap cells, slot count = " + slots.size());
         }
-        int[] slots_data = new int[slot_capacity];
+        // slot_count is right before slots, write both at once
+        byte[] data = new byte[4 + slots.size() * 2];
+        System.arraycopy(Bytes.from_int(slots.size()), 0, data, 0, 4);
+        int[] slots_arr = new int[slots.size()];
         for (int i = 0; i < slots.size(); i++) {
-            slots_data[i] = slots.get(i);
+            int slot = slots.get(i);
+            data[4 + i * 2] = (byte) (slot >> 8);
+            data[5 + i * 2] = (byte) slot;
+            slots_arr[i] = slot;
+        }
+        write(layout.slot_count, data);
+        if (entry != null && !entry.dropped) {
+            entry.slots = slots_arr;
         }
-        headers.set("slots", Bytes.from_ints(slots_data));
-        headers.set("slot_count", Bytes.from_int(slots.size()));
     }
 
     /**
@@ -172,89 +310,440 @@ public class BTreeNode extends Page {
     ///////////////////////////////////////////////////////////
     // low level cell operations
     // for internal use only
+    //
+    // the page is slotted: slots grow up from the header, cells grow down from the page end and
+    // the free space is between them. a cell takes the bytes its key needs, a cell id is its offset
+    // in the page. released cells are fragments, they are reclaimed by compacting the page when
+    // the free space between slots and cells runs out.
+    //
+    // keys are prefix compressed: the prefix all keys of the page share is kept once at the page
+    // end, below it are the cells with the rest of their keys. the prefix is set when the page is
+    // filled or compacted, and shortened when a key which doesn't share it is added.
     ///////////////////////////////////////////////////////////
 
     /**
-     * the returned cell is dangling. make sure you will use
-     * add this cell to a slot.
+     * the cell on page, the prefix and trailing 0 bytes of the key are dropped,
+     * see {@link KeyCodec#packed_length(byte[], int, int)}.
      *
+     * @param data a cell in memory, cell_size bytes
+     * @param prefix_size bytes of the prefix of the page, the key must start with it
      * @return
      */
-    protected int allocate_cell() {
-        int cell_size = get_cell_size();
-
-        // reuse free cells
-        int free_cell = get_free_cell();
-        if (free_cell != -1) {
-            byte[] cell_data = read_cell_data(free_cell);
-            FreeCell cell = new FreeCell(free_cell, cell_data);
-            int next_id = cell.get_next();
-            set_free_cell(next_id);
-            // clear cell data
-            write_cell_data(free_cell, new byte[cell_size]);
-            return free_cell;
-        }
-
-        // allocate new cell
-        int body_size = get_body_size();
-        int available_size = body_size - get_cell_count() * get_cell_size();
-        if (available_size < cell_size) {
+    protected byte[] pack_cell(byte[] data, int prefix_size) {
+        int key_len = get_key_length(data) - prefix_size;
+        byte[] cell = new byte[key_offset + 2 + key_len];
+        System.arraycopy(data, 0, cell, 0, key_offset);
+        cell[key_offset] = (byte) (key_len >> 8);
+        cell[key_offset + 1] = (byte) key_len;
+        System.arraycopy(data, key_offset + prefix_size, cell, key_offset + 2, key_len);
+        return cell;
+    }
+
+    /**
+     * @param data a cell in memory
+     * @return bytes of the key without its trailing 0 bytes
+     */
+    private int get_key_length(byte[] data) {
+        return KeyCodec.packed_length(data, key_offset, data.length - key_offset);
+    }
+
+    /**
+     * @param page_type
+     * @param key
+     * @return bytes a cell of the key takes on a page of the type without a prefix, including its
+     *         slot. it is the most the cell takes on any page
+     */
+    public static int get_cell_space(byte page_type, Payload key) {
+        byte[] key_data = key.get_key_bytes();
+        return 2 + get_key_offset(page_type) + 2 + KeyCodec.packed_length(key_data, 0, key_data.length);
+    }
+
+    /**
+     * @param key
+     * @return see {@link #get_cell_space(byte, Payload)}
+     */
+    protected int get_cell_space(Payload key) {
+        return get_cell_space(page_type, key);
+    }
+
+    /**
+     * @param keys
+     * @return bytes the cell of each key takes on page, see {@link #get_cell_space(Payload)}
+     */
+    protected int[] get_cell_spaces(List<Payload> keys) {
+        int[] spaces = new int[keys.size()];
+        for (int i = 0; i < spaces.length; i++) {
+            spaces[i] = get_cell_space(keys.get(i));
+        }
+        return spaces;
+    }
+
+    /**
+     * @param a
+     * @param b
+     * @return bytes of the prefix the keys share on page
+     */
+    protected static int common_prefix(Payload a, Payload b) {
+        byte[] a_data = a.get_key_bytes();
+        byte[] b_data = b.get_key_bytes();
+        return KeyCodec.common_prefix(a_data, 0, KeyCodec.packed_length(a_data, 0, a_data.length),
+                b_data, 0, KeyCodec.packed_length(b_data, 0, b_data.length));
+    }
+
+    /**
+     * @param keys
+     * @return bytes the cells of the keys take on a page filled with them, their prefix is kept once
+     */
+    protected int get_fill_size(List<Payload> keys) {
+        if (keys.isEmpty()) return 0;
+        int size = 0;
+        int prefix_size = Integer.MAX_VALUE;
+        for (Payload key : keys) {
+            size += get_cell_space(key);
+            prefix_size = Math.min(prefix_size, common_prefix(keys.get(0), key));
+        }
+        return size - (keys.size() - 1) * prefix_size;
+    }
+
+    /**
+     * where to split cells in two halves of about the same bytes.
+     * @param spaces bytes each cell takes, see {@link #get_cell_space(Payload)}
+     * @param from
+     * @param to
+     * @return the first idx where cells [0, idx] take half of all bytes, clamped to [from, to]
+     */
+    protected static int split_point(int[] spaces, int from, int to) {
+        int total = 0;
+        for (int space : spaces) total += space;
+        int idx = spaces.length - 1;
+        int sum = 0;
+        for (int i = 0; i < spaces.length; i++) {
+            sum += spaces[i];
+            if (sum * 2 >= total) {
+                idx = i;
+                break;
+            }
+        }
+        return Math.max(from, Math.min(to, idx));
+    }
+
+    /**
+     * the split point nearest to mid where the half taking the key to insert has room for it.
+     * a key which doesn't share the prefix of its half makes all cells of the half longer, so the
+     * half may not fit even though the node did.
+     *
+     * @param keys sorted keys of the node
+     * @param mid the balanced split point
+     * @param key the key to insert after the split, it goes to the left half if it is not greater than keys[mid]
+     * @param keep_mid the left half keeps keys[mid], as a leaf does
+     * @param from
+     * @param to
+     * @return
+     */
+    protected int fit_split_point(List<Payload> keys, int mid, Payload key, boolean keep_mid, int from, int to) {
+        for (int d = 0; mid - d >= from || mid + d <= to; d++) {
+            if (mid - d >= from && half_has_room(keys, mid - d, key, keep_mid)) return mid - d;
+            if (d > 0 && mid + d <= to && half_has_room(keys, mid + d, key, keep_mid)) return mid + d;
+        }
+        return mid;
+    }
+
+    private boolean half_has_room(List<Payload> keys, int mid, Payload key, boolean keep_mid) {
+        List<Payload> half = new ArrayList<>(key.compareTo(keys.get(mid)) <= 0
+                ? keys.subList(0, keep_mid ? mid + 1 : mid)
+                : keys.subList(mid + 1, keys.size()));
+        half.add(key);
+        return get_fill_size(half) <= get_body_size();
+    }
+
+    /**
+     * allocate length bytes for a new cell and 2 bytes for its slot from the free space between
+     * slots and cells, the fragments are not used.
+     * the returned cell is dangling, make sure you will add it to a slot.
+     *
+     * @param length
+     * @return cell id, -1 if there is no room
+     */
+    protected int allocate_cell(int length) {
+        int slot_end = layout.slots + (get_slot_count() + 1) * 2;
+        int cell_top = get_cell_top();
+        if (cell_top - slot_end < length) {
             return -1;
         }
-        int cell_id = get_cell_count();
-        write_cell_data(cell_id, new byte[cell_size]);
-        set_cell_count(cell_id + 1);
+        cell_top -= length;
+        set_cell_top(cell_top);
+        return cell_top;
+    }
+
+    /**
+     * add a cell at slot_id, the cell is packed and written in one write. the page is compacted
+     * first if the key doesn't share the whole prefix, or the free space is only enough with the
+     * fragments or a longer prefix, see {@link #has_room(Payload)}.
+     *
+     * @param slot_id
+     * @param data a cell in memory
+     * @return cell id
+     */
+    protected int add_cell(int slot_id, byte[] data) {
+        byte[] prefix = get_prefix();
+        byte[] cell = shared_prefix(prefix, data) < prefix.length ? null : pack_cell(data, prefix.length);
+        if (cell == null || get_cell_top() - layout.slots - (get_slot_count() + 1) * 2 < cell.length) {
+            // the prefix is recomputed with the key, the cell is packed again with it
+            compact(data);
+            cell = pack_cell(data, get_prefix().length);
+        }
+        int cell_id = allocate_cell(cell.length);
+        if (cell_id == -1) {
+            throw new DBRuntimeError("no room for the cell in node " + page_id);
+        }
+        write(cell_id, cell);
+
+        List<Integer> slots = get_slots();
+        slots.add(slot_id, cell_id);
+        set_slots(slots);
         return cell_id;
     }
 
-    protected void check_cell_id(int cell_id) {
-        if (cell_id < 0) throw new IllegalArgumentException("cell_id must be positive");
-        int cell_size = get_cell_size();
-        int cell_offset = get_cell_offset(cell_id);
-        if (cell_offset + cell_size > owner.get_page_size(page_id)) {
-            throw new IllegalArgumentException("cell_id out of range");
+    /**
+     * replace the cell at slot_id. it is written in place if the size on page is not changed,
+     * otherwise it is moved.
+     *
+     * @param slot_id
+     * @param data a cell in memory
+     * @return cell id
+     */
+    protected int replace_cell(int slot_id, byte[] data) {
+        byte[] cell = pack_cell(data, fit_prefix(data));
+        int cell_id = get_slot(slot_id);
+        if (get_cell_length(cell_id) == cell.length) {
+            write(cell_id, cell);
+            return cell_id;
         }
+        remove_slot(slot_id);
+        release_cell(cell_id);
+        return add_cell(slot_id, data);
     }
 
-    protected void release_cell(int cell_id) {
-        check_cell_id(cell_id);
+    /**
+     * shorten the prefix of the page to the part the key of the cell shares, the cells are
+     * rewritten if it changes.
+     *
+     * @param data a cell in memory
+     * @return bytes of the prefix
+     */
+    private int fit_prefix(byte[] data) {
+        byte[] prefix = get_prefix();
+        int prefix_size = shared_prefix(prefix, data);
+        if (prefix_size < prefix.length) {
+            write_cells(read_cells(), Arrays.copyOf(prefix, prefix_size));
+        }
+        return prefix_size;
+    }
+
+    /**
+     * @param prefix
+     * @param data a cell in memory
+     * @return bytes of the prefix the key of the cell starts with
+     */
+    private int shared_prefix(byte[] prefix, byte[] data) {
+        return KeyCodec.common_prefix(prefix, 0, prefix.length, data, key_offset, get_key_length(data));
+    }
+
+    /**
+     * fill an empty node with cells in one write, cell i is put in slot i. the prefix is the one
+     * all keys share.
+     *
+     * @param cells cells in memory, in slot order
+     */
+    protected void fill_cells(List<byte[]> cells) {
+        if (get_slot_count() != 0) {
+            throw new DBRuntimeError("can't fill a non-empty node");
+        }
+        write_cells(cells, common_prefix(cells));
+    }
+
+    /**
+     * @param cells cells in memory
+     * @return the key prefix all cells share, empty if there are no cells
+     */
+    private byte[] common_prefix(List<byte[]> cells) {
+        if (cells.isEmpty()) return new byte[0];
+        byte[] first = cells.get(0);
+        int prefix_size = get_key_length(first);
+        for (byte[] data : cells) {
+            prefix_size = KeyCodec.common_prefix(first, key_offset, prefix_size,
+                    data, key_offset, get_key_length(data));
+        }
+        return Arrays.copyOfRange(first, key_offset, key_offset + prefix_size);
+    }
+
+    /**
+     * write the prefix at the page end and the packed cells one after another below it in one
+     * write, and put cell i in slot i. the fragments are dropped.
+     *
+     * @param cells cells in memory, in slot order, their keys start with the prefix
+     * @param prefix
+     */
+    private void write_cells(List<byte[]> cells, byte[] prefix) {
+        List<byte[]> packed = new ArrayList<>(cells.size());
+        int length = prefix.length;
+        for (byte[] data : cells) {
+            byte[] cell = pack_cell(data, prefix.length);
+            packed.add(cell);
+            length += cell.length;
+        }
+        int page_size = owner.get_page_size(page_id);
+        int offset = page_size - length;
+        if (layout.slots + cells.size() * 2 > offset) {
+            throw new IllegalArgumentException("cells do not fit the node, count = " + cells.size());
+        }
+
+        byte[] area = new byte[length];
+        List<Integer> cell_ids = new ArrayList<>(packed.size());
+        int pos = 0;
+        for (byte[] cell : packed) {
+            System.arraycopy(cell, 0, area, pos, cell.length);
+            cell_ids.add(offset + pos);
+            pos += cell.length;
+        }
+        System.arraycopy(prefix, 0, area, pos, prefix.length);
+        if (length > 0) {
+            write(offset, area);
+        }
 
-        int next_free = get_free_cell();
+        set_cell_top(offset);
+        set_frag_size(0);
+        // written after the prefix, so the prefix cached by the node cache is dropped after it changed
+        PREFIX_SIZE.write_int(owner, page_id, prefix.length);
+        if (entry != null && !entry.dropped) entry.prefix = prefix;
+        set_slots(cell_ids);
+    }
 
-        FreeCell cell = FreeCell.create(cell_id, get_cell_size());
-        cell.set_next(next_free);
-        byte[] cell_data = cell.get_data();
-        write_cell_data(cell_id, cell_data);
+    /**
+     * read all cells in slot order in one read and unpack them, see {@link #read_cell_data(int)}.
+     *
+     * @return cells in memory
+     */
+    protected List<byte[]> read_cells() {
+        int page_size = owner.get_page_size(page_id);
+        int cell_top = get_cell_top();
+        byte[] area = read(cell_top, page_size - cell_top);
+        int prefix_size = get_prefix().length;
+
+        List<Integer> slots = get_slots();
+        List<byte[]> cells = new ArrayList<>(slots.size());
+        for (int cell_id : slots) {
+            int pos = cell_id - cell_top;
+            int key_len = Bytes.to_short(area, pos + key_offset) & 0xffff;
+            byte[] data = new byte[cell_size];
+            System.arraycopy(area, pos, data, 0, key_offset);
+            System.arraycopy(area, area.length - prefix_size, data, key_offset, prefix_size);
+            System.arraycopy(area, pos + key_offset + 2, data, key_offset + prefix_size, key_len);
+            cells.add(data);
+        }
+        return cells;
+    }
 
-        set_free_cell(cell_id);
+    /**
+     * drop all cells and the prefix, slots are cleared.
+     */
+    protected void clear_cells() {
+        write_cells(new ArrayList<>(), new byte[0]);
     }
 
-    protected int get_cell_offset(int cell_id) {
-        return get_page_header_size() + cell_id * get_cell_size();
+    /**
+     * move the cells to the prefix in slot order, so the fragments are merged into the free space.
+     * the prefix becomes the one all keys share again, e.g. after the key which shortened it is removed.
+     * the cells are read and written in one read and one write.
+     */
+    protected void compact() {
+        compact(null);
     }
 
+    /**
+     * compact the page for a cell to add, the prefix is also shared by its key.
+     * @param data a cell in memory, null if no cell is added
+     */
+    private void compact(byte[] data) {
+        List<byte[]> cells = read_cells();
+        if (data != null) {
+            cells.add(data);
+        }
+        byte[] prefix = common_prefix(cells);
+        if (data != null) {
+            cells.remove(cells.size() - 1);
+        }
+        write_cells(cells, prefix);
+    }
+
+    protected void check_cell_id(int cell_id) {
+        if (cell_id < layout.slots) throw new IllegalArgumentException("cell_id must be after the header");
+        if (cell_id + key_offset + 2 > owner.get_page_size(page_id)) {
+            throw new IllegalArgumentException("cell_id out of range");
+        }
+    }
+
+    /**
+     * @param cell_id
+     * @return size of the cell on page
+     */
+    protected int get_cell_length(int cell_id) {
+        check_cell_id(cell_id);
+        return key_offset + 2 + (Bytes.to_short(read(cell_id + key_offset, 2), 0) & 0xffff);
+    }
+
+    /**
+     * the space of the cell becomes a fragment, or free space if it is the lowest cell.
+     * @param cell_id
+     */
+    protected void release_cell(int cell_id) {
+        int length = get_cell_length(cell_id);
+        if (cell_id == get_cell_top()) {
+            set_cell_top(cell_id + length);
+        } else {
+            set_frag_size(get_frag_size() + length);
+        }
+    }
+
+    /**
+     * read a cell and unpack it, the key is the prefix, the rest of it in the cell, padded with 0
+     * to its full size.
+     * @param cell_id
+     * @return a cell in memory, cell_size bytes
+     */
     protected byte[] read_cell_data(int cell_id) {
         check_cell_id(cell_id);
-        int cell_offset = get_cell_offset(cell_id);
-        int cell_size = get_cell_size();
-        byte[] cell_data = read(cell_offset, cell_size);
-        return cell_data;
+        byte[] prefix = get_prefix();
+        int length = Math.min(cell_size + 2 - prefix.length, owner.get_page_size(page_id) - cell_id);
+        byte[] cell = read(cell_id, length);
+        int key_len = Bytes.to_short(cell, key_offset) & 0xffff;
+        byte[] data = new byte[cell_size];
+        System.arraycopy(cell, 0, data, 0, key_offset);
+        System.arraycopy(prefix, 0, data, key_offset, prefix.length);
+        System.arraycopy(cell, key_offset + 2, data, key_offset + prefix.length, key_len);
+        return data;
     }
 
-    protected void write_cell_data(int cell_id, byte[] data) {
-        if (data.length != get_cell_size()) {
-            throw new IllegalArgumentException("data length must be equal to cell_size");
+    /**
+     * @return the key prefix all cells share, shared with the node cache, don't modify it.
+     */
+    protected byte[] get_prefix() {
+        byte[] prefix = entry == null ? null : entry.prefix;
+        if (prefix == null) {
+            int prefix_size = PREFIX_SIZE.read_int(owner, page_id);
+            prefix = prefix_size == 0 ? new byte[0]
+                    : read(owner.get_page_size(page_id) - prefix_size, prefix_size);
+            if (entry != null && !entry.dropped) entry.prefix = prefix;
         }
-        int cell_offset = get_cell_offset(cell_id);
-        write(cell_offset, data);
+        return prefix;
     }
 
-    protected void set_free_cell(int cell_id) {
-        headers.set("free_cell", cell_id);
+    protected void set_cell_top(int val) {
+        CELL_TOP.write_int(owner, page_id, val);
     }
 
-    protected void set_cell_count(int val) {
-        headers.set("cell_count", val);
+    protected void set_frag_size(int val) {
+        FRAG_SIZE.write_int(owner, page_id, val);
     }
 
 
@@ -264,18 +753,18 @@ public class BTreeNode extends Page {
 
     /**
      * if this node is a leaf node, return the number of cells in this node.
-     * if this node is an interior node, return the number of all keys in the subtree.
+     * if this node is an interior node, return the number of all keys in the subtree, the sum of
+     * the totals of its children kept in its cells.
      * @return
      */
     public int get_total() {
         if (get_page_type() == PageType.BTREE_INTERIOR) {
-            for(FieldDef def : headers.field_defs) {
-                if (def.name.equals("total"))
-                    return headers.get("total").to_int();
-                else if (def.name.equals("reserved1"))
-                    return headers.get("reserved1").to_int();
+            // the total of the tail child is stored in reserved1
+            int total = RESERVED1.read_int(owner, page_id);
+            for (int cell_id : get_slot_array()) {
+                total += owner.read_int(page_id, cell_id + 5);
             }
-            throw new RuntimeException("absurd situation");
+            return total;
         } else if (get_page_type() == PageType.BTREE_LEAF) {
             return get_slot_count();
         } else {
@@ -283,39 +772,22 @@ public class BTreeNode extends Page {
         }
     }
 
-    /**
-     * if this node is a leaf node, nothing will happen.
-     * if this node is an interior node, set the number of all keys in the subtree.
-     * @param total
-     */
-    public void set_total(int total) {
-        if (get_page_type() == PageType.BTREE_INTERIOR) {
-            for(FieldDef def : headers.field_defs) {
-                if (def.name.equals("total"))
-                    headers.set("total", total);
-                else if (def.name.equals("reserved1"))
-                    headers.set("reserved1", total);
-            }
-        } else if (get_page_type() == PageType.BTREE_LEAF) {
-            return; // do nothing
-        } else {
-            throw new DBRuntimeError("page type " + get_page_type() + " do not supported set_total");
-        }
+    @Override
+    public byte get_page_type() {
+        return page_type;
     }
 
     public int get_key_count() {
-        return headers.get("key_count").to_int();
+        return layout.key_count;
     }
 
     public int[] get_key_types() {
-        int key_count = get_key_count();
-        byte[] data = headers.get("key_types").as_bytes();
-        if (data.length != key_count * 4) {
-            throw new DBRuntimeError("incomplete key_types field, expect "
-                    + key_count * 4 + " bytes, got " + data.length);
+        if (key_types == null) {
+            int key_count = get_key_count();
+            byte[] data = read(layout.key_types, key_count * 4);
+            key_types = Bytes.to_ints(data);
         }
-        int[] key_types = Bytes.to_ints(data);
-        return key_types;
+        return key_types.clone();
     }
 
     public List<Integer> get_key_type_list() {
@@ -328,18 +800,16 @@ public class BTreeNode extends Page {
     }
 
     public int get_value_count() {
-        return headers.get("value_count").to_int();
+        return layout.value_count;
     }
 
     public int[] get_value_types() {
-        int value_count = get_value_count();
-        byte[] data = headers.get("value_types").as_bytes();
-        if (data.length != value_count * 4) {
-            throw new DBRuntimeError("incomplete value_types field, expect "
-                    + value_count * 4 + " bytes, got " + data.length);
+        if (value_types == null) {
+            int value_count = get_value_count();
+            byte[] data = read(layout.value_types, value_count * 4);
+            value_types = Bytes.to_ints(data);
         }
-        int[] value_types = Bytes.to_ints(data);
-        return value_types;
+        return value_types.clone();
     }
 
     public List<Integer> get_value_type_list() {
@@ -351,34 +821,111 @@ public class BTreeNode extends Page {
         return value_type_list;
     }
 
-    public int get_free_cell() {
-        return headers.get("free_cell").to_int();
+    public int get_cell_top() {
+        return CELL_TOP.read_int(owner, page_id);
     }
 
+    public int get_frag_size() {
+        return FRAG_SIZE.read_int(owner, page_id);
+    }
+
+    /**
+     * @return bytes for slots, cells and the prefix
+     */
     public int get_body_size() {
         return owner.get_page_size(page_id) - get_page_header_size();
     }
 
-    public int get_cell_count() {
-        return headers.get("cell_count").to_int();
+    /**
+     * @return bytes left for new cells and slots, including the fragments
+     */
+    public int get_free_size() {
+        return get_cell_top() - layout.slots - get_slot_count() * 2 + get_frag_size();
     }
 
-    public int get_cell_size() {
-        return headers.get("cell_size").to_int();
+    /**
+     * @return bytes of the body taken by cells, slots and the prefix
+     */
+    public int get_used_size() {
+        return get_body_size() - get_free_size();
     }
 
-    @Override
-    public int get_page_header_size() {
-        return headers.get("hdr_size").to_int();
+    /**
+     * @param key
+     * @return a cell of the key fits in the free space, after compacting the page if needed. if the
+     *         key doesn't share the whole prefix, the other cells take what the prefix gives up.
+     *         the prefix is only recomputed when the page is filled or compacted, e.g. it is empty
+     *         on a page which started empty, so if the key doesn't fit with it, it is checked
+     *         against the prefix compacting would give
+     */
+    public boolean has_room(Payload key) {
+        byte[] key_data = key.get_key_bytes();
+        int key_size = KeyCodec.packed_length(key_data, 0, key_data.length);
+        byte[] prefix = get_prefix();
+        int prefix_size = KeyCodec.common_prefix(prefix, 0, prefix.length, key_data, 0, key_size);
+        if (has_room(key, prefix_size)) return true;
+
+        // the keys are sorted, the prefix all of them share is the one of the first and the last
+        int count = get_slot_count();
+        int compact_size = key_size;
+        for (int slot_id : count == 0 ? new int[0] : new int[]{0, count - 1}) {
+            byte[] data = read_cell_data(get_slot(slot_id));
+            compact_size = KeyCodec.common_prefix(key_data, 0, compact_size,
+                    data, key_offset, get_key_length(data));
+        }
+        return compact_size > prefix_size && has_room(key, compact_size);
+    }
+
+    /**
+     * @param key
+     * @param prefix_size the prefix of the page after the key is added
+     * @return a cell of the key fits in the free space, the other cells take what the prefix gives
+     *         up or give what it gains
+     */
+    private boolean has_room(Payload key, int prefix_size) {
+        int grow = (get_prefix().length - prefix_size) * (get_slot_count() - 1);
+        return get_free_size() - grow >= get_cell_space(key) - prefix_size;
+    }
+
+    /**
+     * @param slot_id
+     * @param key
+     * @return the key fits in place of the key at slot_id, see {@link #replace_cell(int, byte[])}
+     */
+    public boolean has_room_to_replace(int slot_id, Payload key) {
+        int shrink = get_prefix_shrink(key);
+        int grow = shrink * (get_slot_count() - 1);
+        int old_space = 2 + get_cell_length(get_slot(slot_id)) + shrink;
+        return get_free_size() - grow + old_space >= get_cell_space(key) - (get_prefix().length - shrink);
     }
 
+    /**
+     * @param key
+     * @return bytes the prefix loses for the key, see {@link #fit_prefix(byte[])}
+     */
+    private int get_prefix_shrink(Payload key) {
+        byte[] prefix = get_prefix();
+        byte[] key_data = key.get_key_bytes();
+        return prefix.length - KeyCodec.common_prefix(prefix, 0, prefix.length,
+                key_data, 0, KeyCodec.packed_length(key_data, 0, key_data.length));
+    }
 
-    public void set_father(int page_id) {
-        headers.set("father", page_id);
+    /**
+     * a non-root node is rebalanced on delete if it is underfull.
+     * @param min_fill fraction of the body
+     * @return the node is empty, or less than min_fill of its body is used
+     */
+    public boolean is_underfull(double min_fill) {
+        return get_slot_count() == 0 || get_used_size() < get_body_size() * min_fill;
+    }
+
+    public int get_cell_size() {
+        return cell_size;
     }
 
-    public int get_father() {
-        return headers.get("father").to_int();
+    @Override
+    public int get_page_header_size() {
+        return layout.header.get_total_length();
     }
 
 
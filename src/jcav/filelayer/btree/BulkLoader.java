@@ -0,0 +1,179 @@
+package jcav.filelayer.btree;
+
+import jcav.filelayer.DBFile;
+import jcav.filelayer.PageType;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Build a b+ tree bottom-up from rows sorted by key, instead of inserting them one by one.
+ *
+ * Leaves are filled in key order until the fill factor of their bytes is used, counting the key prefix
+ * the keys of a node share once, see {@link BTreeNode#get_fill_size(List)}. Each leaf writes its cells and its
+ * {@link CellStorage} units in one write, and is linked to the previous leaf. Then each interior
+ * level is built in one pass over the level below, the totals of the children are known and set in
+ * their cells directly. Pages
+ * are allocated in the order they are written, so a load is mostly sequential writes.
+ *
+ * The separator key of a child is the largest key under it, as {@link BLeafNode#split(List, Payload, boolean)} does.
+ */
+public class BulkLoader {
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+    private final DBFile db;
+    private final List<Integer> key_types;
+    private final int[] key_types_arr;
+    private final int[] val_types_arr;
+    private final double fill_factor;
+
+    /**
+     * @param db
+     * @param key_types
+     * @param val_types
+     * @param fill_factor in (0, 1], the part of the body of each node to fill. free space lets later
+     *                    inserts go without splitting.
+     */
+    public BulkLoader(DBFile db, List<Integer> key_types, List<Integer> val_types, double fill_factor) {
+        if (key_types == null) throw new NullPointerException("key_types must not be null");
+        if (val_types == null) throw new NullPointerException("val_types must not be null");
+        if (!(fill_factor > 0 && fill_factor <= 1)) {
+            throw new IllegalArgumentException("fill_factor must be in (0, 1], got " + fill_factor);
+        }
+        this.db = db;
+        this.key_types = key_types;
+        this.key_types_arr = key_types.stream().mapToInt(Integer::intValue).toArray();
+        this.val_types_arr = val_types.stream().mapToInt(Integer::intValue).toArray();
+        this.fill_factor = fill_factor;
+    }
+
+    /**
+     * @param rows key-value pairs, sorted by key in strictly ascending order
+     * @return page id of the root
+     */
+    public int load(Iterator<? extends Map.Entry<Payload, Payload>> rows) {
+        Level level = load_leaves(rows);
+        if (level.pages.isEmpty()) {
+            int page_id = db.alloc_page();
+            BLeafNode.create(page_id, db, key_types_arr, val_types_arr);
+            return page_id;
+        }
+        while (level.pages.size() > 1) {
+            level = load_interiors(level);
+        }
+        return level.pages.get(0);
+    }
+
+    /**
+     * nodes of a level in key order
+     */
+    private static class Level {
+        List<Integer> pages = new ArrayList<>();
+        // largest key under each node
+        List<Payload> max_keys = new ArrayList<>();
+        List<Integer> totals = new ArrayList<>();
+
+        void add(int page_id, Payload max_key, int total) {
+            pages.add(page_id);
+            max_keys.add(max_key);
+            totals.add(total);
+        }
+    }
+
+    private Level load_leaves(Iterator<? extends Map.Entry<Payload, Payload>> rows) {
+        Level level = new Level();
+        BLeafNode prev = null;
+        Payload last = null;
+        // the row read ahead that didn't fit in the last leaf
+        Map.Entry<Payload, Payload> row = null;
+        List<Payload> keys = new ArrayList<>();
+        List<Payload> values = new ArrayList<>();
+
+        while (row != null || rows.hasNext()) {
+            int page_id = db.alloc_page();
+            BLeafNode leaf = BLeafNode.create(page_id, db, key_types_arr, val_types_arr);
+            int budget = (int) (leaf.get_body_size() * fill_factor);
+
+            keys.clear();
+            values.clear();
+            int used = 0;
+            while (row != null || rows.hasNext()) {
+                if (row == null) {
+                    row = rows.next();
+                    check_key(row.getKey(), last);
+                }
+                int space = BTreeNode.get_cell_space(PageType.BTREE_LEAF, row.getKey());
+                // keys are sorted, the prefix they share is the one of the first and the last key
+                int prefix_size = keys.isEmpty() ? 0 : BTreeNode.common_prefix(keys.get(0), row.getKey());
+                if (!keys.isEmpty() && used + space - keys.size() * prefix_size > budget) break;
+                keys.add(row.getKey());
+                values.add(row.getValue());
+                last = row.getKey();
+                used += space;
+                row = null;
+            }
+            leaf.fill(keys, values);
+
+            if (prev != null) {
+                prev.set_right_sibling(page_id);
+                leaf.set_left_sibling(prev.get_page_id());
+            }
+            prev = leaf;
+            level.add(page_id, last, keys.size());
+        }
+        return level;
+    }
+
+    private void check_key(Payload key, Payload last) {
+        if (!Payload.is_compatible(key_types, key.get_types())) {
+            throw new IllegalArgumentException("key type mismatch, " +
+                    "expect " + ObjType.to_string(key_types) +
+                    ", got " + ObjType.to_string(key.get_types()));
+        }
+        if (last != null && key.compareTo(last) <= 0) {
+            throw new IllegalArgumentException("rows are not sorted by key, " + key + " after " + last);
+        }
+    }
+
+    private Level load_interiors(Level children) {
+        Level level = new Level();
+        int n = children.pages.size();
+
+        int from = 0;
+        while (from < n) {
+            int page_id = db.alloc_page();
+            BInteriorNode node = BInteriorNode.create(page_id, db, key_types_arr, val_types_arr);
+            int budget = (int) (node.get_body_size() * fill_factor);
+
+            // take children while their keys fit in the budget, at least 2 of them
+            int size = 1;
+            int used = 0;
+            while (from + size < n) {
+                Payload key = children.max_keys.get(from + size - 1);
+                int space = BTreeNode.get_cell_space(PageType.BTREE_INTERIOR, key);
+                int prefix_size = BTreeNode.common_prefix(children.max_keys.get(from), key);
+                if (size >= 2 && used + space - (size - 1) * prefix_size > budget) break;
+                used += space;
+                size++;
+            }
+            // don't leave a single child to the last node
+            if (n - from - size == 1) {
+                size += size > 2 ? -1 : 1;
+            }
+
+            List<Integer> child_pages = children.pages.subList(from, from + size);
+            List<Integer> child_totals = children.totals.subList(from, from + size);
+            int total = 0;
+            for (int child_total : child_totals) {
+                total += child_total;
+            }
+            node.fill(children.max_keys.subList(from, from + size - 1), child_pages, child_totals);
+
+            level.add(page_id, children.max_keys.get(from + size - 1), total);
+            from += size;
+        }
+        return level;
+    }
+}
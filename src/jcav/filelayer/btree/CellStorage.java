@@ -6,6 +6,8 @@ import jcav.filelayer.exception.DBRuntimeError;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class CellStorage {
@@ -17,8 +19,18 @@ public class CellStorage {
         // value_types, int[]
     }};
 
+    private static final HeaderLayout PARTIAL_LAYOUT = compile_layout(-1);
+    private static final HeaderLayout.Field VALUE_COUNT = PARTIAL_LAYOUT.field("value_count");
+    // value_count -> compiled layout with value_types
+    private static final Map<Integer, HeaderLayout> LAYOUTS = new ConcurrentHashMap<>();
+
     private OverflowPage page;
     private Headers headers;
+    // fixed for the life of the storage, for read_unit
+    private int unit_size;
+    private int value_size;
+    private int page_header_size;
+    private int page_available_size;
 
     //////////////////////////////////////////////////////////////////////////
     // life cycle
@@ -31,6 +43,11 @@ public class CellStorage {
 
         this.page = page;
         construct_headers();
+
+        this.unit_size = get_unit_size();
+        this.value_size = Payload.get_size(get_value_types());
+        this.page_header_size = page.get_page_header_size();
+        this.page_available_size = page.get_available_size();
     }
 
     public static CellStorage create(OverflowPage page, int[] value_types) {
@@ -64,14 +81,21 @@ public class CellStorage {
     }
 
     private void construct_headers() {
+        int value_count = VALUE_COUNT.read_int(page.get_owner(), page.get_page_id());
+        HeaderLayout layout = LAYOUTS.computeIfAbsent(value_count, CellStorage::compile_layout);
+        headers = new Headers(layout, page.get_page_id(), page.get_owner());
+    }
+
+    /**
+     * @param value_count if negative, value_types is not included
+     */
+    private static HeaderLayout compile_layout(int value_count) {
         List<FieldDef> defs = new ArrayList<>(OverflowPage.HEADER_DEFS);
         defs.addAll(EXT_HDR_DEFS);
-        Headers partial = new Headers(defs, page.get_page_id(), page.get_owner());
-        int value_count = partial.get("value_count").to_int();
-
-        defs.add(new FieldDef(4 * value_count, "value_types", new int[value_count]));
-
-        headers = new Headers(defs, page.get_page_id(), page.get_owner());
+        if (value_count >= 0) {
+            defs.add(new FieldDef(4 * value_count, "value_types", new int[value_count]));
+        }
+        return HeaderLayout.compile(defs);
     }
 
     public void release_self() {
@@ -97,12 +121,29 @@ public class CellStorage {
     // unit management
     ///////////////////////////////////////////////////////////
     public int allocate_unit() {
+        return allocate_unit(true);
+    }
+
+    /**
+     * allocate a unit and write the payload to it, the unit is written once.
+     * @param payload
+     * @return unit id
+     */
+    public int add_unit(Payload payload) {
+        int unit_id = allocate_unit(false);
+        set_unit(unit_id, payload);
+        return unit_id;
+    }
+
+    private int allocate_unit(boolean clear) {
         int free_unit = headers.get("free_unit").to_int();
         if (free_unit == -1) {
             int unit_count = headers.get("unit_count").to_int();
             headers.set("unit_count", unit_count + 1);
-            OverflowPage.OutputStream out = get_unit_out_stream(unit_count);
-            out.write(new byte[get_unit_size()]);
+            if (clear) {
+                OverflowPage.OutputStream out = get_unit_out_stream(unit_count);
+                out.write(new byte[get_unit_size()]);
+            }
             return unit_count;
         } else {
             // find next free unit
@@ -116,12 +157,76 @@ public class CellStorage {
             set_free_unit(next_free);
 
             // clear the unit
-            OverflowPage.OutputStream out = get_unit_out_stream(free_unit);
-            out.write(new byte[get_unit_size()]);
+            if (clear) {
+                OverflowPage.OutputStream out = get_unit_out_stream(free_unit);
+                out.write(new byte[get_unit_size()]);
+            }
             return free_unit;
         }
     }
 
+    /**
+     * allocate units for the values after the last unit, and write them in one sequential write.
+     * the free list is not used, it is meant for filling a new storage.
+     *
+     * @param values
+     * @return unit id of the first value, the others follow it
+     */
+    public int append_units(List<Payload> values) {
+        List<Integer> value_types = get_value_type_list();
+        byte[] data = new byte[unit_size * values.size()];
+        for (int i = 0; i < values.size(); i++) {
+            Payload value = values.get(i);
+            if (!Payload.is_compatible(value_types, value.get_types())) {
+                throw new DBRuntimeError("Payload is not compatible with this CellStorage, " +
+                        "expected " + ObjType.to_string(value_types) +
+                        ", got " + ObjType.to_string(value.get_types()));
+            }
+            byte[] bytes = value.get_bytes();
+            System.arraycopy(bytes, 0, data, i * unit_size, bytes.length);
+        }
+
+        int first = get_unit_count();
+        get_unit_out_stream(first).write(data);
+        headers.set("unit_count", first + values.size());
+        return first;
+    }
+
+    /**
+     * release all units at once. pages of the chain are kept for later units.
+     */
+    public void clear() {
+        headers.set("unit_count", 0);
+        set_free_unit(-1);
+    }
+
+    /**
+     * release the pages of the chain after the one holding the last unit, for a storage that
+     * shrank. units after unit_count are not used, so the free list is not affected.
+     */
+    public void trim() {
+        DBFile db = page.get_owner();
+        long used = get_unit_pos(get_unit_count());
+        long keep = Math.max(1, (used + page_available_size - 1) / page_available_size);
+
+        OverflowPage h = page;
+        for (long i = 1; i < keep && h.get_next() != 0; i++) {
+            h = new OverflowPage(h.get_next(), db);
+        }
+        int next = h.get_next();
+        if (next == 0) {
+            return;
+        }
+        h.set_next(0);
+        db.get_overflow_index().invalidate(page.get_page_id());
+        while (next != 0) {
+            OverflowPage p = new OverflowPage(next, db);
+            int after = p.get_next();
+            db.release_page(next);
+            next = after;
+        }
+    }
+
     public void release_unit(int unit_id) {
         int next_free = headers.get("free_unit").to_int();
 
@@ -140,9 +245,7 @@ public class CellStorage {
      * @return
      */
     private long get_unit_pos(int cell_id) {
-        int unit_size = headers.get("unit_size").to_int();
-        long offset = headers.get_total_length() - Headers.get_total_length(OverflowPage.HEADER_DEFS)
-                + unit_size * cell_id;
+        long offset = headers.get_total_length() - page_header_size + (long) unit_size * cell_id;
         return offset;
     }
 
@@ -167,16 +270,38 @@ public class CellStorage {
     }
 
     public Payload get_unit(int unit_id) {
-        byte[] data = new byte[get_unit_size()];
-        OverflowPage.InputStream in = get_unit_in_stream(unit_id);
-        int sz = in.read(data);
-        if (sz != data.length) {
-            throw new DBRuntimeError("CellStorage unit corrupted, incomplete unit data");
-        }
+        byte[] data = new byte[value_size];
+        read_unit(unit_id, data, 0);
         Payload payload = new Payload(get_value_type_list(), data);
         return payload;
     }
 
+    /**
+     * read the payload data of a unit into dst, no object is created, see {@link PayloadView}.
+     *
+     * @param unit_id
+     * @param dst
+     * @param offset
+     */
+    public void read_unit(int unit_id, byte[] dst, int offset) {
+        DBFile db = page.get_owner();
+        long pos = get_unit_pos(unit_id);
+        int left = value_size;
+        while (left > 0) {
+            int page_id = db.get_overflow_index().get_page(
+                    page.get_page_id(), (int) (pos / page_available_size), false);
+            if (page_id == 0) {
+                throw new DBRuntimeError("CellStorage unit corrupted, incomplete unit data");
+            }
+            int in_page = (int) (pos % page_available_size);
+            int len = Math.min(left, page_available_size - in_page);
+            db.read(page_id, page_header_size + in_page, dst, offset, len);
+            pos += len;
+            offset += len;
+            left -= len;
+        }
+    }
+
     public void set_unit(int unit_id, Payload payload) {
         List<Integer> value_types = get_value_type_list();
         if (!Payload.is_compatible(value_types, payload.get_types())) {
@@ -0,0 +1,230 @@
+package jcav.filelayer.btree;
+
+import jcav.filelayer.DBFile;
+import jcav.filelayer.PageHandle;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+
+/**
+ * A position in the leaves of a {@link BPlusTree}, moved by seeking a key and stepping along the
+ * sibling links of leaves. Keys and values are decoded only when asked for, and bounds are checked
+ * against the keys on the pinned page, so a range [lo, hi) costs one descent plus the leaves holding
+ * the range, and at most the first key of the leaf after it.
+ *
+ * A cursor is invalid when it moves out of the tree or out of its bounds. Don't modify the tree while
+ * a cursor is open on it, the cursor has to seek again after that.
+ *
+ * <pre>
+ * try (Cursor c = tree.range(lo, hi)) {
+ *     for (; c.is_valid(); c.next()) {
+ *         c.get_key(); c.get_value();
+ *     }
+ * }
+ * </pre>
+ */
+public class Cursor implements AutoCloseable {
+    private final BPlusTree tree;
+    private final DBFile db;
+    // inclusive lower bound and exclusive upper bound, null if unbounded
+    private final Payload lower;
+    private final Payload upper;
+
+    private BLeafNode leaf = null;
+    private int slot = 0;
+    private boolean closed = false;
+
+    protected Cursor(BPlusTree tree, Payload lower, Payload upper) {
+        this.tree = tree;
+        this.db = tree.get_db();
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    ////////////////////////////////////////////////////////////
+    // positioning
+    ////////////////////////////////////////////////////////////
+
+    /**
+     * move to the first key not less than key.
+     * @param key
+     * @return is_valid()
+     */
+    public boolean seek(Payload key) {
+        check_open();
+        if (lower != null && key.compareTo(lower) < 0) key = lower;
+        seek_lower_bound(key);
+        return check_bounds();
+    }
+
+    public boolean seek_first() {
+        check_open();
+        if (lower != null) return seek(lower);
+        leaf = tree.leftmost_leaf();
+        slot = 0;
+        skip_forward();
+        return check_bounds();
+    }
+
+    public boolean seek_last() {
+        check_open();
+        if (upper != null) {
+            seek_lower_bound(upper);
+            if (leaf == null) {
+                leaf = tree.rightmost_leaf();
+                slot = leaf.get_slot_count();
+            }
+        } else {
+            leaf = tree.rightmost_leaf();
+            slot = leaf.get_slot_count();
+        }
+        slot--;
+        skip_backward();
+        return check_bounds();
+    }
+
+    /**
+     * @return is_valid()
+     */
+    public boolean next() {
+        check_valid();
+        slot++;
+        skip_forward();
+        return check_bounds();
+    }
+
+    /**
+     * @return is_valid()
+     */
+    public boolean prev() {
+        check_valid();
+        slot--;
+        skip_backward();
+        return check_bounds();
+    }
+
+    public boolean is_valid() {
+        return leaf != null;
+    }
+
+    @Override
+    public void close() {
+        leaf = null;
+        closed = true;
+    }
+
+    ////////////////////////////////////////////////////////////
+    // current row
+    ////////////////////////////////////////////////////////////
+
+    public Payload get_key() {
+        check_valid();
+        return leaf.get_key(slot);
+    }
+
+    public Payload get_value() {
+        check_valid();
+        return leaf.get_value(slot);
+    }
+
+    public BLeafNode get_leaf() {
+        check_valid();
+        return leaf;
+    }
+
+    public int get_slot() {
+        check_valid();
+        return slot;
+    }
+
+    /**
+     * rows from the current one to the end of the range, the cursor moves with the iterator.
+     * @return
+     */
+    public Iterator<Map.Entry<Payload, Payload>> iterator() {
+        return new Iterator<Map.Entry<Payload, Payload>>() {
+            @Override
+            public boolean hasNext() {
+                return is_valid();
+            }
+
+            @Override
+            public Map.Entry<Payload, Payload> next() {
+                if (!is_valid()) throw new NoSuchElementException();
+                Map.Entry<Payload, Payload> row = new AbstractMap.SimpleImmutableEntry<>(get_key(), get_value());
+                Cursor.this.next();
+                return row;
+            }
+        };
+    }
+
+    public Spliterator<Map.Entry<Payload, Payload>> spliterator() {
+        return Spliterators.spliteratorUnknownSize(
+                iterator(),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL
+        );
+    }
+
+    ////////////////////////////////////////////////////////////
+    // internal
+    ////////////////////////////////////////////////////////////
+
+    private void check_open() {
+        if (closed) throw new IllegalStateException("cursor is closed");
+    }
+
+    private void check_valid() {
+        check_open();
+        if (leaf == null) throw new IllegalStateException("cursor is not on a row");
+    }
+
+    /**
+     * position at the first key not less than key, bounds are not checked.
+     */
+    private void seek_lower_bound(Payload key) {
+        SearchResult r = tree.search(key);
+        leaf = r.get_leaf();
+        slot = r.found() ? r.idx : -(r.idx + 1);
+        skip_forward();
+    }
+
+    /**
+     * if slot is after the last slot of the leaf, move to the first slot of the next non-empty leaf.
+     */
+    private void skip_forward() {
+        while (leaf != null && slot >= leaf.get_slot_count()) {
+            int right = leaf.get_right_sibling();
+            leaf = right == 0 ? null : new BLeafNode(right, db);
+            slot = 0;
+        }
+    }
+
+    /**
+     * if slot is before the first slot of the leaf, move to the last slot of the previous non-empty leaf.
+     */
+    private void skip_backward() {
+        while (leaf != null && slot < 0) {
+            int left = leaf.get_left_sibling();
+            leaf = left == 0 ? null : new BLeafNode(left, db);
+            slot = leaf == null ? 0 : leaf.get_slot_count() - 1;
+        }
+    }
+
+    /**
+     * compare the current key with the bounds on the page, invalidate the cursor if it is out of them.
+     * @return is_valid()
+     */
+    private boolean check_bounds() {
+        if (leaf == null || (lower == null && upper == null)) return is_valid();
+        try (PageHandle h = db.pin(leaf.get_page_id())) {
+            NodeView view = new NodeView(h);
+            if (lower != null && view.compare(lower, slot) > 0) leaf = null;
+            else if (upper != null && view.compare(upper, slot) <= 0) leaf = null;
+        }
+        return is_valid();
+    }
+}
@@ -0,0 +1,472 @@
+package jcav.filelayer.btree;
+
+import jcav.filelayer.exception.DBRuntimeError;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * External merge sort of key-value pairs, to feed unsorted rows to {@link BulkLoader}.
+ *
+ * Rows are buffered as fixed-size records, the {@link KeyCodec} encoding of the key followed by
+ * the payload data of the value, so records are ordered by comparing bytes. A full buffer is sorted
+ * and spilled as a run to a temp file. {@link #sorted()} merges the runs k ways, in extra passes if
+ * there are more runs than the memory budget can read at once. Runs are written and read
+ * sequentially, so sorting a data set larger than memory costs a few sequential passes over it.
+ *
+ * If all rows fit in one run, nothing is spilled.
+ *
+ * Temp files are deleted after merging or by {@link #close()}, which should be called even if the
+ * sort fails or the rows are not read to the end.
+ */
+public class ExternalSorter implements AutoCloseable {
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+    // read buffer of a run in merge, and write buffer of a run
+    public static final int RUN_BUFFER_SIZE = 64 << 10;
+    // the sort order and the scratch array of merge sort, an int each per buffered row
+    private static final int ORDER_BYTES_PER_ROW = 8;
+
+    private final List<Integer> key_types;
+    private final List<Integer> val_types;
+    private final int key_size;
+    private final int record_size;
+    private final int run_size;
+    private final int fan_in;
+    private File temp_dir = null;
+
+    private byte[] buffer;
+    private int buffered = 0;
+    private List<File> runs = new ArrayList<>();
+    // every run created and the readers not closed yet, for close()
+    private List<File> temp_files = new ArrayList<>();
+    private List<RunReader> readers = new ArrayList<>();
+    private boolean sorted = false;
+
+    // metrics
+    private long rows = 0;
+    private int runs_produced = 0;
+    private int merge_passes = 0;
+    private long spilled_bytes = 0;
+
+    /**
+     * @param key_types
+     * @param val_types
+     * @param memory_budget bytes for the sort buffer with its sort order, and the read buffers of merging runs
+     * @param run_size max rows of a run, the buffer is also limited by memory_budget
+     */
+    public ExternalSorter(List<Integer> key_types, List<Integer> val_types, long memory_budget, int run_size) {
+        if (key_types == null) throw new NullPointerException("key_types must not be null");
+        if (val_types == null) throw new NullPointerException("val_types must not be null");
+        if (run_size < 1) throw new IllegalArgumentException("run_size must be positive, got " + run_size);
+
+        this.key_types = new ArrayList<>(key_types);
+        this.val_types = new ArrayList<>(val_types);
+        this.key_size = Payload.get_size(key_types);
+        this.record_size = key_size + Payload.get_size(val_types);
+
+        long max_rows = Math.min(memory_budget / (record_size + ORDER_BYTES_PER_ROW),
+                (Integer.MAX_VALUE - 8) / record_size);
+        if (max_rows < 1) {
+            throw new IllegalArgumentException("memory_budget is too small for a row, got " + memory_budget);
+        }
+        this.run_size = (int) Math.min(run_size, max_rows);
+        this.fan_in = (int) Math.max(2, memory_budget / RUN_BUFFER_SIZE);
+    }
+
+    public ExternalSorter(List<Integer> key_types, List<Integer> val_types) {
+        this(key_types, val_types, DEFAULT_MEMORY_BUDGET, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param dir directory of temp files, null for the system default
+     */
+    public void set_temp_dir(File dir) {
+        this.temp_dir = dir;
+    }
+
+    public void add(Payload key, Payload value) {
+        if (sorted) throw new IllegalStateException("rows can't be added after sorted()");
+        byte[] key_bytes = key.get_key_bytes();
+        byte[] value_bytes = value.get_bytes();
+        if (!Payload.is_compatible(key_types, key.get_types()) || key_bytes.length != key_size) {
+            throw new IllegalArgumentException("key type mismatch, " +
+                    "expect " + ObjType.to_string(key_types) +
+                    ", got " + ObjType.to_string(key.get_types()));
+        }
+        if (!Payload.is_compatible(val_types, value.get_types()) || value_bytes.length != record_size - key_size) {
+            throw new IllegalArgumentException("value type mismatch, " +
+                    "expect " + ObjType.to_string(val_types) +
+                    ", got " + ObjType.to_string(value.get_types()));
+        }
+
+        if (buffer == null) {
+            // grow the buffer with the rows, small inputs do not take the whole budget
+            buffer = new byte[Math.min(run_size, 1024) * record_size];
+        }
+        if (buffered == run_size) {
+            spill();
+        }
+        if ((buffered + 1) * record_size > buffer.length) {
+            int grown = (int) Math.min(run_size, (long) buffered * 2);
+            buffer = Arrays.copyOf(buffer, grown * record_size);
+        }
+        int pos = buffered * record_size;
+        System.arraycopy(key_bytes, 0, buffer, pos, key_size);
+        System.arraycopy(value_bytes, 0, buffer, pos + key_size, value_bytes.length);
+        buffered++;
+        rows++;
+    }
+
+    public void add_all(Iterator<? extends Map.Entry<Payload, Payload>> rows) {
+        while (rows.hasNext()) {
+            Map.Entry<Payload, Payload> row = rows.next();
+            add(row.getKey(), row.getValue());
+        }
+    }
+
+    /**
+     * sort the rows added, the sorter can't be used afterwards.
+     *
+     * @return rows in ascending key order, rows of the same key are adjacent
+     */
+    public Iterator<Map.Entry<Payload, Payload>> sorted() {
+        if (sorted) throw new IllegalStateException("sorted() can only be called once");
+        sorted = true;
+
+        if (runs.isEmpty()) {
+            int[] order = sort_buffer();
+            byte[] data = buffer;
+            buffer = null;
+            return new MemoryRun(data, order);
+        }
+
+        if (buffered > 0) spill();
+        buffer = null;
+        while (runs.size() > fan_in) {
+            merge_pass();
+        }
+        merge_passes++;
+        return new Merger(open_runs(runs));
+    }
+
+    /**
+     * close the runs being read and delete all temp files left.
+     */
+    @Override
+    public void close() {
+        for (RunReader reader : new ArrayList<>(readers)) {
+            reader.close();
+        }
+        for (File file : temp_files) {
+            file.delete();
+        }
+        temp_files.clear();
+        runs.clear();
+        buffer = null;
+    }
+
+    ////////////////////////////////////////////////////////////
+    // metrics
+    ////////////////////////////////////////////////////////////
+
+    public List<Integer> get_key_types() {
+        return key_types;
+    }
+
+    public List<Integer> get_value_types() {
+        return val_types;
+    }
+
+    public long get_rows() {
+        return rows;
+    }
+
+    public int get_runs_produced() {
+        return runs_produced;
+    }
+
+    /**
+     * @return number of merges over all rows, the final merge of {@link #sorted()} included
+     */
+    public int get_merge_passes() {
+        return merge_passes;
+    }
+
+    public long get_spilled_bytes() {
+        return spilled_bytes;
+    }
+
+    public int get_run_size() {
+        return run_size;
+    }
+
+    public int get_fan_in() {
+        return fan_in;
+    }
+
+    ////////////////////////////////////////////////////////////
+    // runs
+    ////////////////////////////////////////////////////////////
+
+    private int compare(byte[] a, int a_offset, byte[] b, int b_offset) {
+        return KeyCodec.compare(a, a_offset, b, b_offset, key_size);
+    }
+
+    /**
+     * @return offsets of the buffered records in ascending key order, records of the same key keep
+     * the order they were added
+     */
+    private int[] sort_buffer() {
+        int[] order = new int[buffered];
+        for (int i = 0; i < buffered; i++) {
+            order[i] = i * record_size;
+        }
+        merge_sort(order, new int[buffered], 0, buffered);
+        return order;
+    }
+
+    private static final int INSERTION_SORT_ROWS = 16;
+
+    /**
+     * stable merge sort of the offsets in [from, to), scratch is as long as order.
+     */
+    private void merge_sort(int[] order, int[] scratch, int from, int to) {
+        byte[] data = buffer;
+        if (to - from <= INSERTION_SORT_ROWS) {
+            for (int i = from + 1; i < to; i++) {
+                int offset = order[i];
+                int j = i - 1;
+                while (j >= from && compare(data, order[j], data, offset) > 0) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = offset;
+            }
+            return;
+        }
+
+        int mid = (from + to) >>> 1;
+        merge_sort(order, scratch, from, mid);
+        merge_sort(order, scratch, mid, to);
+        // already in order, common for sorted input
+        if (compare(data, order[mid - 1], data, order[mid]) <= 0) return;
+
+        System.arraycopy(order, from, scratch, from, to - from);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to) {
+            order[k++] = compare(data, scratch[j], data, scratch[i]) < 0 ? scratch[j++] : scratch[i++];
+        }
+        while (i < mid) order[k++] = scratch[i++];
+        while (j < to) order[k++] = scratch[j++];
+    }
+
+    private File create_run() {
+        try {
+            File file = File.createTempFile("jcav-sort-", ".run", temp_dir);
+            temp_files.add(file);
+            runs_produced++;
+            return file;
+        } catch (IOException e) {
+            throw new DBRuntimeError("can't create sort run", e);
+        }
+    }
+
+    private void spill() {
+        int[] order = sort_buffer();
+        File run = create_run();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_SIZE)) {
+            for (int offset : order) {
+                out.write(buffer, offset, record_size);
+            }
+        } catch (IOException e) {
+            throw new DBRuntimeError("sort run write error", e);
+        }
+        spilled_bytes += (long) buffered * record_size;
+        runs.add(run);
+        buffered = 0;
+    }
+
+    /**
+     * merge the runs in groups of fan_in, into fewer runs.
+     */
+    private void merge_pass() {
+        List<File> merged = new ArrayList<>();
+        for (int from = 0; from < runs.size(); from += fan_in) {
+            List<File> group = new ArrayList<>(runs.subList(from, Math.min(runs.size(), from + fan_in)));
+            if (group.size() == 1) {
+                merged.add(group.get(0));
+                continue;
+            }
+
+            File run = create_run();
+            Merger merger = new Merger(open_runs(group));
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_SIZE)) {
+                while (merger.has_next()) {
+                    out.write(merger.next_record(), 0, record_size);
+                    spilled_bytes += record_size;
+                }
+            } catch (IOException e) {
+                throw new DBRuntimeError("sort run write error", e);
+            }
+            for (File f : group) {
+                f.delete();
+            }
+            merged.add(run);
+        }
+        runs = merged;
+        merge_passes++;
+    }
+
+    private List<RunReader> open_runs(List<File> files) {
+        List<RunReader> opened = new ArrayList<>();
+        for (File file : files) {
+            RunReader reader = new RunReader(file);
+            readers.add(reader);
+            opened.add(reader);
+        }
+        return opened;
+    }
+
+    private Map.Entry<Payload, Payload> to_row(byte[] data, int offset) {
+        Payload key = Payload.from_key_bytes(key_types, data, offset);
+        Payload value = new Payload(val_types,
+                Arrays.copyOfRange(data, offset + key_size, offset + record_size));
+        return new AbstractMap.SimpleImmutableEntry<>(key, value);
+    }
+
+    /**
+     * sequential reader of a run, the current record is in `record`.
+     */
+    private class RunReader {
+        final File file;
+        final DataInputStream in;
+        final byte[] record = new byte[record_size];
+
+        RunReader(File file) {
+            this.file = file;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), RUN_BUFFER_SIZE));
+            } catch (IOException e) {
+                throw new DBRuntimeError("sort run open error", e);
+            }
+        }
+
+        /**
+         * @return false at the end of the run, and the run is closed
+         */
+        boolean advance() {
+            try {
+                in.readFully(record);
+                return true;
+            } catch (EOFException e) {
+                close();
+                return false;
+            } catch (IOException e) {
+                close();
+                throw new DBRuntimeError("sort run read error", e);
+            }
+        }
+
+        void close() {
+            readers.remove(this);
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing to lose, the run is read only
+            }
+        }
+    }
+
+    /**
+     * k-way merge of runs. runs are deleted when the merge reaches their end.
+     */
+    private class Merger implements Iterator<Map.Entry<Payload, Payload>> {
+        final PriorityQueue<RunReader> heap;
+        // the reader whose record was returned last, advanced lazily
+        RunReader last = null;
+
+        Merger(List<RunReader> readers) {
+            heap = new PriorityQueue<>(Math.max(1, readers.size()),
+                    (a, b) -> compare(a.record, 0, b.record, 0));
+            for (RunReader reader : readers) {
+                if (reader.advance()) heap.add(reader);
+                else reader.file.delete();
+            }
+        }
+
+        private void advance_last() {
+            if (last == null) return;
+            if (last.advance()) {
+                heap.add(last);
+            } else {
+                last.file.delete();
+            }
+            last = null;
+        }
+
+        boolean has_next() {
+            advance_last();
+            return !heap.isEmpty();
+        }
+
+        /**
+         * @return the next record, valid until the next call
+         */
+        byte[] next_record() {
+            if (!has_next()) throw new NoSuchElementException();
+            last = heap.poll();
+            return last.record;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return has_next();
+        }
+
+        @Override
+        public Map.Entry<Payload, Payload> next() {
+            return to_row(next_record(), 0);
+        }
+    }
+
+    /**
+     * rows of the sort buffer, when nothing is spilled.
+     */
+    private class MemoryRun implements Iterator<Map.Entry<Payload, Payload>> {
+        final byte[] data;
+        // offsets of the records
+        final int[] order;
+        int next = 0;
+
+        MemoryRun(byte[] data, int[] order) {
+            this.data = data;
+            this.order = order;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < order.length;
+        }
+
+        @Override
+        public Map.Entry<Payload, Payload> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return to_row(data, order[next++]);
+        }
+    }
+}
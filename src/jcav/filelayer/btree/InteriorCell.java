@@ -14,7 +14,10 @@ public class InteriorCell extends Cell {
     public static final List<FieldDef> HEADER_DEFS = new ArrayList() {{
         add(new FieldDef(1, "type", CellType.INTERIOR));
         add(new FieldDef(4, "child_page", 0));
+        add(new FieldDef(4, "child_total", 0)); // number of keys under the child
     }};
+    // offset of the key in the cell
+    public static final int KEY_OFFSET = 9;
 
     private List<Integer> payload_types = new ArrayList<>();
 
@@ -60,6 +63,14 @@ public class InteriorCell extends Cell {
         );
     }
 
+    public static int get_cell_size(int[] key_types) {
+        return KEY_OFFSET + Payload.get_size(key_types);
+    }
+
+    public static int get_cell_size(List<Integer> key_types) {
+        return KEY_OFFSET + Payload.get_size(key_types);
+    }
+
     public int get_child() {
         int page = Bytes.to_int(data, 1);
         return page;
@@ -70,17 +81,26 @@ public class InteriorCell extends Cell {
         System.arraycopy(val, 0, data, 1, val.length);
     }
 
+    public int get_child_total() {
+        return Bytes.to_int(data, 5);
+    }
+
+    public void set_child_total(int total) {
+        byte[] val = Bytes.from_int(total);
+        System.arraycopy(val, 0, data, 5, val.length);
+    }
+
+    /**
+     * keys are stored in the form of {@link KeyCodec}.
+     * @return
+     */
     public Payload get_key() {
-        int offset = get_header_size();
-        int size = data.length - offset;
-        byte[] key_data = new byte[size];
-        System.arraycopy(data, offset, key_data, 0, size);
-        return new Payload(payload_types, key_data);
+        return Payload.from_key_bytes(payload_types, data, get_header_size());
     }
 
     public void set_key(Payload key) {
         int offset = get_header_size();
-        byte[] key_data = key.get_bytes();
+        byte[] key_data = key.get_key_bytes();
         if (key_data.length != data.length - offset)
             throw new DBRuntimeError("key size mismatch, expected " + (data.length - offset)
                     + " bytes, got " + key_data.length + " bytes");
@@ -0,0 +1,292 @@
+package jcav.filelayer.btree;
+
+import jcav.filelayer.Bytes;
+import jcav.filelayer.exception.DBRuntimeError;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Order-preserving binary encoding of keys. Two keys of the same types are ordered as their
+ * encodings compared as unsigned bytes, so b-tree nodes store keys in this form and compare them
+ * without decoding.
+ *
+ * Each object is encoded as a tag byte followed by a field of its type size:
+ * - tag is 0 for null and 1 otherwise, so null is less than any value. the field of null is all 0.
+ * - INT and LONG: big-endian with the sign bit flipped.
+ * - FLOAT and DOUBLE: IEEE bits, the sign bit flipped for positive numbers and all bits flipped for
+ *   negative numbers, so -0.0 < 0.0 and NaN is the largest.
+ * - STRING: utf-8 bytes padded with 0, which is the order of code points.
+ *
+ * The encoding has the same size as the {@link Payload} data. Since a key is compared as if padded
+ * with 0, its trailing 0 bytes need not be stored, b-tree cells keep only the
+ * {@link #packed_length(byte[], int, int)} bytes of a key.
+ *
+ * @see Payload#get_key_bytes()
+ */
+public class KeyCodec {
+    private static final byte NULL = 0;
+    private static final byte NOT_NULL = 1;
+
+    /**
+     * @param types
+     * @param data payload data, null flags followed by objects
+     * @return
+     */
+    public static byte[] encode(List<Integer> types, byte[] data) {
+        byte[] key = new byte[data.length];
+        int pos = types.size();
+        int key_pos = 0;
+        for (int i = 0; i < types.size(); i++) {
+            int type = types.get(i);
+            int size = ObjType.get_size(type);
+            if (data[i] == 1) {
+                key[key_pos] = NULL;
+            } else {
+                key[key_pos] = NOT_NULL;
+                encode_obj(type, data, pos, key, key_pos + 1, size);
+            }
+            pos += size;
+            key_pos += size + 1;
+        }
+        return key;
+    }
+
+    /**
+     * inverse of {@link #encode(List, byte[])}.
+     * @param types
+     * @param key
+     * @param offset
+     * @return payload data
+     */
+    public static byte[] decode(List<Integer> types, byte[] key, int offset) {
+        byte[] data = new byte[Payload.get_size(types)];
+        int pos = types.size();
+        int key_pos = offset;
+        for (int i = 0; i < types.size(); i++) {
+            int type = types.get(i);
+            int size = ObjType.get_size(type);
+            if (key[key_pos] == NULL) {
+                data[i] = 1;
+            } else {
+                decode_obj(type, key, key_pos + 1, data, pos, size);
+            }
+            pos += size;
+            key_pos += size + 1;
+        }
+        return data;
+    }
+
+    private static void encode_obj(int type, byte[] src, int src_pos, byte[] dst, int dst_pos, int size) {
+        if (type == ObjType.INT) {
+            put_int(dst, dst_pos, Bytes.to_int(src, src_pos) ^ Integer.MIN_VALUE);
+        } else if (type == ObjType.LONG) {
+            put_long(dst, dst_pos, Bytes.to_long(src, src_pos) ^ Long.MIN_VALUE);
+        } else if (type == ObjType.FLOAT) {
+            int bits = Float.floatToIntBits(Float.intBitsToFloat(Bytes.to_int(src, src_pos)));
+            put_int(dst, dst_pos, bits < 0 ? ~bits : bits ^ Integer.MIN_VALUE);
+        } else if (type == ObjType.DOUBLE) {
+            long bits = Double.doubleToLongBits(Bytes.to_double(src, src_pos));
+            put_long(dst, dst_pos, bits < 0 ? ~bits : bits ^ Long.MIN_VALUE);
+        } else if (ObjType.is_type_string(type)) {
+            System.arraycopy(src, src_pos, dst, dst_pos, size);
+        } else {
+            throw new DBRuntimeError("unknown type " + ObjType.to_string(type));
+        }
+    }
+
+    private static void decode_obj(int type, byte[] src, int src_pos, byte[] dst, int dst_pos, int size) {
+        if (type == ObjType.INT) {
+            put_int(dst, dst_pos, Bytes.to_int(src, src_pos) ^ Integer.MIN_VALUE);
+        } else if (type == ObjType.LONG) {
+            put_long(dst, dst_pos, Bytes.to_long(src, src_pos) ^ Long.MIN_VALUE);
+        } else if (type == ObjType.FLOAT) {
+            int bits = Bytes.to_int(src, src_pos);
+            put_int(dst, dst_pos, bits < 0 ? bits ^ Integer.MIN_VALUE : ~bits);
+        } else if (type == ObjType.DOUBLE) {
+            long bits = Bytes.to_long(src, src_pos);
+            put_long(dst, dst_pos, bits < 0 ? bits ^ Long.MIN_VALUE : ~bits);
+        } else if (ObjType.is_type_string(type)) {
+            System.arraycopy(src, src_pos, dst, dst_pos, size);
+        } else {
+            throw new DBRuntimeError("unknown type " + ObjType.to_string(type));
+        }
+    }
+
+    private static void put_int(byte[] arr, int offset, int val) {
+        arr[offset] = (byte) (val >> 24);
+        arr[offset + 1] = (byte) (val >> 16);
+        arr[offset + 2] = (byte) (val >> 8);
+        arr[offset + 3] = (byte) val;
+    }
+
+    private static void put_long(byte[] arr, int offset, long val) {
+        put_int(arr, offset, (int) (val >> 32));
+        put_int(arr, offset + 4, (int) val);
+    }
+
+    /**
+     * @param key
+     * @param offset
+     * @param length size of the key
+     * @return length of the key without its trailing 0 bytes
+     */
+    public static int packed_length(byte[] key, int offset, int length) {
+        while (length > 0 && key[offset + length - 1] == 0) {
+            length--;
+        }
+        return length;
+    }
+
+    /**
+     * @param a
+     * @param a_offset
+     * @param a_length
+     * @param b
+     * @param b_offset
+     * @param b_length
+     * @return number of leading bytes a and b have in common
+     */
+    public static int common_prefix(byte[] a, int a_offset, int a_length, byte[] b, int b_offset, int b_length) {
+        int len = Math.min(a_length, b_length);
+        int i = 0;
+        while (i < len && a[a_offset + i] == b[b_offset + i]) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * compare 2 encoded keys of compatible types.
+     *
+     * @param a
+     * @param a_offset
+     * @param a_types
+     * @param b
+     * @param b_offset
+     * @param b_types
+     * @return -1, 0 or 1
+     */
+    public static int compare(byte[] a, int a_offset, List<Integer> a_types,
+                              ByteBuffer b, int b_offset, List<Integer> b_types) {
+        return compare(a, a_offset, a_types, b, b_offset, Payload.get_size(b_types), b_types);
+    }
+
+    /**
+     * compare 2 encoded keys of compatible types, the bytes of b after b_length are taken as 0,
+     * see {@link #packed_length(byte[], int, int)}.
+     *
+     * @param a
+     * @param a_offset
+     * @param a_types
+     * @param b
+     * @param b_offset
+     * @param b_length stored bytes of b, at most the size of b_types
+     * @param b_types
+     * @return -1, 0 or 1
+     */
+    public static int compare(byte[] a, int a_offset, List<Integer> a_types,
+                              ByteBuffer b, int b_offset, int b_length, List<Integer> b_types) {
+        if (a_types.size() != b_types.size())
+            throw new IllegalArgumentException("can not compare 2 incompatible payloads.");
+
+        int len = 0;
+        int b_full = 0;
+        boolean same_types = true;
+        for (int i = 0; i < a_types.size(); i++) {
+            int type = a_types.get(i);
+            if (type != b_types.get(i)) same_types = false;
+            len += ObjType.get_size(type) + 1;
+            b_full += ObjType.get_size(b_types.get(i)) + 1;
+        }
+        if (same_types) {
+            int common = Math.min(len, b_length);
+            return compare_unsigned(a, a_offset, b, b_offset, common, len - common, 0);
+        }
+        if (b_length < b_full) {
+            byte[] full = new byte[b_full];
+            for (int i = 0; i < b_length; i++) {
+                full[i] = b.get(b_offset + i);
+            }
+            b = ByteBuffer.wrap(full);
+            b_offset = 0;
+        }
+        // strings of different lengths, compare object by object, the shorter one is padded with 0
+        for (int i = 0; i < a_types.size(); i++) {
+            int a_size = ObjType.get_size(a_types.get(i)) + 1;
+            int b_size = ObjType.get_size(b_types.get(i)) + 1;
+            int common = Math.min(a_size, b_size);
+            int cmp = compare_unsigned(a, a_offset, b, b_offset, common, a_size - common, b_size - common);
+            if (cmp != 0) return cmp;
+            a_offset += a_size;
+            b_offset += b_size;
+        }
+        return 0;
+    }
+
+    /**
+     * compare 2 encoded keys of the same types.
+     *
+     * @param a
+     * @param a_offset
+     * @param b
+     * @param b_offset
+     * @param len size of the keys
+     * @return -1, 0 or 1
+     */
+    public static int compare(byte[] a, int a_offset, byte[] b, int b_offset, int len) {
+        int i = 0;
+        for (; i + 8 <= len; i += 8) {
+            long x = Bytes.to_long(a, a_offset + i);
+            long y = Bytes.to_long(b, b_offset + i);
+            if (x != y) return Long.compareUnsigned(x, y) < 0 ? -1 : 1;
+        }
+        for (; i < len; i++) {
+            int x = a[a_offset + i] & 0xff;
+            int y = b[b_offset + i] & 0xff;
+            if (x != y) return x < y ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * compare len bytes of a with the bytes of b, those after b_length are taken as 0.
+     * a and b are parts of 2 encoded keys of the same types, e.g. after their common prefix.
+     *
+     * @param a
+     * @param a_offset
+     * @param len
+     * @param b
+     * @param b_offset
+     * @param b_length at most len
+     * @return -1, 0 or 1
+     */
+    public static int compare(byte[] a, int a_offset, int len, ByteBuffer b, int b_offset, int b_length) {
+        return compare_unsigned(a, a_offset, b, b_offset, b_length, len - b_length, 0);
+    }
+
+    /**
+     * compare len bytes, then the a_tail bytes after a or the b_tail bytes after b against 0.
+     */
+    private static int compare_unsigned(byte[] a, int a_offset, ByteBuffer b, int b_offset,
+                                        int len, int a_tail, int b_tail) {
+        int i = 0;
+        for (; i + 8 <= len; i += 8) {
+            long x = Bytes.to_long(a, a_offset + i);
+            long y = b.getLong(b_offset + i);
+            if (x != y) return Long.compareUnsigned(x, y) < 0 ? -1 : 1;
+        }
+        for (; i < len; i++) {
+            int x = a[a_offset + i] & 0xff;
+            int y = b.get(b_offset + i) & 0xff;
+            if (x != y) return x < y ? -1 : 1;
+        }
+        for (int k = 0; k < a_tail; k++) {
+            if (a[a_offset + len + k] != 0) return 1;
+        }
+        for (int k = 0; k < b_tail; k++) {
+            if (b.get(b_offset + len + k) != 0) return -1;
+        }
+        return 0;
+    }
+}
@@ -15,6 +15,8 @@ public class LeafCell extends Cell {
         add(new FieldDef(1, "type", CellType.LEAF));
         add(new FieldDef(4, "unit_id", 0));
     }};
+    // offset of the key in the cell
+    public static final int KEY_OFFSET = 5;
 
     private List<Integer> payload_types = new ArrayList<>();
 
@@ -77,17 +79,17 @@ public class LeafCell extends Cell {
         System.arraycopy(val, 0, data, 1, val.length);
     }
 
+    /**
+     * keys are stored in the form of {@link KeyCodec}.
+     * @return
+     */
     public Payload get_key() {
-        int offset = get_header_size();
-        int size = data.length - offset;
-        byte[] key_data = new byte[size];
-        System.arraycopy(data, offset, key_data, 0, size);
-        return new Payload(payload_types, key_data);
+        return Payload.from_key_bytes(payload_types, data, get_header_size());
     }
 
     public void set_key(Payload key) {
         int offset = get_header_size();
-        byte[] key_data = key.get_bytes();
+        byte[] key_data = key.get_key_bytes();
         if (key_data.length != data.length - offset)
             throw new DBRuntimeError("key size mismatch, expected " + (data.length - offset)
                     + " bytes, got " + key_data.length + " bytes");
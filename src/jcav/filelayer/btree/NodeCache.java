@@ -0,0 +1,129 @@
+package jcav.filelayer.btree;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache of decoded b-tree nodes by page id, so opening a node doesn't parse its header again.
+ * An entry holds the compiled layout, key/value types and cell size, which are fixed for the life of the
+ * node page, the slot array, the key prefix and the cell storage of a leaf.
+ *
+ * The cache is kept consistent by {@link #on_write(int, int, int)}, which is called on every write of the
+ * database: a write on the page type, i.e. the page is created, allocated or released, drops the entry,
+ * a write on the slots drops the decoded slot array, and a write on the prefix size, which is written
+ * after the prefix, drops the cached prefix. A transaction rollback must {@link #clear()} it.
+ *
+ * At most max_nodes nodes are cached, the least recently used one is dropped first.
+ * Methods are synchronized, so concurrent readers can share the cache.
+ *
+ * @see BTreeNode
+ */
+public class NodeCache {
+    public static final int DEFAULT_MAX_NODES = 1024;
+    private static final int PREFIX_SIZE_OFFSET = BTreeNode.PREFIX_SIZE.offset;
+
+    private Map<Integer, Node> entries;
+
+    public NodeCache(int max_nodes) {
+        if (max_nodes <= 0) throw new IllegalArgumentException("max_nodes must be positive");
+
+        this.entries = new LinkedHashMap<Integer, Node>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Node> eldest) {
+                if (size() > max_nodes) {
+                    eldest.getValue().drop();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param page_id
+     * @return null if the node is not cached.
+     */
+    public synchronized Node get(int page_id) {
+        return entries.get(page_id);
+    }
+
+    public synchronized void put(int page_id, Node entry) {
+        Node old = entries.put(page_id, entry);
+        if (old != null && old != entry) old.drop();
+    }
+
+    /**
+     * called before data is written on a page.
+     *
+     * @param page_id
+     * @param pos
+     * @param length
+     */
+    public synchronized void on_write(int page_id, int pos, int length) {
+        if (entries.isEmpty()) return;
+        Node entry = entries.get(page_id);
+        if (entry == null) return;
+
+        if (pos == 0) {
+            entries.remove(page_id);
+            entry.drop();
+            return;
+        }
+        int[] slots = entry.slots;
+        if (slots != null && pos + length > entry.layout.slot_count && pos < entry.layout.slots + slots.length * 2) {
+            entry.slots = null;
+        }
+        if (pos + length > PREFIX_SIZE_OFFSET && pos < PREFIX_SIZE_OFFSET + 4) {
+            entry.prefix = null;
+        }
+    }
+
+    public synchronized void invalidate(int page_id) {
+        Node entry = entries.remove(page_id);
+        if (entry != null) entry.drop();
+    }
+
+    public synchronized void clear() {
+        entries.values().forEach(Node::drop);
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * decoded node. an entry which is no longer in the cache is dropped, and its mutable parts
+     * are not used any more, since writes on the page no longer reach it.
+     */
+    static final class Node {
+        final byte page_type;
+        final int cell_size;
+        final BTreeNode.Layout layout;
+        final int[] key_types;
+        final int[] value_types;
+
+        // slot_count is slots.length, null if not decoded
+        volatile int[] slots;
+        // leaf only
+        volatile CellStorage storage;
+        // key prefix of the cells, null if not read
+        volatile byte[] prefix;
+        volatile boolean dropped = false;
+
+        Node(byte page_type, int cell_size, BTreeNode.Layout layout, int[] key_types, int[] value_types) {
+            this.page_type = page_type;
+            this.cell_size = cell_size;
+            this.layout = layout;
+            this.key_types = key_types;
+            this.value_types = value_types;
+        }
+
+        private void drop() {
+            dropped = true;
+            slots = null;
+            storage = null;
+            prefix = null;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package jcav.filelayer.btree;
+
+import jcav.filelayer.Headers;
+import jcav.filelayer.PageHandle;
+import jcav.filelayer.PageType;
+import jcav.filelayer.exception.DBRuntimeError;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A read-only view of a b-tree node on a pinned page. Fields are read directly from the page buffer, no
+ * {@link Headers} is built and no page data is copied, except the key bytes wrapped by returned payloads.
+ *
+ * The view is only valid while the page is pinned.
+ *
+ * @see BTreeNode
+ * @see PageHandle
+ */
+public class NodeView {
+    private static final int TYPE = Headers.get_offset(BTreeNode.BASIC_HDR_DEFS, "type");
+    private static final int HDR_SIZE = Headers.get_offset(BTreeNode.BASIC_HDR_DEFS, "hdr_size");
+    private static final int PREFIX_SIZE = Headers.get_offset(BTreeNode.BASIC_HDR_DEFS, "prefix_size");
+    private static final int CELL_SIZE = Headers.get_offset(BTreeNode.BASIC_HDR_DEFS, "cell_size");
+    private static final int KEY_COUNT = Headers.get_offset(BTreeNode.BASIC_HDR_DEFS, "key_count");
+    private static final int VALUE_COUNT = Headers.get_offset(BTreeNode.BASIC_HDR_DEFS, "value_count");
+    private static final int TAIL_TOTAL = Headers.get_offset(BTreeNode.BASIC_HDR_DEFS, "reserved1");
+    private static final int TAIL_CHILD = Headers.get_offset(BTreeNode.BASIC_HDR_DEFS, "reserved2");
+    private static final int KEY_TYPES = Headers.get_total_length(BTreeNode.BASIC_HDR_DEFS);
+
+    private ByteBuffer buf;
+    private int page_id;
+    private byte type;
+    private int hdr_size;
+    private int cell_size;
+    // offset of the key in a cell in memory, on page the key length is there and the key follows it
+    private int key_offset;
+    private int key_size;
+    private int slot_count;
+    private int slots_offset;
+    // the key prefix all cells share, at the page end
+    private int prefix_size;
+    private int prefix_offset;
+    private List<Integer> key_types;
+    // the full key of a probed cell, only if it is compared with a key of other types
+    private byte[] scratch;
+
+    public NodeView(PageHandle handle) {
+        this.buf = handle.get_buffer();
+        this.page_id = handle.get_page_id();
+        this.type = buf.get(TYPE);
+        if (type != PageType.BTREE_INTERIOR && type != PageType.BTREE_LEAF) {
+            throw new DBRuntimeError("Invalid page type, " +
+                    "expect BTREE_INTERIOR or BTREE_LEAF, " +
+                    "got " + type);
+        }
+
+        this.hdr_size = buf.getInt(HDR_SIZE);
+        this.cell_size = buf.getInt(CELL_SIZE);
+        this.key_offset = BTreeNode.get_key_offset(type);
+        this.key_size = cell_size - key_offset;
+        int key_count = buf.getInt(KEY_COUNT);
+        int value_count = buf.getInt(VALUE_COUNT);
+
+        this.key_types = new ArrayList<>(key_count);
+        for (int i = 0; i < key_count; i++) {
+            key_types.add(buf.getInt(KEY_TYPES + i * 4));
+        }
+
+        // slot_count, then u16 slots right after the header
+        this.slot_count = buf.getInt(KEY_TYPES + key_count * 4 + value_count * 4);
+        this.slots_offset = hdr_size;
+        this.prefix_size = buf.getInt(PREFIX_SIZE);
+        this.prefix_offset = buf.capacity() - prefix_size;
+    }
+
+    public int get_page_id() {
+        return page_id;
+    }
+
+    public byte get_page_type() {
+        return type;
+    }
+
+    public int get_slot_count() {
+        return slot_count;
+    }
+
+    public int get_slot(int idx) {
+        if (idx < 0 || idx >= slot_count) {
+            throw new IndexOutOfBoundsException("slot index out of range, got " + idx);
+        }
+        return buf.getShort(slots_offset + idx * 2) & 0xffff;
+    }
+
+    /**
+     * a leaf cell has a 7 bytes header before the key, an interior cell 11 bytes, the last 2 bytes
+     * are the key length. the key in the cell is what follows the prefix of the page.
+     * @param slot_id
+     * @return
+     */
+    public Payload get_key(int slot_id) {
+        byte[] key_data = new byte[key_size];
+        read_key(slot_id, key_data);
+        return Payload.from_key_bytes(key_types, key_data, 0);
+    }
+
+    /**
+     * copy the key into dst and pad it with 0 to its full size, e.g. to bind a {@link PayloadView#of_key(List)}.
+     * @param slot_id
+     * @param dst at least the full size of a key
+     */
+    public void read_key(int slot_id, byte[] dst) {
+        int offset = get_key_offset(slot_id);
+        int length = prefix_size + get_key_length(slot_id);
+        for (int i = 0; i < prefix_size; i++) {
+            dst[i] = buf.get(prefix_offset + i);
+        }
+        for (int i = prefix_size; i < length; i++) {
+            dst[i] = buf.get(offset + i - prefix_size);
+        }
+        for (int i = length; i < key_size; i++) {
+            dst[i] = 0;
+        }
+    }
+
+    /**
+     * @return bytes of the key prefix all cells share.
+     */
+    public int get_prefix_size() {
+        return prefix_size;
+    }
+
+    /**
+     * @param slot_id
+     * @return offset in the page buffer of the encoded key after the prefix.
+     */
+    public int get_key_offset(int slot_id) {
+        return get_slot(slot_id) + key_offset + 2;
+    }
+
+    /**
+     * @param slot_id
+     * @return stored bytes of the key after the prefix, the rest of it is 0,
+     *         see {@link KeyCodec#packed_length(byte[], int, int)}.
+     */
+    public int get_key_length(int slot_id) {
+        return buf.getShort(get_slot(slot_id) + key_offset) & 0xffff;
+    }
+
+    /**
+     * only for leaf nodes.
+     * @param slot_id
+     * @return unit id of the value in the cell storage.
+     */
+    public int get_unit_id(int slot_id) {
+        if (type != PageType.BTREE_LEAF) {
+            throw new DBRuntimeError("only leaf node has values");
+        }
+        return buf.getInt(get_slot(slot_id) + 1);
+    }
+
+    /**
+     * binary search the key on the page. only the probed keys are compared, in their encoded form.
+     * the prefix of the page is compared once, then only the rest of the probed keys.
+     *
+     * @param key
+     * @return same as {@link java.util.Collections#binarySearch(List, Object)} on {@link #get_keys()}
+     */
+    public int search(Payload key) {
+        int lo = 0;
+        int hi = slot_count - 1;
+        boolean same_types = key.get_types().equals(key_types);
+        if (same_types && slot_count > 0) {
+            int cmp = KeyCodec.compare(key.get_key_bytes(), 0, prefix_size, buf, prefix_offset, prefix_size);
+            if (cmp < 0) return -1;
+            if (cmp > 0) return -(slot_count + 1);
+        }
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = same_types ? compare_rest(key, mid) : compare_full(key, mid);
+            if (cmp > 0) lo = mid + 1;
+            else if (cmp < 0) hi = mid - 1;
+            else return mid;
+        }
+        return -(lo + 1);
+    }
+
+    /**
+     * compare a key with the key at slot_id, see {@link Payload#compareTo(Payload)}.
+     * @param key
+     * @param slot_id
+     * @return -1, 0 or 1
+     */
+    public int compare(Payload key, int slot_id) {
+        if (!key.get_types().equals(key_types)) {
+            return compare_full(key, slot_id);
+        }
+        int cmp = KeyCodec.compare(key.get_key_bytes(), 0, prefix_size, buf, prefix_offset, prefix_size);
+        return cmp != 0 ? cmp : compare_rest(key, slot_id);
+    }
+
+    /**
+     * compare the key after the prefix with the key in the cell at slot_id, the key has the types of the page.
+     */
+    private int compare_rest(Payload key, int slot_id) {
+        byte[] key_data = key.get_key_bytes();
+        int cell = get_slot(slot_id);
+        return KeyCodec.compare(key_data, prefix_size, key_data.length - prefix_size,
+                buf, cell + key_offset + 2, buf.getShort(cell + key_offset) & 0xffff);
+    }
+
+    /**
+     * compare a key of other types with the key at slot_id, which is copied whole first.
+     */
+    private int compare_full(Payload key, int slot_id) {
+        if (scratch == null) scratch = new byte[key_size];
+        read_key(slot_id, scratch);
+        return key.compare_to(key_types, ByteBuffer.wrap(scratch), 0);
+    }
+
+    public List<Payload> get_keys() {
+        List<Payload> keys = new ArrayList<>(slot_count);
+        for (int i = 0; i < slot_count; i++) {
+            keys.add(get_key(i));
+        }
+        return keys;
+    }
+
+    /**
+     * only for interior nodes.
+     * @param slot_id if slot_id = slot_count, return the tail child.
+     * @return
+     */
+    public int get_child(int slot_id) {
+        if (type != PageType.BTREE_INTERIOR) {
+            throw new DBRuntimeError("only interior node has children");
+        }
+        if (slot_id == slot_count) {
+            return buf.getInt(TAIL_CHILD);
+        }
+        return buf.getInt(get_slot(slot_id) + 1);
+    }
+
+    /**
+     * only for interior nodes.
+     * @param slot_id if slot_id = slot_count, return the total of the tail child.
+     * @return number of keys under the child
+     */
+    public int get_child_total(int slot_id) {
+        if (type != PageType.BTREE_INTERIOR) {
+            throw new DBRuntimeError("only interior node has children");
+        }
+        if (slot_id == slot_count) {
+            return buf.getInt(TAIL_TOTAL);
+        }
+        return buf.getInt(get_slot(slot_id) + 5);
+    }
+}
@@ -3,6 +3,7 @@ package jcav.filelayer.btree;
 import jcav.filelayer.Bytes;
 import jcav.filelayer.exception.DBRuntimeError;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -13,6 +14,9 @@ import java.util.*;
 public class Payload implements Comparable<Payload> {
     private List<Integer> types = new ArrayList<>();
     private byte[] data = null;
+    // encoded by KeyCodec, null if not encoded yet
+    private byte[] key_bytes = null;
+    private PayloadLayout layout = null;
 
 
     /**
@@ -38,15 +42,25 @@ public class Payload implements Comparable<Payload> {
     }
 
     public int get_obj_size(int idx) {
-        return ObjType.get_size(types.get(idx));
+        return get_layout().get_obj_size(idx);
     }
 
     private int get_obj_offset(int idx) {
-        int offset = types.size();
-        for (int i = 0; i < idx; i++) {
-            offset += ObjType.get_size(types.get(i));
+        return get_layout().get_obj_offset(idx);
+    }
+
+    public PayloadLayout get_layout() {
+        if (layout == null) {
+            layout = PayloadLayout.of(types);
         }
-        return offset;
+        return layout;
+    }
+
+    /**
+     * @return a flyweight view over the data of this payload, see {@link PayloadView}.
+     */
+    public PayloadView view() {
+        return PayloadView.of(types).bind(data, 0);
     }
 
     public int get_obj_type(int idx) {
@@ -70,6 +84,8 @@ public class Payload implements Comparable<Payload> {
             val = Bytes.to_long(data, offset);
         }else if (type == ObjType.FLOAT) {
             val = Bytes.to_float(data, offset);
+        } else if (type == ObjType.DOUBLE) {
+            val = Bytes.to_double(data, offset);
         } else if (ObjType.is_type_string(type)) {
             val = Bytes.to_string(data, offset, size);
         } else {
@@ -94,6 +110,7 @@ public class Payload implements Comparable<Payload> {
         if (data.length < offset + size)
             throw new DBRuntimeError("data too short");
 
+        key_bytes = null;
         if (val.obj == null) {
             // special case for null
             byte[] val_bytes = new byte[ObjType.get_size(type)];
@@ -166,6 +183,29 @@ public class Payload implements Comparable<Payload> {
         return data;
     }
 
+    /**
+     * @return the order-preserving encoding of this payload, see {@link KeyCodec}. don't modify it.
+     */
+    public byte[] get_key_bytes() {
+        if (key_bytes == null) {
+            key_bytes = KeyCodec.encode(types, data);
+        }
+        return key_bytes;
+    }
+
+    /**
+     * decode a key encoded by {@link KeyCodec}.
+     * @param types
+     * @param key
+     * @param offset
+     * @return
+     */
+    public static Payload from_key_bytes(List<Integer> types, byte[] key, int offset) {
+        Payload payload = new Payload(types, KeyCodec.decode(types, key, offset));
+        payload.key_bytes = Arrays.copyOfRange(key, offset, offset + payload.data.length);
+        return payload;
+    }
+
     @Override
     public String toString() {
         StringBuilder sbuf = new StringBuilder();
@@ -196,6 +236,10 @@ public class Payload implements Comparable<Payload> {
         return new Creator();
     }
 
+    /**
+     * payloads are ordered by their encodings of {@link KeyCodec}: null is less than any value, floats
+     * follow the IEEE total order and strings the order of code points.
+     */
     @Override
     public int compareTo(Payload o) {
         if (o == null) throw new NullPointerException("o must not be null");
@@ -209,45 +253,34 @@ public class Payload implements Comparable<Payload> {
             throw new IllegalArgumentException("can not compare 2 incompatible payloads.");
         }
 
-        // compare
-        for (int i = 0; i < types.size(); i++) {
-            ObjValue v1 = get_obj(i);
-            ObjValue v2 = o.get_obj(i);
-            if (v1.type == ObjType.INT) {
-                Integer i1 = v1.as_int();
-                Integer i2 = v2.as_int();
-                if (i1 == null) i1 = Integer.MIN_VALUE;
-                if (i2 == null) i2 = Integer.MIN_VALUE;
-                if (i1 < i2) return -1;
-                if (i1 > i2) return 1;
-            } else if (v1.type == ObjType.LONG) {
-                Long l1 = v1.as_long();
-                Long l2 = v2.as_long();
-                if (l1 == null) l1 = Long.MIN_VALUE;
-                if (l2 == null) l2 = Long.MIN_VALUE;
-                if (l1 < l2) return -1;
-                if (l1 > l2) return 1;
-            } else if (v1.type == ObjType.FLOAT) {
-                Float f1 = v1.as_float();
-                Float f2 = v2.as_float();
-                if (f1 == null) f1 = Float.MIN_VALUE;
-                if (f2 == null) f2 = Float.MIN_VALUE;
-                if (f1 < f2) return -1;
-                if (f1 > f2) return 1;
-            } else if (ObjType.is_type_string(v1.type)) {
-                String s1 = v1.as_string();
-                String s2 = v2.as_string();
-                if (s1 == null) s1 = "";
-                if (s2 == null) s2 = "";
-                int cmp = s1.compareTo(s2);
-                if (cmp < 0) return -1;
-                if (cmp > 0) return 1;
-            } else {
-                throw new DBRuntimeError("unknown type " + ObjType.to_string(v1.type));
-            }
-        }
+        return KeyCodec.compare(get_key_bytes(), 0, types, ByteBuffer.wrap(o.get_key_bytes()), 0, o.types);
+    }
 
-        return 0;
+    /**
+     * compare this payload with a key encoded by {@link KeyCodec} at offset of buf, without decoding it.
+     * the order is the same as {@link #compareTo(Payload)}.
+     *
+     * @param o_types types of the encoded key, must be compatible with this payload
+     * @param buf
+     * @param offset
+     * @return
+     */
+    public int compare_to(List<Integer> o_types, ByteBuffer buf, int offset) {
+        return KeyCodec.compare(get_key_bytes(), 0, types, buf, offset, o_types);
+    }
+
+    /**
+     * same as {@link #compare_to(List, ByteBuffer, int)}, but only length bytes of the key are stored,
+     * the rest are 0, e.g. keys in b-tree cells.
+     *
+     * @param o_types
+     * @param buf
+     * @param offset
+     * @param length
+     * @return
+     */
+    public int compare_to(List<Integer> o_types, ByteBuffer buf, int offset, int length) {
+        return KeyCodec.compare(get_key_bytes(), 0, types, buf, offset, length, o_types);
     }
 
     public static final class ObjValue {
@@ -0,0 +1,88 @@
+package jcav.filelayer.btree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precomputed offsets of the objects of a payload, both in the payload data and in the key encoding of
+ * {@link KeyCodec}. Layouts are immutable and shared by types, get one with {@link #of(List)}.
+ *
+ * @see PayloadView
+ */
+public final class PayloadLayout {
+    private static final Map<List<Integer>, PayloadLayout> LAYOUTS = new ConcurrentHashMap<>();
+
+    private final int[] types;
+    private final int[] sizes;
+    // offset of objects in payload data, after the null flags
+    private final int[] offsets;
+    // offset of tags in the key encoding, each object follows its tag
+    private final int[] key_offsets;
+    private final int size;
+
+    private PayloadLayout(List<Integer> types) {
+        int n = types.size();
+        this.types = new int[n];
+        this.sizes = new int[n];
+        this.offsets = new int[n];
+        this.key_offsets = new int[n];
+
+        int offset = n;
+        int key_offset = 0;
+        for (int i = 0; i < n; i++) {
+            this.types[i] = types.get(i);
+            this.sizes[i] = ObjType.get_size(this.types[i]);
+            this.offsets[i] = offset;
+            this.key_offsets[i] = key_offset;
+            offset += sizes[i];
+            key_offset += sizes[i] + 1;
+        }
+        this.size = offset;
+    }
+
+    public static PayloadLayout of(List<Integer> types) {
+        PayloadLayout layout = LAYOUTS.get(types);
+        if (layout == null) {
+            List<Integer> key = new ArrayList<>(types);
+            layout = LAYOUTS.computeIfAbsent(key, PayloadLayout::new);
+        }
+        return layout;
+    }
+
+    public int get_obj_count() {
+        return types.length;
+    }
+
+    public int get_obj_type(int idx) {
+        return types[idx];
+    }
+
+    public int get_obj_size(int idx) {
+        return sizes[idx];
+    }
+
+    /**
+     * @param idx
+     * @return offset of the object in payload data
+     */
+    public int get_obj_offset(int idx) {
+        return offsets[idx];
+    }
+
+    /**
+     * @param idx
+     * @return offset of the tag of the object in the key encoding
+     */
+    public int get_key_offset(int idx) {
+        return key_offsets[idx];
+    }
+
+    /**
+     * @return size of payload data, which is also the size of the key encoding
+     */
+    public int get_size() {
+        return size;
+    }
+}
@@ -0,0 +1,203 @@
+package jcav.filelayer.btree;
+
+import jcav.filelayer.exception.DBRuntimeError;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A reusable flyweight over an encoded payload, in a page buffer or a byte array. Objects are read
+ * at the offsets of a {@link PayloadLayout} as primitives, nothing is copied or boxed, so a view can be
+ * bound to row after row during a scan without creating garbage.
+ *
+ * A view reads either payload data, see {@link #of(List)}, or keys encoded by {@link KeyCodec},
+ * see {@link #of_key(List)}. The value of a null object is 0, check it with {@link #is_null(int)}.
+ *
+ * A view bound to a pinned page is only valid while the page is pinned.
+ *
+ * @see Payload
+ */
+public class PayloadView {
+    private final PayloadLayout layout;
+    private final boolean key_form;
+
+    private ByteBuffer buf;
+    private byte[] array;
+    private int base;
+    private ByteBuffer string_view;
+
+    private PayloadView(PayloadLayout layout, boolean key_form) {
+        this.layout = layout;
+        this.key_form = key_form;
+    }
+
+    /**
+     * a view of payload data, e.g. values in {@link CellStorage}.
+     * @param types
+     * @return
+     */
+    public static PayloadView of(List<Integer> types) {
+        return new PayloadView(PayloadLayout.of(types), false);
+    }
+
+    /**
+     * a view of keys encoded by {@link KeyCodec}, e.g. keys in b-tree cells.
+     * @param types
+     * @return
+     */
+    public static PayloadView of_key(List<Integer> types) {
+        return new PayloadView(PayloadLayout.of(types), true);
+    }
+
+    public PayloadView bind(byte[] data, int offset) {
+        if (data != array) {
+            array = data;
+            buf = ByteBuffer.wrap(data);
+            string_view = null;
+        }
+        return bind_at(offset);
+    }
+
+    public PayloadView bind(ByteBuffer buffer, int offset) {
+        if (buffer != buf) {
+            array = null;
+            buf = buffer;
+            string_view = null;
+        }
+        return bind_at(offset);
+    }
+
+    private PayloadView bind_at(int offset) {
+        if (offset < 0 || offset + layout.get_size() > buf.capacity()) {
+            throw new IndexOutOfBoundsException("payload out of buffer, offset = " + offset
+                    + ", size = " + layout.get_size() + ", capacity = " + buf.capacity());
+        }
+        this.base = offset;
+        return this;
+    }
+
+    public PayloadLayout get_layout() {
+        return layout;
+    }
+
+    public int get_obj_count() {
+        return layout.get_obj_count();
+    }
+
+    public int get_obj_type(int idx) {
+        return layout.get_obj_type(idx);
+    }
+
+    public boolean is_null(int idx) {
+        if (key_form) return buf.get(base + layout.get_key_offset(idx)) == 0;
+        return buf.get(base + idx) == 1;
+    }
+
+    public int get_int(int idx) {
+        check_type(idx, ObjType.INT);
+        if (key_form) {
+            return is_null(idx) ? 0 : buf.getInt(get_pos(idx)) ^ Integer.MIN_VALUE;
+        }
+        return buf.getInt(get_pos(idx));
+    }
+
+    public long get_long(int idx) {
+        check_type(idx, ObjType.LONG);
+        if (key_form) {
+            return is_null(idx) ? 0 : buf.getLong(get_pos(idx)) ^ Long.MIN_VALUE;
+        }
+        return buf.getLong(get_pos(idx));
+    }
+
+    public float get_float(int idx) {
+        check_type(idx, ObjType.FLOAT);
+        if (key_form) {
+            if (is_null(idx)) return 0;
+            int bits = buf.getInt(get_pos(idx));
+            return Float.intBitsToFloat(bits < 0 ? bits ^ Integer.MIN_VALUE : ~bits);
+        }
+        return buf.getFloat(get_pos(idx));
+    }
+
+    public double get_double(int idx) {
+        check_type(idx, ObjType.DOUBLE);
+        if (key_form) {
+            if (is_null(idx)) return 0;
+            long bits = buf.getLong(get_pos(idx));
+            return Double.longBitsToDouble(bits < 0 ? bits ^ Long.MIN_VALUE : ~bits);
+        }
+        return buf.getDouble(get_pos(idx));
+    }
+
+    /**
+     * the utf-8 bytes of a string, without the terminating 0.
+     *
+     * @param idx
+     * @return a buffer positioned on the bytes, it is reused by the next call.
+     */
+    public ByteBuffer get_string_bytes(int idx) {
+        if (!ObjType.is_type_string(layout.get_obj_type(idx))) {
+            throw type_mismatch(idx, "STRING");
+        }
+        int pos = get_pos(idx);
+        int size = layout.get_obj_size(idx);
+        int len = 0;
+        while (len < size && buf.get(pos + len) != 0) {
+            len++;
+        }
+
+        if (string_view == null) string_view = buf.duplicate();
+        string_view.clear();
+        string_view.position(pos);
+        string_view.limit(pos + len);
+        return string_view;
+    }
+
+    /**
+     * @param idx
+     * @return a new string, null if the object is null
+     */
+    public String get_string(int idx) {
+        ByteBuffer bytes = get_string_bytes(idx);
+        if (is_null(idx)) return null;
+        if (array != null) {
+            return new String(array, bytes.position(), bytes.remaining(), StandardCharsets.UTF_8);
+        }
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    /**
+     * copy the bound payload to a new {@link Payload}.
+     * @return
+     */
+    public Payload to_payload() {
+        List<Integer> types = new ArrayList<>(layout.get_obj_count());
+        for (int i = 0; i < layout.get_obj_count(); i++) {
+            types.add(layout.get_obj_type(i));
+        }
+        byte[] data = new byte[layout.get_size()];
+        ByteBuffer src = buf.duplicate();
+        src.position(base);
+        src.get(data);
+        if (key_form) return Payload.from_key_bytes(types, data, 0);
+        return new Payload(types, data);
+    }
+
+    private int get_pos(int idx) {
+        if (key_form) return base + layout.get_key_offset(idx) + 1;
+        return base + layout.get_obj_offset(idx);
+    }
+
+    private void check_type(int idx, int type) {
+        if (layout.get_obj_type(idx) != type) {
+            throw type_mismatch(idx, ObjType.to_string(type));
+        }
+    }
+
+    private DBRuntimeError type_mismatch(int idx, String target) {
+        return new DBRuntimeError("type mismatch, obj type is " + ObjType.to_string(layout.get_obj_type(idx))
+                + ", target type is " + target);
+    }
+}
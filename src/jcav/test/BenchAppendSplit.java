@@ -0,0 +1,71 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * inserting auto-increment, timestamp-like and random keys with the append split on and off:
+ * leaves, pages in use and time per insert.
+ */
+public class BenchAppendSplit {
+    static List<Integer> key_types = Arrays.asList(ObjType.LONG);
+    static List<Integer> val_types = Arrays.asList(ObjType.INT, ObjType.STRING(32));
+
+    public static void main(String[] args) throws Exception {
+        int count = 100000;
+
+        long[] serial = new long[count];
+        long[] timestamps = new long[count];
+        Random rand = new Random(1);
+        long ts = 1700000000000L;
+        for (int i = 0; i < count; i++) {
+            serial[i] = i + 1;
+            ts += 1 + rand.nextInt(1000);
+            timestamps[i] = ts;
+        }
+        long[] random = rand.longs().distinct().limit(count).toArray();
+
+        run("auto-increment", serial);
+        run("timestamp", timestamps);
+        run("random", random);
+    }
+
+    private static void run(String name, long[] keys) throws Exception {
+        for (boolean append_split : new boolean[]{false, true}) {
+            if (Files.exists(Paths.get("test.db"))) {
+                Files.delete(Paths.get("test.db"));
+            }
+            try (DBFile db = DBFile.create("test.db")) {
+                db.set_cache(new LRUCache(db, 4096));
+                BTreeTable table = BTreeTable.create(db, "bench", key_types, val_types);
+                table.set_append_split(append_split);
+
+                long st = System.nanoTime();
+                for (long k : keys) {
+                    table.insert(
+                            Payload.create(key_types, Arrays.asList(k)),
+                            Payload.create(val_types, Arrays.asList((int) k, "value " + k))
+                    );
+                }
+                double us = (System.nanoTime() - st) / 1e3 / keys.length;
+                table._check_total();
+
+                int[] leaves = {0};
+                table.foreach_leaf(leaf -> leaves[0]++);
+                int pages = db.get_headers().get("page_count").to_int()
+                        - db.get_headers().get("freelist_count").to_int();
+                System.out.printf("%s, append split %s: %d leaves, %d pages, %.1f us/insert%n",
+                        name, append_split ? "on" : "off", leaves[0], pages, us);
+            }
+        }
+    }
+}
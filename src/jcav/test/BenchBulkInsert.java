@@ -0,0 +1,114 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.Cache;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.NoCache;
+import jcav.filelayer.PageHandle;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * bulk insert throughput with synchronous "rwd" file writes (how NoCache and LRUCache
+ * used to open the file) against FileChannel caches that only force on sync.
+ */
+public class BenchBulkInsert {
+    public static void main(String[] args) {
+        int count = 2000;
+
+        run("rwd no-cache        ", count, RwdNoCache::new);
+        run("FileChannel no-cache", count, NoCache::new);
+        run("FileChannel LRU(8)  ", count, db -> new LRUCache(db, 8));
+    }
+
+    private static void run(String name, int count, Function<DBFile, Cache> cache) {
+        List<Integer> key_types = Arrays.asList(ObjType.INT);
+        List<Integer> val_types = Arrays.asList(ObjType.INT, ObjType.STRING(32));
+
+        try {
+            if (Files.exists(Paths.get("test.db"))) {
+                Files.delete(Paths.get("test.db"));
+            }
+            DBFile db = DBFile.create("test.db");
+            db.set_cache(cache.apply(db));
+            BTreeTable table = BTreeTable.create(db, "bench", key_types, val_types);
+
+            long st = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                table.insert(
+                        Payload.create(key_types, Arrays.asList(i)),
+                        Payload.create(val_types, Arrays.asList(i, "value " + i))
+                );
+            }
+            db.sync();
+            double ms = (System.nanoTime() - st) / 1e6;
+            System.out.printf("%s: %d rows in %.1fms, %.0f rows/s%n", name, count, ms, count * 1000 / ms);
+            db.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * the old NoCache, every write is synchronous to the device.
+     */
+    private static final class RwdNoCache implements Cache {
+        private DBFile db;
+        private RandomAccessFile ram;
+
+        RwdNoCache(DBFile db) {
+            this.db = db;
+            try {
+                ram = new RandomAccessFile("test.db", "rwd");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public byte[] read(int page_id, int pos, int length) {
+            try {
+                byte[] data = new byte[length];
+                ram.seek(db.get_page_offset(page_id) + pos);
+                ram.readFully(data);
+                return data;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void write(int page_id, int pos, byte[] data, int offset, int length) {
+            try {
+                ram.seek(db.get_page_offset(page_id) + pos);
+                ram.write(data, offset, length);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public PageHandle pin(int page_id) {
+            return PageHandle.copy_of(this, page_id, read(page_id, 0, db.get_page_size(page_id)));
+        }
+
+        @Override
+        public void sync() throws IOException {
+            ram.getFD().sync();
+        }
+
+        @Override
+        public void close() throws IOException {
+            ram.close();
+        }
+    }
+}
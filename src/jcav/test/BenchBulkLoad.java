@@ -0,0 +1,135 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+import jcav.filelayer.btree.SearchResult;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * loading sorted rows by inserting them one by one against the bottom-up bulk loader,
+ * then every row is looked up, and random inserts and deletes are run on the loaded table.
+ */
+public class BenchBulkLoad {
+    static List<Integer> key_types = Arrays.asList(ObjType.INT);
+    static List<Integer> val_types = Arrays.asList(ObjType.INT, ObjType.STRING(32));
+
+    public static void main(String[] args) throws Exception {
+        int count = 100000;
+
+        double insert_ms = load(count, false, 1.0);
+        double bulk_ms = load(count, true, 1.0);
+        double bulk_fill_ms = load(count, true, 0.5);
+        System.out.printf("%d rows: insert %.0f ms, bulk load %.0f ms (%.1fx), bulk load with fill 0.5 %.0f ms%n",
+                count, insert_ms, bulk_ms, insert_ms / bulk_ms, bulk_fill_ms);
+    }
+
+    private static Payload key(int i) {
+        return Payload.create(key_types, Arrays.asList(i * 2));
+    }
+
+    private static Payload value(int i) {
+        return Payload.create(val_types, Arrays.asList(i, "value " + i));
+    }
+
+    private static Iterator<Map.Entry<Payload, Payload>> rows(int count) {
+        return new Iterator<Map.Entry<Payload, Payload>>() {
+            int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < count;
+            }
+
+            @Override
+            public Map.Entry<Payload, Payload> next() {
+                Map.Entry<Payload, Payload> row = new AbstractMap.SimpleEntry<>(key(i), value(i));
+                i++;
+                return row;
+            }
+        };
+    }
+
+    /**
+     * @return load time in ms
+     */
+    private static double load(int count, boolean bulk, double fill_factor) throws Exception {
+        if (Files.exists(Paths.get("test.db"))) {
+            Files.delete(Paths.get("test.db"));
+        }
+        try (DBFile db = DBFile.create("test.db")) {
+            db.set_cache(new LRUCache(db, 4096));
+
+            long st = System.nanoTime();
+            BTreeTable table;
+            if (bulk) {
+                table = BTreeTable.bulk_load(db, "bench", key_types, val_types, rows(count), fill_factor);
+            } else {
+                table = BTreeTable.create(db, "bench", key_types, val_types);
+                Iterator<Map.Entry<Payload, Payload>> it = rows(count);
+                while (it.hasNext()) {
+                    Map.Entry<Payload, Payload> row = it.next();
+                    table.insert(row.getKey(), row.getValue());
+                }
+            }
+            db.sync();
+            double ms = (System.nanoTime() - st) / 1e6;
+
+            check(db, count);
+            return ms;
+        }
+    }
+
+    private static void check(DBFile db, int count) {
+        BTreeTable table = db.get_schema().get_table("bench");
+        for (int i = 0; i < count; i++) {
+            SearchResult sr = table.search(key(i));
+            if (!sr.found() || !Arrays.equals(table.get_value(sr).get_bytes(), value(i).get_bytes())) {
+                throw new RuntimeException("row " + i + " not found");
+            }
+        }
+        if (table.search(key(count)).found() || table.search(Payload.create(key_types, Arrays.asList(1))).found()) {
+            throw new RuntimeException("unexpected row found");
+        }
+
+        // odd keys fall between loaded rows
+        Random rand = new Random(1);
+        int total = count;
+        for (int k = 0; k < count / 10; k++) {
+            int i = rand.nextInt(count);
+            Payload key = Payload.create(key_types, Arrays.asList(i * 2 + 1));
+            if (!table.search(key).found()) {
+                table.insert(key, value(i));
+                total++;
+            }
+            SearchResult sr = table.search(key(rand.nextInt(count)));
+            if (sr.found()) {
+                table.delete(sr);
+                total--;
+            }
+        }
+        table._check_child(table.root_page());
+        table._check_total();
+
+        int[] rows = {0};
+        long[] last = {Long.MIN_VALUE};
+        table.foreach_row((key, value) -> {
+            if (key.get_int(0) <= last[0]) throw new RuntimeException("keys out of order");
+            last[0] = key.get_int(0);
+            rows[0]++;
+        });
+        if (rows[0] != total) {
+            throw new RuntimeException("total " + total + " != rows " + rows[0]);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.ClockCache;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+import jcav.filelayer.btree.SearchResult;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * lookup throughput of search + get_value from several threads on one database with ClockCache,
+ * every value is checked against its key.
+ */
+public class BenchConcurrentRead {
+    static List<Integer> key_types = Arrays.asList(ObjType.INT);
+    static List<Integer> val_types = Arrays.asList(ObjType.INT, ObjType.STRING(32));
+
+    public static void main(String[] args) throws Exception {
+        int count = 20000;
+        int lookups = 20000;
+        int cache_size = 128;
+
+        if (Files.exists(Paths.get("test.db"))) {
+            Files.delete(Paths.get("test.db"));
+        }
+        DBFile db = DBFile.create("test.db");
+        db.set_cache(new LRUCache(db, 300));
+        BTreeTable table = BTreeTable.create(db, "bench", key_types, val_types);
+        for (int i = 0; i < count; i++) {
+            table.insert(
+                    Payload.create(key_types, Arrays.asList(i)),
+                    Payload.create(val_types, Arrays.asList(i, "value " + i))
+            );
+        }
+        db.close();
+
+        System.out.println("available processors: " + Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            try (DBFile rdb = new DBFile("test.db")) {
+                rdb.set_cache(new ClockCache(rdb, cache_size));
+                BTreeTable rtable = rdb.get_schema().get_table("bench");
+                run(rtable, threads, count, lookups);
+            }
+        }
+    }
+
+    private static void run(BTreeTable table, int threads, int count, int lookups) throws InterruptedException {
+        AtomicLong errors = new AtomicLong(0);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Random rand = new Random(t);
+            workers.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < lookups / threads; i++) {
+                        int key = rand.nextInt(count);
+                        SearchResult sr = table.search(Payload.create(key_types, Arrays.asList(key)));
+                        Payload value = table.get_value(sr);
+                        if (value.get_obj(0).as_int() != key) errors.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    errors.incrementAndGet();
+                }
+            }));
+        }
+
+        long st = System.nanoTime();
+        for (Thread w : workers) w.start();
+        for (Thread w : workers) w.join();
+        double ms = (System.nanoTime() - st) / 1e6;
+        System.out.printf("%d threads: %d lookups in %.1fms, %.0f lookups/s, %d errors%n",
+                threads, lookups, ms, lookups * 1000 / ms, errors.get());
+    }
+}
@@ -0,0 +1,87 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.btree.BPlusTree;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * delete 90% of a table in random order, then scan it: pages in use, leaves and scan time,
+ * with nodes rebalanced only when empty (min fill 0) and at the default min fill.
+ */
+public class BenchDeleteMerge {
+    static List<Integer> key_types = Arrays.asList(ObjType.INT);
+    static List<Integer> val_types = Arrays.asList(ObjType.INT, ObjType.STRING(32));
+
+    public static void main(String[] args) throws Exception {
+        int count = 100000;
+        int keep = count / 10;
+
+        for (double min_fill : new double[]{0, BPlusTree.DEFAULT_MIN_FILL}) {
+            if (Files.exists(Paths.get("test.db"))) {
+                Files.delete(Paths.get("test.db"));
+            }
+            try (DBFile db = DBFile.create("test.db")) {
+                db.set_cache(new LRUCache(db, 4096));
+                BTreeTable table = BTreeTable.create(db, "bench", key_types, val_types);
+                table.set_min_fill(min_fill);
+                for (int i = 0; i < count; i++) {
+                    table.insert(key(i), Payload.create(val_types, Arrays.asList(i, "value " + i)));
+                }
+                int pages_before = pages_in_use(db);
+
+                int[] order = new Random(1).ints(0, count).distinct().limit(count).toArray();
+                long st = System.nanoTime();
+                for (int i = 0; i < count - keep; i++) {
+                    table.delete(table.search(key(order[i])));
+                }
+                double delete_us = (System.nanoTime() - st) / 1e3 / (count - keep);
+                table._check_total();
+                if (table.size() != keep) {
+                    throw new RuntimeException("total mismatch");
+                }
+
+                int[] leaves = {0};
+                table.foreach_leaf(leaf -> leaves[0]++);
+
+                long best = Long.MAX_VALUE;
+                long sum = 0;
+                for (int round = 0; round < 20; round++) {
+                    long[] acc = {0};
+                    st = System.nanoTime();
+                    table.foreach_row((k, v) -> acc[0] += v.get_int(0));
+                    best = Math.min(best, System.nanoTime() - st);
+                    sum = acc[0];
+                }
+                long expect = 0;
+                for (int i = count - keep; i < count; i++) {
+                    expect += order[i];
+                }
+                if (sum != expect) {
+                    throw new RuntimeException("scan mismatch");
+                }
+
+                System.out.printf("min fill %.1f: pages %d -> %d, %d leaves for %d rows (%.1f rows/leaf), " +
+                                "delete %.1f us, scan %.2f ms%n",
+                        min_fill, pages_before, pages_in_use(db), leaves[0], keep, keep / (double) leaves[0],
+                        delete_us, best / 1e6);
+            }
+        }
+    }
+
+    private static int pages_in_use(DBFile db) {
+        return db.get_headers().get("page_count").to_int() - db.get_headers().get("freelist_count").to_int();
+    }
+
+    private static Payload key(int k) {
+        return Payload.create(key_types, Arrays.asList(k));
+    }
+}
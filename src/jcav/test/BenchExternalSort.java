@@ -0,0 +1,97 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.btree.BulkLoader;
+import jcav.filelayer.btree.ExternalSorter;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+import jcav.filelayer.btree.SearchResult;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * loading rows in random order with a cache much smaller than the table: inserting them one by one
+ * against an external sort into the bulk loader. the sort is given a small budget, so that it
+ * spills runs and merges them in more than one pass.
+ */
+public class BenchExternalSort {
+    static List<Integer> key_types = Arrays.asList(ObjType.STRING(16));
+    static List<Integer> val_types = Arrays.asList(ObjType.INT, ObjType.STRING(32));
+
+    public static void main(String[] args) throws Exception {
+        int count = 50000;
+        int cache_pages = 64;
+
+        List<Map.Entry<Payload, Payload>> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            rows.add(new AbstractMap.SimpleEntry<>(key(i), value(i)));
+        }
+        Collections.shuffle(rows, new Random(1));
+
+        double insert_ms;
+        try (DBFile db = create_db(cache_pages)) {
+            long st = System.nanoTime();
+            BTreeTable table = BTreeTable.create(db, "bench", key_types, val_types);
+            for (Map.Entry<Payload, Payload> row : rows) {
+                table.insert(row.getKey(), row.getValue());
+            }
+            db.sync();
+            insert_ms = (System.nanoTime() - st) / 1e6;
+            check(db, count);
+        }
+
+        double sort_ms;
+        ExternalSorter sorter = new ExternalSorter(key_types, val_types, 256 << 10, 4000);
+        try (DBFile db = create_db(cache_pages)) {
+            long st = System.nanoTime();
+            BTreeTable.bulk_load_unsorted(db, "bench", rows.iterator(), sorter, BulkLoader.DEFAULT_FILL_FACTOR);
+            db.sync();
+            sort_ms = (System.nanoTime() - st) / 1e6;
+            check(db, count);
+        }
+
+        System.out.printf("%d rows in random order, cache %d pages: insert %.0f ms, external sort + bulk load %.0f ms (%.1fx)%n",
+                count, cache_pages, insert_ms, sort_ms, insert_ms / sort_ms);
+        System.out.printf("sort: %d rows, run size %d, fan-in %d, %d runs produced, %d merge passes, %d bytes spilled%n",
+                sorter.get_rows(), sorter.get_run_size(), sorter.get_fan_in(),
+                sorter.get_runs_produced(), sorter.get_merge_passes(), sorter.get_spilled_bytes());
+    }
+
+    private static DBFile create_db(int cache_pages) throws Exception {
+        if (Files.exists(Paths.get("test.db"))) {
+            Files.delete(Paths.get("test.db"));
+        }
+        DBFile db = DBFile.create("test.db");
+        db.set_cache(new LRUCache(db, cache_pages));
+        return db;
+    }
+
+    private static Payload key(int i) {
+        return Payload.create(key_types, Arrays.asList(String.format("key %08d", i)));
+    }
+
+    private static Payload value(int i) {
+        return Payload.create(val_types, Arrays.asList(i, "value " + i));
+    }
+
+    private static void check(DBFile db, int count) {
+        BTreeTable table = db.get_schema().get_table("bench");
+        for (int i = 0; i < count; i++) {
+            SearchResult sr = table.search(key(i));
+            if (!sr.found() || !Arrays.equals(table.get_value(sr).get_bytes(), value(i).get_bytes())) {
+                throw new RuntimeException("row " + i + " not found");
+            }
+        }
+        table._check_total();
+    }
+}
@@ -0,0 +1,93 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.PageHandle;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * cost of an insert in random key order: reads, pins and writes reaching the cache, and time.
+ */
+public class BenchInsertPath {
+    static List<Integer> key_types = Arrays.asList(ObjType.INT);
+    static List<Integer> val_types = Arrays.asList(ObjType.INT, ObjType.STRING(32));
+
+    public static void main(String[] args) throws Exception {
+        int count = 50000;
+
+        if (Files.exists(Paths.get("test.db"))) {
+            Files.delete(Paths.get("test.db"));
+        }
+        try (DBFile db = DBFile.create("test.db")) {
+            CountingCache cache = new CountingCache(db, 4096);
+            db.set_cache(cache);
+            BTreeTable table = BTreeTable.create(db, "bench", key_types, val_types);
+
+            Random rand = new Random(1);
+            int[] keys = rand.ints(0, Integer.MAX_VALUE).distinct().limit(count).toArray();
+
+            cache.reads = cache.pins = cache.writes = 0;
+            long st = System.nanoTime();
+            for (int k : keys) {
+                table.insert(
+                        Payload.create(key_types, Arrays.asList(k)),
+                        Payload.create(val_types, Arrays.asList(k, "value " + k))
+                );
+            }
+            double us = (System.nanoTime() - st) / 1e3 / count;
+            table._check_total();
+
+            System.out.printf("%d inserts: %.1f us/insert, %.1f reads, %.1f pins, %.1f writes per insert%n",
+                    count, us, cache.reads / (double) count, cache.pins / (double) count,
+                    cache.writes / (double) count);
+        }
+    }
+
+    static class CountingCache extends LRUCache {
+        long reads = 0;
+        long pins = 0;
+        long writes = 0;
+
+        CountingCache(DBFile db, int max_cache_size) {
+            super(db, max_cache_size);
+        }
+
+        @Override
+        public synchronized byte[] read(int page_id, int pos, int length) {
+            reads++;
+            return super.read(page_id, pos, length);
+        }
+
+        @Override
+        public synchronized void read(int page_id, int pos, byte[] dst, int offset, int length) {
+            reads++;
+            super.read(page_id, pos, dst, offset, length);
+        }
+
+        @Override
+        public synchronized int read_int(int page_id, int pos) {
+            reads++;
+            return super.read_int(page_id, pos);
+        }
+
+        @Override
+        public synchronized void write(int page_id, int pos, byte[] data, int offset, int length) {
+            writes++;
+            super.write(page_id, pos, data, offset, length);
+        }
+
+        @Override
+        public synchronized PageHandle pin(int page_id) {
+            pins++;
+            return super.pin(page_id);
+        }
+    }
+}
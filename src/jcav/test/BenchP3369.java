@@ -0,0 +1,120 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.btree.Cursor;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * replay the P3369 workloads in test_data with the order statistics of BPlusTree, and check the
+ * answers against the .out files. operations:
+ *   1 x: insert x, 2 x: delete one x, 3 x: rank of x, 4 k: k-th smallest,
+ *   5 x: predecessor of x, 6 x: successor of x
+ *
+ * numbers may repeat, so a key is (x, sequence number). (x, null) is less than any key of x,
+ * since null is less than any value.
+ *
+ * usage: BenchP3369 [test_data dir]
+ */
+public class BenchP3369 {
+    static List<Integer> key_types = Arrays.asList(ObjType.INT, ObjType.INT);
+    static List<Integer> val_types = Arrays.asList(ObjType.INT);
+
+    public static void main(String[] args) throws Exception {
+        String dir = args.length > 0 ? args[0] : "test_data";
+        for (String name : new String[]{"P3369_3", "P3369_5", "P3369_8"}) {
+            run(dir + "/" + name);
+        }
+    }
+
+    private static void run(String name) throws Exception {
+        List<int[]> ops = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(name + ".in"))) {
+            int n = Integer.parseInt(in.readLine().trim());
+            for (int i = 0; i < n; i++) {
+                StringTokenizer st = new StringTokenizer(in.readLine());
+                ops.add(new int[]{Integer.parseInt(st.nextToken()), Integer.parseInt(st.nextToken())});
+            }
+        }
+        List<String> expected = Files.readAllLines(Paths.get(name + ".out"));
+
+        if (Files.exists(Paths.get("test.db"))) {
+            Files.delete(Paths.get("test.db"));
+        }
+        List<Integer> answers = new ArrayList<>();
+        long[] times = new long[7];
+        int[] counts = new int[7];
+        try (DBFile db = DBFile.create("test.db")) {
+            db.set_cache(new LRUCache(db, 1000));
+            BTreeTable table = BTreeTable.create(db, "p3369", key_types, val_types);
+
+            int seq = 0;
+            long total_st = System.nanoTime();
+            for (int[] op : ops) {
+                int x = op[1];
+                long st = System.nanoTime();
+                switch (op[0]) {
+                    case 1:
+                        table.insert(key(x, seq++), Payload.create(val_types, Arrays.asList(x)));
+                        break;
+                    case 2:
+                        try (Cursor c = table.cursor()) {
+                            if (c.seek(key(x, null)) && c.get_key().get_obj(0).as_int() == x) {
+                                table.delete(table.search(c.get_key()));
+                            }
+                        }
+                        break;
+                    case 3:
+                        answers.add(table.rank(key(x, null)) + 1);
+                        break;
+                    case 4:
+                        answers.add(table.select(x - 1).get_obj(0).as_int());
+                        break;
+                    case 5:
+                        answers.add(table.predecessor(key(x, null)).get_obj(0).as_int());
+                        break;
+                    case 6:
+                        answers.add(table.successor(key(x, Integer.MAX_VALUE)).get_obj(0).as_int());
+                        break;
+                    default:
+                        throw new RuntimeException("unknown operation " + op[0]);
+                }
+                times[op[0]] += System.nanoTime() - st;
+                counts[op[0]]++;
+            }
+            double total_ms = (System.nanoTime() - total_st) / 1e6;
+            table._check_total();
+
+            for (int i = 0; i < expected.size(); i++) {
+                if (answers.size() <= i || answers.get(i) != Integer.parseInt(expected.get(i).trim())) {
+                    throw new RuntimeException(name + ": answer " + i + " differs, expect " + expected.get(i)
+                            + ", got " + (answers.size() <= i ? "nothing" : answers.get(i)));
+                }
+            }
+
+            StringBuilder sbuf = new StringBuilder();
+            String[] op_names = {"", "insert", "delete", "rank", "select", "pred", "succ"};
+            for (int i = 1; i <= 6; i++) {
+                if (counts[i] == 0) continue;
+                sbuf.append(String.format(", %s %.1f us", op_names[i], times[i] / 1e3 / counts[i]));
+            }
+            System.out.printf("%s: %d ops, %d answers ok, %.0f ms%s%n",
+                    name, ops.size(), answers.size(), total_ms, sbuf);
+        }
+    }
+
+    private static Payload key(int x, Integer seq) {
+        return Payload.create(key_types, Arrays.asList(x, seq));
+    }
+}
@@ -0,0 +1,100 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.PageHandle;
+import jcav.filelayer.PageType;
+import jcav.filelayer.btree.NodeView;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.ToIntFunction;
+
+/**
+ * point lookup latency of the old descent, which decodes all keys of a node and runs
+ * Collections.binarySearch, against the in-page binary search of {@link NodeView#search(Payload)},
+ * for int keys and string keys. every lookup is checked to find its key.
+ */
+public class BenchPointLookup {
+    static List<Integer> val_types = Arrays.asList(ObjType.INT);
+
+    public static void main(String[] args) throws Exception {
+        int count = 20000;
+        int lookups = 100000;
+
+        run("int   ", Arrays.asList(ObjType.INT), i -> i, count, lookups);
+        run("string", Arrays.asList(ObjType.STRING(32)), i -> String.format("key %08d", i), count, lookups);
+    }
+
+    interface KeyMaker {
+        Object make(int i);
+    }
+
+    private static void run(String name, List<Integer> key_types, KeyMaker maker, int count, int lookups)
+            throws Exception {
+        if (Files.exists(Paths.get("test.db"))) {
+            Files.delete(Paths.get("test.db"));
+        }
+        try (DBFile db = DBFile.create("test.db")) {
+            db.set_cache(new LRUCache(db, 1000));
+            BTreeTable table = BTreeTable.create(db, "bench", key_types, val_types);
+            for (int i = 0; i < count; i++) {
+                table.insert(
+                        Payload.create(key_types, Arrays.asList(maker.make(i))),
+                        Payload.create(val_types, Arrays.asList(i))
+                );
+            }
+
+            List<Payload> keys = new ArrayList<>();
+            Random rand = new Random(1);
+            for (int i = 0; i < lookups; i++) {
+                keys.add(Payload.create(key_types, Arrays.asList(maker.make(rand.nextInt(count)))));
+            }
+
+            int root = table.root_page();
+            ToIntFunction<Payload> decode_all = key -> descend(db, root, key, false);
+            ToIntFunction<Payload> in_page = key -> descend(db, root, key, true);
+
+            // warm up
+            for (int round = 0; round < 3; round++) {
+                time(decode_all, keys);
+                time(in_page, keys);
+            }
+            double old_ns = time(decode_all, keys);
+            double new_ns = time(in_page, keys);
+            System.out.printf("%s keys: decode all %.0f ns/lookup, in-page search %.0f ns/lookup, %.1fx%n",
+                    name, old_ns, new_ns, old_ns / new_ns);
+        }
+    }
+
+    private static double time(ToIntFunction<Payload> search, List<Payload> keys) {
+        long st = System.nanoTime();
+        for (Payload key : keys) {
+            if (search.applyAsInt(key) < 0) throw new RuntimeException("key not found: " + key);
+        }
+        return (System.nanoTime() - st) / (double) keys.size();
+    }
+
+    /**
+     * @return index of the key in its leaf, negative if not found.
+     */
+    private static int descend(DBFile db, int page_id, Payload key, boolean in_page) {
+        while (true) {
+            try (PageHandle h = db.pin(page_id)) {
+                NodeView view = new NodeView(h);
+                int idx = in_page ? view.search(key) : Collections.binarySearch(view.get_keys(), key);
+                if (view.get_page_type() == PageType.BTREE_LEAF) return idx;
+                if (idx < 0) idx = -(idx + 1);
+                page_id = view.get_child(idx);
+            }
+        }
+    }
+}
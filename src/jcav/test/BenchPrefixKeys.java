@@ -0,0 +1,225 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.Page;
+import jcav.filelayer.PageHandle;
+import jcav.filelayer.PageType;
+import jcav.filelayer.btree.BInteriorNode;
+import jcav.filelayer.btree.KeyCodec;
+import jcav.filelayer.btree.NodeView;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+/**
+ * keys sharing long prefixes with their neighbours, inserted in random order: rows per leaf,
+ * leaves, height, pages in use, and time per insert and per lookup. then whether the prefix of
+ * leaves grows back after the keys which shortened it are deleted, and whether leaves filled by
+ * ascending keys get a prefix, with and without the append split.
+ */
+public class BenchPrefixKeys {
+    static List<Integer> val_types = Arrays.asList(ObjType.INT);
+
+    public static void main(String[] args) throws Exception {
+        int count = 50000;
+        Random rand = new Random(1);
+        String[] words = new String[count];
+        for (int i = 0; i < count; i++) {
+            StringBuilder sbuf = new StringBuilder();
+            int len = 5 + rand.nextInt(16);
+            for (int k = 0; k < len; k++) {
+                sbuf.append((char) ('a' + rand.nextInt(26)));
+            }
+            words[i] = sbuf.append(i).toString();
+        }
+
+        run("(INT, STRING(64))", Arrays.asList(ObjType.INT, ObjType.STRING(64)), count,
+                i -> Arrays.asList(i / 100, "transaction key " + i));
+        run("url STRING(128)", Arrays.asList(ObjType.STRING(128)), count,
+                i -> Arrays.asList("https://example.com/api/v2/users/" + (i % 500) + "/orders/" + i));
+        run("random STRING(64)", Arrays.asList(ObjType.STRING(64)), count,
+                i -> Arrays.asList(words[i]));
+        run_recover(count);
+        run_sequential(20000, true);
+        run_sequential(20000, false);
+    }
+
+    private static void run(String name, List<Integer> key_types, int count, IntFunction<List<Object>> key_of)
+            throws Exception {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < count; i++) order.add(i);
+        Collections.shuffle(order, new Random(2));
+
+        if (Files.exists(Paths.get("test.db"))) {
+            Files.delete(Paths.get("test.db"));
+        }
+        try (DBFile db = DBFile.create("test.db")) {
+            db.set_cache(new LRUCache(db, 4096));
+            BTreeTable table = BTreeTable.create(db, "bench", key_types, val_types);
+
+            long st = System.nanoTime();
+            for (int i : order) {
+                table.insert(
+                        Payload.create(key_types, key_of.apply(i)),
+                        Payload.create(val_types, Arrays.asList(i))
+                );
+            }
+            double insert_us = (System.nanoTime() - st) / 1e3 / count;
+            table._check_total();
+
+            Collections.shuffle(order, new Random(3));
+            st = System.nanoTime();
+            for (int i : order) {
+                if (!table.search(Payload.create(key_types, key_of.apply(i))).found()) {
+                    throw new RuntimeException("key not found");
+                }
+            }
+            double lookup_us = (System.nanoTime() - st) / 1e3 / count;
+
+            int[] leaves = {0};
+            table.foreach_leaf(leaf -> leaves[0]++);
+            int height = 1;
+            int page_id = table.root_page();
+            while (new Page(page_id, db).get_page_type() == PageType.BTREE_INTERIOR) {
+                page_id = new BInteriorNode(page_id, db).get_child(0);
+                height++;
+            }
+            int pages = db.get_headers().get("page_count").to_int()
+                    - db.get_headers().get("freelist_count").to_int();
+            System.out.printf("%s: %.1f rows/leaf, %d leaves, height %d, %d pages, " +
+                            "%.1f us/insert, %.1f us/lookup%n",
+                    name, count / (double) leaves[0], leaves[0], height, pages, insert_us, lookup_us);
+        }
+    }
+
+    /**
+     * (INT, STRING(64)) keys, each INT with rows of two forms, so the leaves holding both have a short
+     * prefix. the rows of one form are deleted without rebalancing, then a part of the others is deleted
+     * and inserted again, so the leaves are compacted and their prefix should grow back to the one
+     * their keys share.
+     */
+    private static void run_recover(int count) throws Exception {
+        List<Integer> key_types = Arrays.asList(ObjType.INT, ObjType.STRING(64));
+        IntFunction<Payload> key_of = i -> Payload.create(key_types, Arrays.asList(i / 1000, "transaction key " + i));
+        IntFunction<Payload> other_of = i -> Payload.create(key_types, Arrays.asList(i / 200, "~" + i));
+        int others = count / 5;
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < count; i++) order.add(i);
+        Collections.shuffle(order, new Random(2));
+
+        if (Files.exists(Paths.get("test.db"))) {
+            Files.delete(Paths.get("test.db"));
+        }
+        try (DBFile db = DBFile.create("test.db")) {
+            db.set_cache(new LRUCache(db, 4096));
+            BTreeTable table = BTreeTable.create(db, "bench", key_types, val_types);
+            table.set_min_fill(0);
+            for (int i : order) {
+                table.insert(key_of.apply(i), Payload.create(val_types, Arrays.asList(i)));
+                if (i < others) {
+                    table.insert(other_of.apply(i), Payload.create(val_types, Arrays.asList(-1)));
+                }
+            }
+            int[] loaded = short_prefix_leaves(db, table);
+
+            for (int i = 0; i < others; i++) {
+                table.delete(table.search(other_of.apply(i)));
+            }
+            int[] deleted = short_prefix_leaves(db, table);
+
+            Random rand = new Random(3);
+            for (int round = 0; round < 3; round++) {
+                Collections.shuffle(order, rand);
+                List<Integer> moved = order.subList(0, count / 3);
+                for (int i : moved) {
+                    table.delete(table.search(key_of.apply(i)));
+                }
+                for (int i : moved) {
+                    table.insert(key_of.apply(i), Payload.create(val_types, Arrays.asList(i)));
+                }
+            }
+            int[] moved = short_prefix_leaves(db, table);
+
+            table._check_total();
+            if (table.size() != count) {
+                throw new RuntimeException("total mismatch");
+            }
+            for (int i = 0; i < count; i++) {
+                if (!table.search(key_of.apply(i)).found()) {
+                    throw new RuntimeException("key not found");
+                }
+            }
+            System.out.printf("(INT, STRING(64)) of two forms: leaves with a shorter prefix than their keys share " +
+                            "%d/%d loaded, %d/%d after one form is deleted, %d/%d after rows are moved%n",
+                    loaded[0], loaded[1], deleted[0], deleted[1], moved[0], moved[1]);
+        }
+    }
+
+    /**
+     * STRING(64) urls inserted in ascending order. the right leaf of an append split starts empty,
+     * its prefix is found when it is full and compacted.
+     */
+    private static void run_sequential(int count, boolean append_split) throws Exception {
+        List<Integer> key_types = Arrays.asList(ObjType.STRING(64));
+        if (Files.exists(Paths.get("test.db"))) {
+            Files.delete(Paths.get("test.db"));
+        }
+        try (DBFile db = DBFile.create("test.db")) {
+            db.set_cache(new LRUCache(db, 4096));
+            BTreeTable table = BTreeTable.create(db, "bench", key_types, val_types);
+            table.set_append_split(append_split);
+            for (int i = 0; i < count; i++) {
+                table.insert(
+                        Payload.create(key_types, Arrays.asList(String.format("https://example.com/users/%09d", i))),
+                        Payload.create(val_types, Arrays.asList(i))
+                );
+            }
+            table._check_total();
+
+            long[] prefix = {0};
+            int[] leaves = {0};
+            table.foreach_leaf(leaf -> {
+                try (PageHandle h = db.pin(leaf.get_page_id())) {
+                    prefix[0] += new NodeView(h).get_prefix_size();
+                }
+                leaves[0]++;
+            });
+            System.out.printf("sequential url STRING(64), append split %s: %.1f rows/leaf, %d leaves, " +
+                            "%.1f bytes of prefix per leaf%n",
+                    append_split ? "on" : "off", count / (double) leaves[0], leaves[0],
+                    prefix[0] / (double) leaves[0]);
+        }
+    }
+
+    /**
+     * @return leaves whose prefix on page is shorter than the prefix of their first and last keys, and all leaves
+     */
+    private static int[] short_prefix_leaves(DBFile db, BTreeTable table) {
+        int[] res = {0, 0};
+        table.foreach_leaf(leaf -> {
+            int n = leaf.get_slot_count();
+            if (n > 0) {
+                byte[] first = leaf.get_key(0).get_key_bytes();
+                byte[] last = leaf.get_key(n - 1).get_key_bytes();
+                int shared = KeyCodec.common_prefix(first, 0, KeyCodec.packed_length(first, 0, first.length),
+                        last, 0, KeyCodec.packed_length(last, 0, last.length));
+                try (PageHandle h = db.pin(leaf.get_page_id())) {
+                    if (new NodeView(h).get_prefix_size() < shared) res[0]++;
+                }
+            }
+            res[1]++;
+        });
+        return res;
+    }
+}
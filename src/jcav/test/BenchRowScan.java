@@ -0,0 +1,83 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * full table scan with payloads (get_key / get_value) against flyweight views (foreach_row).
+ * reports time and heap allocation per row, both scans sum the same columns.
+ */
+public class BenchRowScan {
+    static List<Integer> key_types = Arrays.asList(ObjType.INT);
+    static List<Integer> val_types = Arrays.asList(ObjType.INT, ObjType.LONG, ObjType.STRING(32));
+
+    public static void main(String[] args) throws Exception {
+        int count = 100000;
+
+        if (Files.exists(Paths.get("test.db"))) {
+            Files.delete(Paths.get("test.db"));
+        }
+        try (DBFile db = DBFile.create("test.db")) {
+            db.set_cache(new LRUCache(db, 4096));
+            BTreeTable table = BTreeTable.create(db, "bench", key_types, val_types);
+            for (int i = 0; i < count; i++) {
+                table.insert(
+                        Payload.create(key_types, Arrays.asList(i)),
+                        Payload.create(val_types, Arrays.asList(i, (long) i * 3, "value " + i))
+                );
+            }
+
+            for (int round = 0; round < 3; round++) {
+                scan_payload(table);
+                scan_view(table);
+            }
+            report("payload", count, () -> scan_payload(table));
+            report("view   ", count, () -> scan_view(table));
+        }
+    }
+
+    private static long scan_payload(BTreeTable table) {
+        long[] sum = new long[1];
+        table.foreach_leaf(leaf -> {
+            for (int i = 0; i < leaf.get_slot_count(); i++) {
+                Payload key = leaf.get_key(i);
+                Payload value = leaf.get_value(i);
+                sum[0] += key.get_obj(0).as_int() + value.get_obj(1).as_long()
+                        + value.get_obj(2).as_string().length();
+            }
+        });
+        return sum[0];
+    }
+
+    private static long scan_view(BTreeTable table) {
+        long[] sum = new long[1];
+        table.foreach_row((key, value) -> {
+            sum[0] += key.get_int(0) + value.get_long(1) + value.get_string_bytes(2).remaining();
+        });
+        return sum[0];
+    }
+
+    interface Scan {
+        long run();
+    }
+
+    private static void report(String name, int count, Scan scan) {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        long alloc = mx.getThreadAllocatedBytes(tid);
+        long st = System.nanoTime();
+        long sum = scan.run();
+        double ns = (System.nanoTime() - st) / (double) count;
+        double bytes = (mx.getThreadAllocatedBytes(tid) - alloc) / (double) count;
+        System.out.printf("%s: %.0f ns/row, %.1f bytes allocated/row, checksum %d%n", name, ns, bytes, sum);
+    }
+}
@@ -0,0 +1,126 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.PageType;
+import jcav.filelayer.TwoQCache;
+import jcav.filelayer.btree.BInteriorNode;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * point lookups on a hot key range mixed with a full table scan, LRU against the scan resistant
+ * 2Q cache. reports how many interior pages are still cached after the scan, and the misses of
+ * the lookups after it.
+ */
+public class BenchScan {
+    static List<Integer> key_types = Arrays.asList(ObjType.INT);
+    static List<Integer> val_types = Arrays.asList(ObjType.INT, ObjType.STRING(32));
+
+    public static void main(String[] args) {
+        int count = 20000;
+        int cache_size = 64;
+        int hot = 1000;
+
+        try {
+            if (Files.exists(Paths.get("test.db"))) {
+                Files.delete(Paths.get("test.db"));
+            }
+            DBFile db = DBFile.create("test.db");
+            db.set_cache(new LRUCache(db, 300));
+            BTreeTable table = BTreeTable.create(db, "bench", key_types, val_types);
+            for (int i = 0; i < count; i++) {
+                table.insert(
+                        Payload.create(key_types, Arrays.asList(i)),
+                        Payload.create(val_types, Arrays.asList(i, "value " + i))
+                );
+            }
+            db.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
+
+        run("LRU", hot, db -> new LRUCache(db, cache_size));
+        run("2Q ", hot, db -> new TwoQCache(db, cache_size));
+    }
+
+    private static void run(String name, int hot, Function<DBFile, LRUCache> factory) {
+        try (DBFile db = new DBFile("test.db")) {
+            BTreeTable table = db.get_schema().get_table("bench");
+            List<Integer> interior = interior_pages(db, table.root_page());
+
+            LRUCache cache = factory.apply(db);
+            db.set_cache(cache);
+
+            Random rand = new Random(1);
+            lookups(table, rand, hot, 2000);
+            int before = resident(cache, interior);
+            cache.reset_stats();
+
+            long[] rows = new long[1];
+            long st = System.nanoTime();
+            table.foreach_leaf(leaf -> {
+                for (int i = 0; i < leaf.get_slot_count(); i++) {
+                    leaf.get_value(i);
+                    rows[0]++;
+                }
+            });
+            double scan_ms = (System.nanoTime() - st) / 1e6;
+            long scan_misses = cache.get_miss_count();
+            int after = resident(cache, interior);
+
+            cache.reset_stats();
+            st = System.nanoTime();
+            lookups(table, rand, hot, 2000);
+            double lookup_ms = (System.nanoTime() - st) / 1e6;
+
+            System.out.printf("%s: interior pages cached %d/%d before scan, %d/%d after; "
+                            + "scan %d rows in %.1fms, %d misses; 2000 lookups after scan: %d misses, %.1fms%n",
+                    name, before, interior.size(), after, interior.size(), rows[0], scan_ms, scan_misses,
+                    cache.get_miss_count(), lookup_ms);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void lookups(BTreeTable table, Random rand, int hot, int n) {
+        for (int i = 0; i < n; i++) {
+            table.search(Payload.create(key_types, Arrays.asList(rand.nextInt(hot))));
+        }
+    }
+
+    private static int resident(LRUCache cache, List<Integer> pages) {
+        int n = 0;
+        for (int page_id : pages) {
+            if (cache.is_cached(page_id)) n++;
+        }
+        return n;
+    }
+
+    private static List<Integer> interior_pages(DBFile db, int root) {
+        List<Integer> pages = new ArrayList<>();
+        Queue<Integer> q = new LinkedList<>();
+        q.add(root);
+        while (!q.isEmpty()) {
+            int page_id = q.remove();
+            if (db.read(page_id, 0, 1)[0] != PageType.BTREE_INTERIOR) continue;
+            pages.add(page_id);
+            for (int child : new BInteriorNode(page_id, db).get_children()) {
+                q.add(child);
+            }
+        }
+        return pages;
+    }
+}
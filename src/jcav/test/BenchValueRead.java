@@ -0,0 +1,135 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.OverflowPage;
+import jcav.filelayer.btree.CellStorage;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * value read and write throughput of the overflow chain streams: a unit copied one byte at a time
+ * with read()/write(int), which is what read(byte[])/write(byte[]) did before they copied whole
+ * page spans, against one read(byte[])/write(byte[]) per unit. both build the same payloads.
+ */
+public class BenchValueRead {
+    public static void main(String[] args) {
+        int count = 5000;
+        int rounds = 30;
+        int max_cache = 300;
+
+        List<Integer> key_types = Arrays.asList(ObjType.INT);
+        List<Integer> val_types = Arrays.asList(ObjType.INT, ObjType.STRING(32));
+
+        try {
+            if (Files.exists(Paths.get("test.db"))) {
+                Files.delete(Paths.get("test.db"));
+            }
+
+            DBFile db = DBFile.create("test.db");
+            db.set_cache(new LRUCache(db, max_cache));
+            BTreeTable table = BTreeTable.create(db, "bench", key_types, val_types);
+
+            long st = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                table.insert(
+                        Payload.create(key_types, Arrays.asList(i)),
+                        Payload.create(val_types, Arrays.asList(i, "value " + i))
+                );
+            }
+            System.out.println("insert " + count + " rows, " + (System.currentTimeMillis() - st) + "ms");
+            db.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
+
+        try (DBFile db = new DBFile("test.db")) {
+            db.set_cache(new LRUCache(db, max_cache));
+            BTreeTable table = db.get_schema().get_table("bench");
+
+            // the values are written back as they are
+            List<CellStorage> storages = new ArrayList<>();
+            List<Integer> unit_ids = new ArrayList<>();
+            List<byte[]> values = new ArrayList<>();
+            table.foreach_leaf(leaf -> {
+                CellStorage storage = new CellStorage(new OverflowPage(leaf.get_overflow_page(), db));
+                for (int i = 0; i < leaf.get_slot_count(); i++) {
+                    storages.add(storage);
+                    unit_ids.add(leaf.get_slot_cell(i).get_unit_id());
+                    values.add(leaf.get_value(i).get_bytes());
+                }
+            });
+
+            String[] names = {"read,  byte-by-byte", "read,  bulk        ", "write, byte-by-byte", "write, bulk        "};
+            long[] best = new long[names.length];
+            Arrays.fill(best, Long.MAX_VALUE);
+            long[] bytes = new long[1];
+            for (int r = 0; r < rounds; r++) {
+                bytes[0] = 0;
+                long st = System.nanoTime();
+                table.foreach_leaf(leaf -> {
+                    CellStorage storage = new CellStorage(new OverflowPage(leaf.get_overflow_page(), db));
+                    for (int i = 0; i < leaf.get_slot_count(); i++) {
+                        OverflowPage.InputStream in = storage.get_unit_in_stream(leaf.get_slot_cell(i).get_unit_id());
+                        byte[] data = new byte[Payload.get_size(val_types)];
+                        for (int j = 0; j < data.length; j++) {
+                            data[j] = (byte) in.read();
+                        }
+                        bytes[0] += new Payload(val_types, data).get_bytes().length;
+                    }
+                });
+                best[0] = Math.min(best[0], System.nanoTime() - st);
+
+                bytes[0] = 0;
+                st = System.nanoTime();
+                table.foreach_leaf(leaf -> {
+                    CellStorage storage = new CellStorage(new OverflowPage(leaf.get_overflow_page(), db));
+                    for (int i = 0; i < leaf.get_slot_count(); i++) {
+                        OverflowPage.InputStream in = storage.get_unit_in_stream(leaf.get_slot_cell(i).get_unit_id());
+                        byte[] data = new byte[Payload.get_size(val_types)];
+                        in.read(data);
+                        bytes[0] += new Payload(val_types, data).get_bytes().length;
+                    }
+                });
+                best[1] = Math.min(best[1], System.nanoTime() - st);
+
+                bytes[0] = 0;
+                st = System.nanoTime();
+                for (int i = 0; i < values.size(); i++) {
+                    OverflowPage.OutputStream out = storages.get(i).get_unit_out_stream(unit_ids.get(i));
+                    for (byte b : values.get(i)) {
+                        out.write(b);
+                    }
+                    bytes[0] += values.get(i).length;
+                }
+                best[2] = Math.min(best[2], System.nanoTime() - st);
+
+                bytes[0] = 0;
+                st = System.nanoTime();
+                for (int i = 0; i < values.size(); i++) {
+                    storages.get(i).get_unit_out_stream(unit_ids.get(i)).write(values.get(i));
+                    bytes[0] += values.get(i).length;
+                }
+                best[3] = Math.min(best[3], System.nanoTime() - st);
+            }
+            for (int k = 0; k < names.length; k++) {
+                report(names[k] + ", best of " + rounds, best[k], bytes[0]);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void report(String name, long ns, long bytes) {
+        double ms = ns / 1e6;
+        System.out.printf("%s: %d bytes in %.1fms, %.2f MB/s%n", name, bytes, ms, bytes / 1e3 / ms);
+    }
+}
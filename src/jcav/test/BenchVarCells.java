@@ -0,0 +1,82 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.Page;
+import jcav.filelayer.PageType;
+import jcav.filelayer.btree.BInteriorNode;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+/**
+ * wide string keys holding short strings, inserted in random order: rows per leaf, leaves,
+ * height and pages in use.
+ */
+public class BenchVarCells {
+    static List<Integer> val_types = Arrays.asList(ObjType.INT);
+
+    public static void main(String[] args) throws Exception {
+        int count = 50000;
+        Random rand = new Random(1);
+        String[] words = new String[count];
+        for (int i = 0; i < count; i++) {
+            StringBuilder sbuf = new StringBuilder();
+            int len = 5 + rand.nextInt(16);
+            for (int k = 0; k < len; k++) {
+                sbuf.append((char) ('a' + rand.nextInt(26)));
+            }
+            words[i] = sbuf.append(i).toString();
+        }
+
+        run("email STRING(64)", ObjType.STRING(64), count, i -> "user" + i + "@example.com");
+        run("name STRING(255)", ObjType.STRING(255), count, i -> words[i]);
+    }
+
+    private static void run(String name, int key_type, int count, IntFunction<String> key_of) throws Exception {
+        List<Integer> key_types = Arrays.asList(key_type);
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < count; i++) order.add(i);
+        Collections.shuffle(order, new Random(2));
+
+        if (Files.exists(Paths.get("test.db"))) {
+            Files.delete(Paths.get("test.db"));
+        }
+        try (DBFile db = DBFile.create("test.db")) {
+            db.set_cache(new LRUCache(db, 4096));
+            BTreeTable table = BTreeTable.create(db, "bench", key_types, val_types);
+
+            long st = System.nanoTime();
+            for (int i : order) {
+                table.insert(
+                        Payload.create(key_types, Arrays.asList(key_of.apply(i))),
+                        Payload.create(val_types, Arrays.asList(i))
+                );
+            }
+            double us = (System.nanoTime() - st) / 1e3 / count;
+            table._check_total();
+
+            int[] leaves = {0};
+            table.foreach_leaf(leaf -> leaves[0]++);
+            int height = 1;
+            int page_id = table.root_page();
+            while (new Page(page_id, db).get_page_type() == PageType.BTREE_INTERIOR) {
+                page_id = new BInteriorNode(page_id, db).get_child(0);
+                height++;
+            }
+            int pages = db.get_headers().get("page_count").to_int()
+                    - db.get_headers().get("freelist_count").to_int();
+            System.out.printf("%s: %.1f rows/leaf, %d leaves, height %d, %d pages, %.1f us/insert%n",
+                    name, count / (double) leaves[0], leaves[0], height, pages, us);
+        }
+    }
+}
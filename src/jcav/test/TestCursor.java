@@ -0,0 +1,113 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.btree.Cursor;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+import jcav.filelayer.btree.SearchResult;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.stream.StreamSupport;
+
+/**
+ * cursors against a TreeSet of the same keys: seek, next, prev and bounded ranges,
+ * on a table with random deletes.
+ */
+public class TestCursor {
+    static List<Integer> key_types = Arrays.asList(ObjType.INT);
+    static List<Integer> val_types = Arrays.asList(ObjType.INT);
+
+    public static void main(String[] args) throws Exception {
+        if (Files.exists(Paths.get("test.db"))) {
+            Files.delete(Paths.get("test.db"));
+        }
+        try (DBFile db = DBFile.create("test.db")) {
+            db.set_cache(new LRUCache(db, 100));
+            BTreeTable table = BTreeTable.create(db, "cursor", key_types, val_types);
+
+            TreeSet<Integer> keys = new TreeSet<>();
+            Random rand = new Random(1);
+            for (int i = 0; i < 3000; i++) {
+                int k = rand.nextInt(10000);
+                if (keys.add(k)) table.insert(key(k), Payload.create(val_types, Arrays.asList(-k)));
+            }
+            for (int i = 0; i < 1000; i++) {
+                int k = rand.nextInt(10000);
+                SearchResult sr = table.search(key(k));
+                if (sr.found()) {
+                    table.delete(sr);
+                    keys.remove(k);
+                }
+            }
+
+            try (Cursor c = table.cursor()) {
+                check(c.seek_first() && get(c) == keys.first(), "seek_first");
+                check(c.seek_last() && get(c) == keys.last(), "seek_last");
+                check(!c.next(), "next after last");
+
+                c.seek_first();
+                for (int k : keys) {
+                    check(c.is_valid() && get(c) == k, "next " + k);
+                    check(c.get_value().get_obj(0).as_int() == -k, "value " + k);
+                    c.next();
+                }
+                check(!c.is_valid(), "end of scan");
+
+                c.seek_last();
+                for (int k : keys.descendingSet()) {
+                    check(c.is_valid() && get(c) == k, "prev " + k);
+                    c.prev();
+                }
+                check(!c.is_valid(), "begin of scan");
+
+                for (int i = 0; i < 1000; i++) {
+                    int k = rand.nextInt(10100) - 50;
+                    Integer exp = keys.ceiling(k);
+                    check(c.seek(key(k)) == (exp != null), "seek " + k);
+                    if (exp != null) check(get(c) == exp, "seek " + k);
+                }
+            }
+
+            for (int i = 0; i < 300; i++) {
+                int lo = rand.nextInt(10100) - 50;
+                int hi = lo + rand.nextInt(500);
+                List<Integer> exp = Arrays.asList(keys.subSet(lo, hi).toArray(new Integer[0]));
+                try (Cursor c = table.range(key(lo), key(hi))) {
+                    int[] got = StreamSupport.stream(c.spliterator(), false)
+                            .mapToInt(row -> row.getKey().get_obj(0).as_int())
+                            .toArray();
+                    check(Arrays.equals(got, exp.stream().mapToInt(Integer::intValue).toArray()),
+                            "range [" + lo + ", " + hi + ")");
+                }
+                try (Cursor c = table.range(key(lo), key(hi))) {
+                    check(c.seek_last() == !exp.isEmpty(), "range seek_last");
+                    for (int j = exp.size() - 1; j >= 0; j--) {
+                        check(c.is_valid() && get(c) == exp.get(j), "range prev");
+                        c.prev();
+                    }
+                    check(!c.is_valid(), "range begin");
+                }
+            }
+            System.out.println("cursor: " + keys.size() + " keys, all checks passed");
+        }
+    }
+
+    private static Payload key(int k) {
+        return Payload.create(key_types, Arrays.asList(k));
+    }
+
+    private static int get(Cursor c) {
+        return c.get_key().get_obj(0).as_int();
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new RuntimeException("check failed: " + what);
+    }
+}
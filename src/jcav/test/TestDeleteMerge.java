@@ -0,0 +1,140 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.Page;
+import jcav.filelayer.PageType;
+import jcav.filelayer.btree.BInteriorNode;
+import jcav.filelayer.btree.Cursor;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+import jcav.filelayer.btree.SearchResult;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * random inserts and deletes against a TreeMap at min fill 0, 0.3 and 0.5, growing the table and
+ * shrinking it down to empty, so nodes are redistributed and merged and the root collapses.
+ * after each batch: totals and a full scan both ways.
+ */
+public class TestDeleteMerge {
+    // long keys, so a few thousand rows make a tree of height 3
+    static List<Integer> key_types = Arrays.asList(ObjType.INT, ObjType.STRING(48));
+    static List<Integer> val_types = Arrays.asList(ObjType.INT, ObjType.STRING(32));
+
+    public static void main(String[] args) throws Exception {
+        for (double min_fill : new double[]{0, 0.3, 0.5}) {
+            if (Files.exists(Paths.get("test.db"))) {
+                Files.delete(Paths.get("test.db"));
+            }
+            try (DBFile db = DBFile.create("test.db")) {
+                db.set_cache(new LRUCache(db, 1000));
+                BTreeTable table = BTreeTable.create(db, "merge", key_types, val_types);
+                table.set_min_fill(min_fill);
+                int pages_empty = pages_in_use(db);
+
+                TreeMap<Integer, Integer> rows = new TreeMap<>();
+                List<Integer> keys = new ArrayList<>();
+                Random rand = new Random(1);
+                int batches = 0;
+                int max_height = 0;
+                for (int target : new int[]{20000, 4000, 15000, 0, 8000, 10, 6000, 0}) {
+                    while (rows.size() != target) {
+                        for (int i = 0; i < 1000 && rows.size() != target; i++) {
+                            boolean insert = rows.size() < target ? rand.nextInt(5) != 0 : rand.nextInt(5) == 0;
+                            if (insert) {
+                                int k = rand.nextInt(40000);
+                                if (rows.containsKey(k)) continue;
+                                table.insert(key(k), Payload.create(val_types, Arrays.asList(-k, "value " + k)));
+                                rows.put(k, -k);
+                                keys.add(k);
+                            } else if (!keys.isEmpty()) {
+                                int idx = rand.nextInt(keys.size());
+                                int k = keys.get(idx);
+                                keys.set(idx, keys.get(keys.size() - 1));
+                                keys.remove(keys.size() - 1);
+                                SearchResult sr = table.search(key(k));
+                                check(sr.found(), "search " + k);
+                                table.delete(sr);
+                                rows.remove(k);
+                            }
+                        }
+                        check_table(table, rows);
+                        max_height = Math.max(max_height, height(table));
+                        batches++;
+                    }
+                    if (target == 0) {
+                        check(height(table) == 1, "root collapses, min fill " + min_fill);
+                        check(pages_in_use(db) == pages_empty, "pages released, min fill " + min_fill);
+                    } else if (target == 10 && min_fill > 0) {
+                        // every node is underfull, they are merged up to the root
+                        check(height(table) == 1, "root collapses, min fill " + min_fill);
+                    }
+                }
+                check(max_height >= 3, "height " + max_height);
+                System.out.printf("min fill %.1f: %d batches, height up to %d, all checks passed%n",
+                        min_fill, batches, max_height);
+            }
+        }
+    }
+
+    private static void check_table(BTreeTable table, TreeMap<Integer, Integer> rows) {
+        table._check_total();
+        check(table.size() == rows.size(), "size");
+
+        try (Cursor c = table.cursor()) {
+            c.seek_first();
+            for (Map.Entry<Integer, Integer> e : rows.entrySet()) {
+                check(c.is_valid() && get(c) == e.getKey(), "next " + e.getKey());
+                Payload value = c.get_value();
+                check(value.get_obj(0).as_int().equals(e.getValue()), "value " + e.getKey());
+                check(value.get_obj(1).as_string().equals("value " + e.getKey()), "value " + e.getKey());
+                c.next();
+            }
+            check(!c.is_valid(), "end of scan");
+
+            c.seek_last();
+            for (int k : rows.descendingKeySet()) {
+                check(c.is_valid() && get(c) == k, "prev " + k);
+                c.prev();
+            }
+            check(!c.is_valid(), "begin of scan");
+        }
+    }
+
+    private static int height(BTreeTable table) {
+        int height = 1;
+        int page_id = table.root_page();
+        while (new Page(page_id, table.get_db()).get_page_type() == PageType.BTREE_INTERIOR) {
+            page_id = new BInteriorNode(page_id, table.get_db()).get_child(0);
+            height++;
+        }
+        return height;
+    }
+
+    private static int pages_in_use(DBFile db) {
+        return db.get_headers().get("page_count").to_int() - db.get_headers().get("freelist_count").to_int();
+    }
+
+    private static Payload key(int k) {
+        StringBuilder sbuf = new StringBuilder();
+        while (sbuf.length() + 6 <= 48) sbuf.append(k).append(' ');
+        return Payload.create(key_types, Arrays.asList(k, sbuf.toString()));
+    }
+
+    private static int get(Cursor c) {
+        return c.get_key().get_obj(0).as_int();
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new RuntimeException("check failed: " + what);
+    }
+}
@@ -0,0 +1,159 @@
+package jcav.test;
+
+import jcav.filelayer.btree.KeyCodec;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * keys encoded by KeyCodec against a comparator on the objects: null first, then numbers by
+ * Integer/Long/Float/Double.compare, so -0.0 < 0.0 and NaN is last, and strings by code point.
+ * encode and decode round trip, and strings of different lengths compare object by object.
+ */
+public class TestKeyCodec {
+    static List<Integer> types = Arrays.asList(
+            ObjType.INT, ObjType.LONG, ObjType.FLOAT, ObjType.DOUBLE, ObjType.STRING(12));
+    static List<Integer> short_types = Arrays.asList(ObjType.INT, ObjType.STRING(8));
+    static List<Integer> long_types = Arrays.asList(ObjType.INT, ObjType.STRING(20));
+
+    static int[] ints = {Integer.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE};
+    static long[] longs = {Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE};
+    static float[] floats = {Float.NEGATIVE_INFINITY, -Float.MAX_VALUE, -1, -Float.MIN_VALUE, -0.0f, 0.0f,
+            Float.MIN_VALUE, 1, Float.MAX_VALUE, Float.POSITIVE_INFINITY, Float.NaN};
+    static double[] doubles = {Double.NEGATIVE_INFINITY, -Double.MAX_VALUE, -1, -Double.MIN_VALUE, -0.0, 0.0,
+            Double.MIN_VALUE, 1, Double.MAX_VALUE, Double.POSITIVE_INFINITY, Double.NaN};
+    // 1, 2, 3 and 4 bytes in utf-8, U+FFFF is before U+1F600 by code point but not by utf-16 char
+    static int[] code_points = {'a', 'b', 'z', 0x7f, 0xe9, 0x7ff, 0x4e2d, 0xffff, 0x1f600, 0x10ffff};
+
+    public static void main(String[] args) {
+        Random rand = new Random(1);
+
+        check(cmp(key(null, 0L, 0f, 0.0, ""), key(Integer.MIN_VALUE, 0L, 0f, 0.0, "")) < 0, "null first");
+        check(cmp(key(0, null, 0f, 0.0, ""), key(0, Long.MIN_VALUE, 0f, 0.0, "")) < 0, "null first");
+        check(cmp(key(0, 0L, -0.0f, 0.0, ""), key(0, 0L, 0.0f, 0.0, "")) < 0, "-0.0 < 0.0");
+        check(cmp(key(0, 0L, 0f, -0.0, ""), key(0, 0L, 0f, 0.0, "")) < 0, "-0.0 < 0.0");
+        check(cmp(key(0, 0L, Float.NaN, 0.0, ""), key(0, 0L, Float.POSITIVE_INFINITY, 0.0, "")) > 0, "NaN last");
+        check(cmp(key(0, 0L, 0f, Double.NaN, ""), key(0, 0L, 0f, Double.POSITIVE_INFINITY, "")) > 0, "NaN last");
+        check(cmp(key(0, 0L, 0f, 0.0, "\uffff"), key(0, 0L, 0f, 0.0, "\ud83d\ude00")) < 0, "code point order");
+        check(cmp(key(0, 0L, 0f, 0.0, "ab"), key(0, 0L, 0f, 0.0, "abc")) < 0, "prefix first");
+
+        List<Payload> keys = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            keys.add(Payload.create(types, Arrays.asList(
+                    rand.nextInt(10) == 0 ? null : rand.nextBoolean() ? ints[rand.nextInt(ints.length)] : rand.nextInt(),
+                    rand.nextInt(10) == 0 ? null : rand.nextBoolean() ? longs[rand.nextInt(longs.length)] : rand.nextLong(),
+                    rand.nextInt(10) == 0 ? null : rand.nextBoolean() ? floats[rand.nextInt(floats.length)]
+                            : (float) rand.nextGaussian(),
+                    rand.nextInt(10) == 0 ? null : rand.nextBoolean() ? doubles[rand.nextInt(doubles.length)]
+                            : rand.nextGaussian(),
+                    rand.nextInt(10) == 0 ? null : string(rand, 12))));
+        }
+
+        for (Payload a : keys) {
+            byte[] a_key = a.get_key_bytes();
+            byte[] a_data = KeyCodec.decode(types, a_key, 0);
+            check(Arrays.equals(a_data, a.get_bytes()), "decode", a);
+            check(Arrays.equals(Payload.from_key_bytes(types, a_key, 0).get_bytes(), a.get_bytes()), "decode", a);
+        }
+
+        for (int i = 0; i < 200000; i++) {
+            Payload a = keys.get(rand.nextInt(keys.size()));
+            Payload b = rand.nextInt(20) == 0 ? a : keys.get(rand.nextInt(keys.size()));
+            int exp = expect(a, b);
+            byte[] a_key = a.get_key_bytes();
+            byte[] b_key = b.get_key_bytes();
+            int len = a_key.length;
+            check(KeyCodec.compare(a_key, 0, b_key, 0, len) == exp, "compare", a, b);
+            check(Integer.signum(a.compareTo(b)) == exp, "compareTo", a, b);
+            // b stored without its trailing 0 bytes, as in a b-tree cell
+            int b_len = KeyCodec.packed_length(b_key, 0, b_key.length);
+            check(KeyCodec.compare(a_key, 0, len, ByteBuffer.wrap(b_key), 0, b_len) == exp,
+                    "compare packed", a, b);
+            check(a.compare_to(types, ByteBuffer.wrap(b_key), 0, b_len) == exp, "compare_to packed", a, b);
+        }
+
+        // STRING(8) against STRING(20), the encodings differ in size and are compared object by object
+        for (int i = 0; i < 20000; i++) {
+            int n = rand.nextInt(3);
+            String s = string(rand, 8);
+            String t = rand.nextInt(4) == 0 ? s : rand.nextBoolean() ? s + string(rand, 12) : string(rand, 20);
+            Payload a = Payload.create(short_types, Arrays.asList(rand.nextInt(10) == 0 ? null : n, s));
+            Payload b = Payload.create(long_types, Arrays.asList(rand.nextInt(3), rand.nextInt(10) == 0 ? null : t));
+            int exp = expect(a, b);
+            byte[] b_key = b.get_key_bytes();
+            int b_len = KeyCodec.packed_length(b_key, 0, b_key.length);
+            check(KeyCodec.compare(a.get_key_bytes(), 0, short_types, ByteBuffer.wrap(b_key), 0, long_types) == exp,
+                    "mixed compare", a, b);
+            check(KeyCodec.compare(a.get_key_bytes(), 0, short_types, ByteBuffer.wrap(b_key), 0, b_len, long_types)
+                    == exp, "mixed compare packed", a, b);
+            check(Integer.signum(a.compareTo(b)) == exp && Integer.signum(b.compareTo(a)) == -exp,
+                    "mixed compareTo", a, b);
+        }
+        System.out.println("key codec: " + keys.size() + " keys, all checks passed");
+    }
+
+    private static Payload key(Integer i, Long l, Float f, Double d, String s) {
+        return Payload.create(types, Arrays.asList(i, l, f, d, s));
+    }
+
+    private static int cmp(Payload a, Payload b) {
+        return KeyCodec.compare(a.get_key_bytes(), 0, b.get_key_bytes(), 0, a.get_key_bytes().length);
+    }
+
+    /**
+     * a random string of at most max_bytes bytes in utf-8, without U+0000.
+     */
+    private static String string(Random rand, int max_bytes) {
+        StringBuilder sbuf = new StringBuilder();
+        int len = rand.nextInt(max_bytes + 1);
+        for (int k = 0; k < len; k++) {
+            int cp = rand.nextBoolean() ? code_points[rand.nextInt(code_points.length)] : 'a' + rand.nextInt(4);
+            String next = sbuf.toString() + new String(Character.toChars(cp));
+            if (next.getBytes(StandardCharsets.UTF_8).length > max_bytes) break;
+            sbuf.appendCodePoint(cp);
+        }
+        return sbuf.toString();
+    }
+
+    /**
+     * the documented order, on the objects.
+     */
+    private static int expect(Payload a, Payload b) {
+        for (int i = 0; i < a.get_obj_count(); i++) {
+            Object x = a.get_obj(i).get_obj();
+            Object y = b.get_obj(i).get_obj();
+            int cmp;
+            if (x == null || y == null) {
+                cmp = x == null ? (y == null ? 0 : -1) : 1;
+            } else if (x instanceof Integer) {
+                cmp = Integer.compare((Integer) x, (Integer) y);
+            } else if (x instanceof Long) {
+                cmp = Long.compare((Long) x, (Long) y);
+            } else if (x instanceof Float) {
+                cmp = Float.compare((Float) x, (Float) y);
+            } else if (x instanceof Double) {
+                cmp = Double.compare((Double) x, (Double) y);
+            } else {
+                int[] s = ((String) x).codePoints().toArray();
+                int[] t = ((String) y).codePoints().toArray();
+                cmp = 0;
+                for (int k = 0; k < Math.min(s.length, t.length) && cmp == 0; k++) {
+                    cmp = Integer.compare(s[k], t[k]);
+                }
+                if (cmp == 0) cmp = Integer.compare(s.length, t.length);
+            }
+            if (cmp != 0) return Integer.signum(cmp);
+        }
+        return 0;
+    }
+
+    private static void check(boolean ok, String what, Payload... keys) {
+        if (!ok) throw new RuntimeException("check failed: " + what + " " + Arrays.toString(keys));
+    }
+}
@@ -0,0 +1,196 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.Page;
+import jcav.filelayer.PageType;
+import jcav.filelayer.btree.BLeafNode;
+import jcav.filelayer.btree.BPlusTree;
+import jcav.filelayer.btree.Cursor;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+import jcav.filelayer.btree.SearchResult;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * variable-length cells in slotted pages: STRING(64) keys of 1 to 64 bytes, inserted and deleted
+ * at random against a TreeMap, so deleted cells leave fragments and pages are compacted.
+ * after each batch: totals, a full scan both ways, and the free space of each leaf.
+ * then a single leaf is filled, every other key deleted and keys inserted into the fragments,
+ * the leaf must be compacted instead of split.
+ */
+public class TestVarCells {
+    static List<Integer> key_types = Arrays.asList(ObjType.STRING(64));
+    static List<Integer> val_types = Arrays.asList(ObjType.INT);
+    // 1, 2 and 3 bytes in utf-8, all in the BMP, so the order of String is the order of code points
+    static char[] chars = {'a', 'b', 'k', 'z', '\u00e9', '\u00df', '\u4e2d', '\u6587'};
+
+    public static void main(String[] args) throws Exception {
+        for (double min_fill : new double[]{0, BPlusTree.DEFAULT_MIN_FILL}) {
+            if (Files.exists(Paths.get("test.db"))) {
+                Files.delete(Paths.get("test.db"));
+            }
+            try (DBFile db = DBFile.create("test.db")) {
+                db.set_cache(new LRUCache(db, 1000));
+                BTreeTable table = BTreeTable.create(db, "cells", key_types, val_types);
+                table.set_min_fill(min_fill);
+
+                TreeMap<String, Integer> rows = new TreeMap<>();
+                List<String> keys = new ArrayList<>();
+                Random rand = new Random(1);
+                int batches = 0;
+                long max_frag = 0;
+                for (int target : new int[]{15000, 3000, 12000, 0, 6000}) {
+                    while (rows.size() != target) {
+                        for (int i = 0; i < 1000 && rows.size() != target; i++) {
+                            boolean insert = rows.size() < target ? rand.nextInt(5) != 0 : rand.nextInt(5) == 0;
+                            if (insert) {
+                                String k = string(rand);
+                                if (rows.containsKey(k)) continue;
+                                table.insert(key(k), Payload.create(val_types, Arrays.asList(k.length())));
+                                rows.put(k, k.length());
+                                keys.add(k);
+                            } else if (!keys.isEmpty()) {
+                                int idx = rand.nextInt(keys.size());
+                                String k = keys.get(idx);
+                                keys.set(idx, keys.get(keys.size() - 1));
+                                keys.remove(keys.size() - 1);
+                                SearchResult sr = table.search(key(k));
+                                check(sr.found(), "search " + k);
+                                table.delete(sr);
+                                rows.remove(k);
+                            }
+                        }
+                        max_frag = Math.max(max_frag, check_table(table, rows));
+                        batches++;
+                    }
+                }
+                check(max_frag > 0, "no fragments");
+                System.out.printf("min fill %.1f: %d batches, up to %d bytes of fragments, all checks passed%n",
+                        min_fill, batches, max_frag);
+            }
+        }
+
+        compact_leaf();
+    }
+
+    /**
+     * keys fill the root leaf, every other one is deleted, then keys which fit only with the fragments
+     * are inserted, the leaf stays the root.
+     */
+    private static void compact_leaf() throws Exception {
+        if (Files.exists(Paths.get("test.db"))) {
+            Files.delete(Paths.get("test.db"));
+        }
+        try (DBFile db = DBFile.create("test.db")) {
+            db.set_cache(new LRUCache(db, 100));
+            BTreeTable table = BTreeTable.create(db, "compact", key_types, val_types);
+            TreeMap<String, Integer> rows = new TreeMap<>();
+            Random rand = new Random(2);
+
+            BLeafNode root = new BLeafNode(table.root_page(), db);
+            while (true) {
+                String k = string(rand);
+                if (rows.containsKey(k)) continue;
+                if (!root.has_room(key(k))) break;
+                table.insert(key(k), Payload.create(val_types, Arrays.asList(k.length())));
+                rows.put(k, k.length());
+            }
+            int full = rows.size();
+
+            List<String> deleted = new ArrayList<>();
+            int i = 0;
+            for (String k : new ArrayList<>(rows.keySet())) {
+                if (i++ % 2 == 1) continue;
+                table.delete(table.search(key(k)));
+                rows.remove(k);
+                deleted.add(k);
+            }
+            int frag = root.get_frag_size();
+            check(frag > 0, "fragments after deletes");
+            check(root.get_free_size() - frag < frag, "the free space is smaller than the fragments");
+
+            // the deleted keys again, some only fit after the page is compacted
+            for (String k : deleted) {
+                table.insert(key(k), Payload.create(val_types, Arrays.asList(k.length())));
+                rows.put(k, k.length());
+            }
+            check(new Page(table.root_page(), db).get_page_type() == PageType.BTREE_LEAF, "leaf split");
+            check(root.get_frag_size() < frag, "leaf compacted");
+            check_table(table, rows);
+            System.out.printf("compact: %d keys fill a leaf, %d bytes of fragments reclaimed%n", full, frag);
+        }
+    }
+
+    /**
+     * @return bytes of fragments in all leaves
+     */
+    private static long check_table(BTreeTable table, TreeMap<String, Integer> rows) {
+        table._check_total();
+        check(table.size() == rows.size(), "size");
+
+        try (Cursor c = table.cursor()) {
+            c.seek_first();
+            for (Map.Entry<String, Integer> e : rows.entrySet()) {
+                check(c.is_valid() && get(c).equals(e.getKey()), "next " + e.getKey());
+                check(c.get_value().get_obj(0).as_int().equals(e.getValue()), "value " + e.getKey());
+                c.next();
+            }
+            check(!c.is_valid(), "end of scan");
+
+            c.seek_last();
+            for (String k : rows.descendingKeySet()) {
+                check(c.is_valid() && get(c).equals(k), "prev " + k);
+                c.prev();
+            }
+            check(!c.is_valid(), "begin of scan");
+        }
+
+        long[] frag = {0};
+        table.foreach_leaf(leaf -> {
+            int gap = leaf.get_free_size() - leaf.get_frag_size();
+            check(gap >= 0 && leaf.get_frag_size() >= 0, "free space of leaf " + leaf.get_page_id());
+            check(leaf.get_used_size() <= leaf.get_body_size(), "used size of leaf " + leaf.get_page_id());
+            frag[0] += leaf.get_frag_size();
+        });
+        return frag[0];
+    }
+
+    /**
+     * a random string of 1 to 64 bytes in utf-8.
+     */
+    private static String string(Random rand) {
+        StringBuilder sbuf = new StringBuilder();
+        int max_bytes = 1 + rand.nextInt(64);
+        int bytes = 0;
+        while (true) {
+            char ch = chars[rand.nextInt(chars.length)];
+            int len = ch < 0x80 ? 1 : ch < 0x800 ? 2 : 3;
+            if (bytes + len > max_bytes) break;
+            sbuf.append(ch);
+            bytes += len;
+        }
+        return sbuf.length() == 0 ? "a" : sbuf.toString();
+    }
+
+    private static Payload key(String k) {
+        return Payload.create(key_types, Arrays.asList(k));
+    }
+
+    private static String get(Cursor c) {
+        return c.get_key().get_obj(0).as_string();
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new RuntimeException("check failed: " + what);
+    }
+}
@@ -0,0 +1,79 @@
+package jcav.test;
+
+import jcav.filelayer.BTreeTable;
+import jcav.filelayer.Bytes;
+import jcav.filelayer.DBFile;
+import jcav.filelayer.LRUCache;
+import jcav.filelayer.btree.ObjType;
+import jcav.filelayer.btree.Payload;
+import jcav.filelayer.btree.SearchResult;
+import jcav.filelayer.exception.DBRuntimeError;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * a database file whose 'ver' is not DBFile.VERSION, e.g. one written before the search path replaced
+ * father pointers, is refused on open instead of being decoded in the current format.
+ * the file is left as it is, and opens again once 'ver' is restored.
+ */
+public class TestVersion {
+    static List<Integer> key_types = Arrays.asList(ObjType.INT);
+    static List<Integer> val_types = Arrays.asList(ObjType.INT);
+
+    public static void main(String[] args) throws Exception {
+        if (Files.exists(Paths.get("test.db"))) {
+            Files.delete(Paths.get("test.db"));
+        }
+        try (DBFile db = DBFile.create("test.db")) {
+            db.set_cache(new LRUCache(db, 100));
+            BTreeTable table = BTreeTable.create(db, "ver", key_types, val_types);
+            for (int i = 0; i < 1000; i++) {
+                table.insert(Payload.create(key_types, Arrays.asList(i)), Payload.create(val_types, Arrays.asList(-i)));
+            }
+        }
+        byte[] file = Files.readAllBytes(Paths.get("test.db"));
+
+        for (short ver : new short[]{1, 2, (short) (DBFile.VERSION - 1), (short) (DBFile.VERSION + 1)}) {
+            write_ver(ver);
+            boolean refused = false;
+            try (DBFile db = new DBFile("test.db")) {
+                db.get_headers();
+            } catch (DBRuntimeError e) {
+                refused = true;
+            }
+            check(refused, "ver " + ver + " is refused");
+            check(Arrays.equals(ver_of(file, ver), Files.readAllBytes(Paths.get("test.db"))), "file is not modified");
+        }
+
+        write_ver(DBFile.VERSION);
+        check(Arrays.equals(file, Files.readAllBytes(Paths.get("test.db"))), "ver restored");
+        try (DBFile db = new DBFile("test.db")) {
+            db.set_cache(new LRUCache(db, 100));
+            BTreeTable table = db.get_schema().get_table("ver");
+            for (int i = 0; i < 1000; i++) {
+                SearchResult sr = table.search(Payload.create(key_types, Arrays.asList(i)));
+                check(sr.found() && table.get_value(sr).get_obj(0).as_int() == -i, "row " + i);
+            }
+        }
+        System.out.println("version check ok, VERSION = " + DBFile.VERSION);
+    }
+
+    // 'ver' follows the 32 bytes of 'file_id'
+    private static void write_ver(short ver) throws Exception {
+        byte[] file = Files.readAllBytes(Paths.get("test.db"));
+        Files.write(Paths.get("test.db"), ver_of(file, ver));
+    }
+
+    private static byte[] ver_of(byte[] file, short ver) {
+        byte[] copy = file.clone();
+        System.arraycopy(Bytes.from_short(ver), 0, copy, 32, 2);
+        return copy;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new RuntimeException("check failed: " + what);
+    }
+}